@@ -0,0 +1,125 @@
+package io.syndesis.qe.marketplace.fleet;
+
+import io.syndesis.qe.marketplace.fleet.FleetReport.ClusterResult;
+import io.syndesis.qe.marketplace.manifests.Index;
+import io.syndesis.qe.marketplace.openshift.ClientRegistry;
+import io.syndesis.qe.marketplace.openshift.OpenShiftService;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the same deployment on many clusters in parallel.
+ * <p>
+ * Every member is an {@link OpenShiftService} for one cluster and namespace. Members of the same cluster share its
+ * concurrency limit, {@code marketplace.fleet.cluster.concurrency} by default, so several namespaces of one cluster do
+ * not install at once. Closing the fleet closes the clients of its clusters in the {@link ClientRegistry}, clients
+ * still leased by running operations are closed when they are released.
+ */
+@Slf4j
+public class Fleet implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Task {
+        void run(OpenShiftService service) throws Exception;
+    }
+
+    private final Map<String, OpenShiftService> members = new LinkedHashMap<>();
+    private final Map<String, Semaphore> clusterLimits = new ConcurrentHashMap<>();
+    private final int clusterConcurrency;
+
+    public Fleet() {
+        this(Integer.getInteger("marketplace.fleet.cluster.concurrency", 1));
+    }
+
+    /**
+     * @param clusterConcurrency - how many members of one cluster may run at the same time
+     */
+    public Fleet(int clusterConcurrency) {
+        this.clusterConcurrency = clusterConcurrency;
+    }
+
+    public Fleet add(String name, OpenShiftService service) {
+        if (members.putIfAbsent(name, service) != null) {
+            throw new IllegalArgumentException("Fleet already has a member named " + name);
+        }
+        return this;
+    }
+
+    public FleetReport deployOperator() {
+        return run("deploy operator", OpenShiftService::deployOperator, true);
+    }
+
+    public FleetReport addIndex(Index index, String catalogName) {
+        return run("add index " + catalogName, service -> index.addIndexToCluster(service, catalogName), false);
+    }
+
+    public FleetReport run(String operation, Task task) {
+        return run(operation, task, false);
+    }
+
+    private FleetReport run(String operation, Task task, boolean installs) {
+        log.info("Running '{}' on {} fleet members", operation, members.size());
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, members.size()));
+        try {
+            List<CompletableFuture<ClusterResult>> futures = new ArrayList<>();
+            members.forEach((name, service) ->
+                futures.add(CompletableFuture.supplyAsync(() -> runOn(name, service, task, installs), executor)));
+            List<ClusterResult> results = new ArrayList<>();
+            futures.forEach(future -> results.add(future.join()));
+            FleetReport report = new FleetReport(operation, Duration.ofNanos(System.nanoTime() - start), results);
+            log.info(report.toString());
+            return report;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private ClusterResult runOn(String name, OpenShiftService service, Task task, boolean installs) {
+        String apiUrl = service.getAdminUser().getApiUrl();
+        String namespace = service.getClient().getNamespace();
+        Semaphore limit = clusterLimits.computeIfAbsent(apiUrl, url -> new Semaphore(clusterConcurrency, true));
+        String thread = Thread.currentThread().getName();
+        Thread.currentThread().setName("fleet-" + name);
+
+        long queued = System.nanoTime();
+        long started = queued;
+        String error = null;
+        try {
+            limit.acquire();
+            started = System.nanoTime();
+            try {
+                task.run(service);
+            } finally {
+                limit.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        } catch (Exception e) {
+            log.error("Fleet member {} failed", name, e);
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        } finally {
+            Thread.currentThread().setName(thread);
+        }
+        return new ClusterResult(name, apiUrl, namespace, error == null, error,
+            Duration.ofNanos(started - queued), Duration.ofNanos(System.nanoTime() - started),
+            installs ? service.getLastInstallTimeline() : null, installs ? service.getLastDiagnostics() : null);
+    }
+
+    @Override
+    public void close() {
+        members.values().stream().map(service -> service.getAdminUser().getApiUrl()).distinct().forEach(ClientRegistry::close);
+    }
+}
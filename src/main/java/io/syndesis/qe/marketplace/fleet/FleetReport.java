@@ -0,0 +1,97 @@
+package io.syndesis.qe.marketplace.fleet;
+
+import io.syndesis.qe.marketplace.openshift.InstallTimeline;
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import lombok.Value;
+
+/**
+ * Results of one {@link Fleet} operation on every cluster.
+ */
+@Value
+public class FleetReport {
+
+    @Value
+    public static class ClusterResult {
+        String name;
+        String apiUrl;
+        String namespace;
+        boolean success;
+        String error;
+        /**
+         * time spent waiting for the concurrency limit of the cluster
+         */
+        Duration waited;
+        Duration duration;
+        /**
+         * install timeline of the cluster, null for operations that do not install an operator
+         */
+        InstallTimeline timeline;
+        /**
+         * pod logs and events captured while the operator was installed, null for other operations
+         */
+        Path diagnostics;
+    }
+
+    String operation;
+    Duration duration;
+    List<ClusterResult> results;
+
+    public boolean isSuccess() {
+        return results.stream().allMatch(ClusterResult::isSuccess);
+    }
+
+    public List<ClusterResult> getFailures() {
+        return results.stream().filter(result -> !result.isSuccess()).collect(Collectors.toList());
+    }
+
+    public String toJson() {
+        ObjectNode report = Parsers.createObjectNode();
+        report.put("operation", operation);
+        report.put("durationMillis", duration.toMillis());
+        report.put("success", isSuccess());
+        ArrayNode clusters = report.putArray("clusters");
+        try {
+            for (ClusterResult result : results) {
+                ObjectNode cluster = clusters.addObject()
+                    .put("name", result.getName())
+                    .put("apiUrl", result.getApiUrl())
+                    .put("namespace", result.getNamespace())
+                    .put("success", result.isSuccess())
+                    .put("error", result.getError())
+                    .put("waitedMillis", result.getWaited().toMillis())
+                    .put("durationMillis", result.getDuration().toMillis());
+                if (result.getTimeline() != null) {
+                    cluster.set("timeline", Parsers.readJsonTree(result.getTimeline().toJson()));
+                }
+                if (result.getDiagnostics() != null) {
+                    cluster.put("diagnostics", result.getDiagnostics().toString());
+                }
+            }
+            return Parsers.writePrettyJson(report);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(operation).append(" on ").append(results.size()).append(" clusters in ")
+            .append(duration.toMillis()).append(" ms, ").append(getFailures().size()).append(" failed:");
+        for (ClusterResult result : results) {
+            sb.append(String.format("%n  %-20s %-8s %8d ms (waited %d ms)%s", result.getName(), result.isSuccess() ? "OK" : "FAILED",
+                result.getDuration().toMillis(), result.getWaited().toMillis(), result.isSuccess() ? "" : " " + result.getError()
+                    + (result.getDiagnostics() == null ? "" : " (diagnostics in " + result.getDiagnostics() + ")")));
+        }
+        return sb.toString();
+    }
+}
@@ -3,24 +3,31 @@ package io.syndesis.qe.marketplace.manifests;
 import static io.syndesis.qe.marketplace.util.HelperFunctions.readResource;
 
 import io.syndesis.qe.marketplace.openshift.OpenShiftService;
+import io.syndesis.qe.marketplace.openshift.ResourceLabels;
 import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Parsers;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.io.IOUtils;
-import org.yaml.snakeyaml.Yaml;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,23 +37,94 @@ import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Handle of a bundle image, its metadata is read from the image on first access or by {@link #prefetch()}.
+ */
 @Slf4j
 public class Bundle {
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(
+        Integer.getInteger("marketplace.bundle.prefetch.threads", 4), r -> {
+            Thread thread = new Thread(r, "bundle-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
     @Getter
     private final String imageName;
-    private static final String CONTAINER_TOOL = "docker";
-    @Getter
     private Map<String, String> annotations;
-    @Getter
-    private String csv;
-    @Getter
-    private List<String> crds;
+    private ManifestContent csv;
+    private List<ManifestContent> crds;
+    private SoftReference<Map<String, Object>> parsedCsv = new SoftReference<>(null);
     private Index index;
+    private CompletableFuture<Void> metadata;
 
     Bundle(String imageName, Index index) {
         this.imageName = imageName;
         this.index = index;
-        readMetadata();
+    }
+
+    /**
+     * Starts reading the metadata in the background, a failed read is started again by the next call.
+     */
+    public synchronized CompletableFuture<Void> prefetch() {
+        if (metadata == null || metadata.isCompletedExceptionally()) {
+            metadata = CompletableFuture.runAsync(this::readMetadata, PREFETCHER);
+        }
+        return metadata;
+    }
+
+    public boolean isLoaded() {
+        CompletableFuture<Void> current = metadata;
+        return current != null && current.isDone() && !current.isCompletedExceptionally();
+    }
+
+    @SneakyThrows
+    private void load() {
+        try {
+            prefetch().join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    public Map<String, String> getAnnotations() {
+        load();
+        return annotations;
+    }
+
+    public String getCsv() {
+        load();
+        return csv == null ? null : csv.text();
+    }
+
+    /**
+     * @return the CRDs, each one is decoded when it is read from the list
+     */
+    public List<String> getCrds() {
+        load();
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return crds.get(index).text();
+            }
+
+            @Override
+            public int size() {
+                return crds.size();
+            }
+        };
+    }
+
+    /**
+     * @return digest of the annotations, CSV and CRDs, computed without decoding the manifests
+     */
+    String getContentDigest() {
+        load();
+        StringBuilder content = new StringBuilder();
+        new TreeMap<>(annotations).forEach((key, value) -> content.append(key).append('=').append(value).append('\n'));
+        content.append('\0').append(csv == null ? "" : csv.getDigest());
+        crds.forEach(crd -> content.append('\0').append(crd.getDigest()));
+        return DigestUtils.sha256Hex(content.toString());
     }
 
     private static CustomResourceDefinitionContext subscriptionContext() {
@@ -58,39 +136,26 @@ public class Bundle {
             .build();
     }
 
-    private static void unTar(TarArchiveInputStream tis, File destFolder) throws IOException {
-        TarArchiveEntry tarEntry = null;
-        while ((tarEntry = tis.getNextTarEntry()) != null) {
-            if (tarEntry.isDirectory()) {
-                new File(destFolder, tarEntry.getName()).mkdirs();
-            } else {
-                File result = new File(destFolder, tarEntry.getName());
-                FileOutputStream fos = new FileOutputStream(result);
-                IOUtils.copy(tis, fos);
-                if (result.getName().equals("layer.tar")) {
-                    unTar(new TarArchiveInputStream(new FileInputStream(result)), destFolder);
-                }
-                fos.close();
-            }
-        }
-        tis.close();
-    }
-
     @SneakyThrows
-    private static String readFile(String path) {
-        return IOUtils.toString(new FileInputStream(path), Charset.defaultCharset());
+    private static ManifestContent readFile(String path) {
+        return ManifestContent.read(Paths.get(path));
     }
 
     private void consumeManifestFolder(File manifestFolder) {
         String[] manifests = manifestFolder.list();
+        if (manifests == null) {
+            log.warn("Manifest folder {} is missing from the bundle {}", manifestFolder, imageName);
+            crds = Collections.emptyList();
+            return;
+        }
         Optional<String> csvPath = Stream.of(manifests)
             .filter(s -> s.contains("clusterserviceversion.yaml"))
             .findFirst();
         if (csvPath.isPresent()) {
             csv = readFile(Paths.get(manifestFolder.getAbsolutePath(), csvPath.get()).toString());
         } else {
-            throw new IllegalStateException(
-                "A csv entry is missing from the bundle " + imageName + " take a look at folder " + manifestFolder.getParentFile().toString());
+            // reported by the BundleValidator before the bundle gets to opm
+            log.warn("A csv entry is missing from the bundle {} take a look at folder {}", imageName, manifestFolder.getParentFile());
         }
         crds = Stream.of(manifests)
             .filter(s -> s.contains("crd.yaml"))
@@ -100,22 +165,36 @@ public class Bundle {
     }
 
     @SneakyThrows
+    @SuppressWarnings("unchecked")
     private void readMetadata() {
         Path tmpFolder = Files.createTempDirectory("bundle");
-        String outputPath = tmpFolder.toAbsolutePath() + File.separator + "bundle.tar";
-        HelperFunctions.runCmd(CONTAINER_TOOL, "pull", imageName);
-        HelperFunctions.runCmd(CONTAINER_TOOL, "save", imageName, "-o=" + outputPath);
+        try {
+            String outputPath = tmpFolder.toAbsolutePath() + File.separator + "bundle.tar";
+            index.getContainerEngine().pull(imageName);
+            index.getContainerEngine().save(imageName, Paths.get(outputPath));
 
-        try (TarArchiveInputStream inputStream = new TarArchiveInputStream(new FileInputStream(outputPath))) {
-            unTar(inputStream, tmpFolder.toFile());
-        }
-        log.info("Unzipped archive: {}", tmpFolder.toAbsolutePath());
+            Path rootFolder = tmpFolder.resolve("rootfs");
+            LayerExtractor.extract(Paths.get(outputPath), rootFolder);
+            log.info("Unzipped archive: {}", rootFolder.toAbsolutePath());
 
-        File annotationsFile = new File(tmpFolder.toFile(), Paths.get("metadata", "annotations.yaml").toString());
-        this.annotations = new Yaml().<Map<String, Map<String, String>>>load(new FileInputStream(annotationsFile)).get("annotations");
+            File annotationsFile = new File(rootFolder.toFile(), Paths.get("metadata", "annotations.yaml").toString());
+            if (annotationsFile.exists()) {
+                Map<String, Object> metadata = Parsers.readYamlMap(annotationsFile.toPath());
+                Map<String, Object> values = metadata == null || metadata.get("annotations") == null ? Collections.emptyMap()
+                    : (Map<String, Object>) metadata.get("annotations");
+                // plain scalars such as versions can be parsed as numbers
+                this.annotations = new HashMap<>();
+                values.forEach((key, value) -> annotations.put(key, value == null ? null : value.toString()));
+            } else {
+                this.annotations = Collections.emptyMap();
+            }
 
-        File manifestFolder = new File(tmpFolder.toFile(), getManifestFolder());
-        consumeManifestFolder(manifestFolder);
+            File manifestFolder = new File(rootFolder.toFile(), getManifestFolder() == null ? "manifests" : getManifestFolder());
+            consumeManifestFolder(manifestFolder);
+        } finally {
+            // the manifests are kept by ManifestContent, the extracted image is not needed anymore
+            FileUtils.deleteQuietly(tmpFolder.toFile());
+        }
     }
 
     public void createSubscription(OpenShiftService service) throws IOException {
@@ -123,20 +202,15 @@ public class Bundle {
     }
 
     private void createOperatorGroup(OpenShiftService service) throws IOException {
-        OpenShift ocp = service.getClient();
         String namespace = service.getClient().getNamespace();
 
-        CustomResourceDefinitionContext operatorGroupCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withPlural("operatorgroups")
-            .withScope("Namespaced")
-            .withVersion("v1alpha2")
-            .build();
+        CustomResourceDefinitionContext operatorGroupCrdContext = service.getDiscovery().context("operators.coreos.com", "operatorgroups");
 
         String operatorGroupYaml = readResource("openshift/create-operatorgroup.yaml")
-            .replaceAll("OPENSHIFT_PROJECT", namespace);
+            .replaceAll("OPENSHIFT_PROJECT", namespace)
+            .replaceAll("RUN_ID", ResourceLabels.runId());
 
-        ocp.customResource(operatorGroupCrdContext).createOrReplace(namespace, operatorGroupYaml);
+        service.getApplier().apply(operatorGroupCrdContext, namespace, operatorGroupYaml);
     }
 
     public void createSubscription(OpenShiftService service, String name, String channel, String startingCSV) throws IOException {
@@ -148,44 +222,56 @@ public class Bundle {
             .replaceAll("CHANNEL", channel)
             .replaceAll("STARTING_CSV", startingCSV)
             .replaceAll("NAME", name)
+            .replaceAll("RUN_ID", ResourceLabels.runId())
             .replaceAll("SOURCE", index.getOcpName());
 
         if (ocp.getProject(namespace) == null) {
             ocp.createProjectRequest(namespace);
         }
         createOperatorGroup(service);
-        ocp.customResource(subscriptionContext()).createOrReplace(namespace, subscription);
+        service.getApplier().apply(subscriptionContext(), namespace, subscription);
     }
 
     @SneakyThrows
     public static void createSubscription(OpenShiftService service, String name, String channel, String startingCSV, String source) {
-        OpenShift ocp = service.getClient();
         String namespace = service.getClient().getNamespace();
         String subscription = HelperFunctions.readResource("openshift/create-subscriptionindex.yaml");
         subscription = subscription.replaceAll("NAMESPACE", namespace)
             .replaceAll("CHANNEL", channel)
             .replaceAll("STARTING_CSV", startingCSV)
             .replaceAll("NAME", name)
+            .replaceAll("RUN_ID", ResourceLabels.runId())
             .replaceAll("SOURCE", source);
 
-        ocp.customResource(subscriptionContext()).createOrReplace(namespace, subscription);
+        service.getApplier().apply(subscriptionContext(), namespace, subscription);
     }
 
+    /**
+     * @return the declared default channel, the first channel otherwise, null when the bundle declares no channels
+     */
     public String getDefaultChannel() {
-        String val = annotations.get("operators.operatorframework.io.bundle.channel.default.v1");
-        return val == null ? getChannels()[0] : val;
+        String val = getAnnotations().get("operators.operatorframework.io.bundle.channel.default.v1");
+        if (val != null) {
+            return val;
+        }
+        String[] channels = getChannels();
+        return channels.length == 0 ? null : channels[0];
     }
 
+    /**
+     * @return the channels of the bundle, empty when the channels annotation is missing
+     */
     public String[] getChannels() {
-        return annotations.get("operators.operatorframework.io.bundle.channels.v1").split(",");
+        String channels = getAnnotations().get("operators.operatorframework.io.bundle.channels.v1");
+        return channels == null || channels.trim().isEmpty() ? new String[0] : channels.split(",");
     }
 
     public String getMediaType() {
-        return annotations.get("operators.operatorframework.io.bundle.mediatype.v1");
+        return getAnnotations().get("operators.operatorframework.io.bundle.mediatype.v1");
     }
 
     public String getPackageName() {
-        return annotations.get("operators.operatorframework.io.bundle.package.v1");
+        return getAnnotations().get("operators.operatorframework.io.bundle.package.v1");
     }
 
     private String getManifestFolder() {
@@ -197,6 +283,46 @@ public class Bundle {
     }
 
     public String getCSVName() {
-        return ((String) new Yaml().<Map<String, Map<String, Object>>>load(getCsv()).get("metadata").get("name"));
+        return (String) csvSection("metadata").get("name");
+    }
+
+    public String getVersion() {
+        Object version = csvSection("spec").get("version");
+        return version == null ? null : version.toString();
+    }
+
+    public String getReplaces() {
+        return (String) csvSection("spec").get("replaces");
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> getSkips() {
+        List<String> skips = (List<String>) csvSection("spec").get("skips");
+        return skips == null ? Collections.emptyList() : skips;
+    }
+
+    @SuppressWarnings("unchecked")
+    public String getSkipRange() {
+        Map<String, String> csvAnnotations = (Map<String, String>) csvSection("metadata").get("annotations");
+        return csvAnnotations == null ? null : csvAnnotations.get("olm.skipRange");
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized Map<String, Object> csvSection(String section) {
+        load();
+        if (csv == null) {
+            throw new IllegalStateException("A csv entry is missing from the bundle " + imageName);
+        }
+        Map<String, Object> parsed = parsedCsv.get();
+        if (parsed == null) {
+            try {
+                parsed = Parsers.readYamlMap(csv.text());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            parsedCsv = new SoftReference<>(parsed);
+        }
+        Map<String, Object> content = (Map<String, Object>) parsed.get(section);
+        return content == null ? Collections.emptyMap() : content;
     }
 }
@@ -0,0 +1,137 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Builds reproducible operator bundle images straight into an {@link OciLayoutEngine}, without any daemon. A rebuild of
+ * unchanged inputs returns the existing image.
+ */
+@Slf4j
+public class BundleBuilder {
+
+    private static final String MANIFESTS_ANNOTATION = "operators.operatorframework.io.bundle.manifests.v1";
+    private static final String METADATA_ANNOTATION = "operators.operatorframework.io.bundle.metadata.v1";
+
+    private final OciLayoutEngine engine;
+
+    public BundleBuilder(OciLayoutEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return digest of the image manifest
+     */
+    public String build(String image, Path manifestsFolder, Map<String, String> annotations) throws IOException {
+        Map<String, String> sortedAnnotations = new TreeMap<>(annotations);
+        sortedAnnotations.putIfAbsent(MANIFESTS_ANNOTATION, "manifests/");
+        sortedAnnotations.putIfAbsent(METADATA_ANNOTATION, "metadata/");
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(manifestsFolder)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        String sourceDigest = sourceDigest(manifestsFolder, files, sortedAnnotations);
+        Optional<JsonNode> existing = engine.findManifest(image);
+        if (existing.isPresent()
+            && sourceDigest.equals(existing.get().path("annotations").path(OciLayoutEngine.SOURCE_DIGEST_ANNOTATION).asText())
+            && Files.exists(engine.blob(existing.get().get("digest").asText()))) {
+            log.info("Bundle {} is up to date", image);
+            return existing.get().get("digest").asText();
+        }
+
+        OciLayoutEngine.BlobDescriptor layer = writeLayer(manifestsFolder, files, sortedAnnotations);
+
+        ObjectNode config = Parsers.createObjectNode();
+        config.put("architecture", "amd64");
+        config.put("os", "linux");
+        config.putObject("config").set("Labels", Parsers.json().valueToTree(sortedAnnotations));
+        ObjectNode rootfs = config.putObject("rootfs");
+        rootfs.put("type", "layers");
+        rootfs.putArray("diff_ids").add(layer.getDigest());
+
+        ObjectNode manifest = Parsers.createObjectNode();
+        manifest.put("schemaVersion", 2);
+        manifest.put("mediaType", OciLayoutEngine.MANIFEST_MEDIA_TYPE);
+        manifest.set("config", engine.descriptor(OciLayoutEngine.CONFIG_MEDIA_TYPE, engine.writeBlob(Parsers.writeCanonicalJson(config))));
+        manifest.putArray("layers").add(engine.descriptor(OciLayoutEngine.LAYER_MEDIA_TYPE, layer));
+
+        ObjectNode descriptor = engine.descriptor(OciLayoutEngine.MANIFEST_MEDIA_TYPE, engine.writeBlob(Parsers.writeCanonicalJson(manifest)));
+        descriptor.putObject("annotations").put(OciLayoutEngine.SOURCE_DIGEST_ANNOTATION, sourceDigest);
+        engine.tag(image, descriptor);
+        log.info("Built bundle {} as {}", image, descriptor.get("digest").asText());
+        return descriptor.get("digest").asText();
+    }
+
+    private OciLayoutEngine.BlobDescriptor writeLayer(Path manifestsFolder, List<Path> files, Map<String, String> annotations)
+        throws IOException {
+        String manifestsDir = folder(annotations.get(MANIFESTS_ANNOTATION));
+        String metadataDir = folder(annotations.get(METADATA_ANNOTATION));
+        byte[] annotationsYaml = Parsers.writeYamlBytes(Collections.singletonMap("annotations", annotations));
+
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        Path upload = engine.newBlobFile();
+        try (OutputStream os = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(upload)), digest);
+            TarArchiveOutputStream tos = new TarArchiveOutputStream(os)) {
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            OciLayoutEngine.putEntry(tos, manifestsDir, null, 0);
+            for (Path file : files) {
+                try (InputStream is = Files.newInputStream(file)) {
+                    OciLayoutEngine.putEntry(tos, manifestsDir + relative(manifestsFolder, file), is, Files.size(file));
+                }
+            }
+            OciLayoutEngine.putEntry(tos, metadataDir, null, 0);
+            OciLayoutEngine.putEntry(tos, metadataDir + "annotations.yaml", new ByteArrayInputStream(annotationsYaml),
+                annotationsYaml.length);
+        }
+        return engine.commitBlob(upload, Hex.encodeHexString(digest.digest()));
+    }
+
+    private String sourceDigest(Path manifestsFolder, List<Path> files, Map<String, String> annotations) throws IOException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        for (Path file : files) {
+            digest.update(relative(manifestsFolder, file).getBytes(StandardCharsets.UTF_8));
+            try (InputStream is = Files.newInputStream(file)) {
+                digest.update(DigestUtils.sha256(is));
+            }
+        }
+        annotations.forEach((key, value) -> digest.update((key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8)));
+        return "sha256:" + Hex.encodeHexString(digest.digest());
+    }
+
+    private static String relative(Path folder, Path file) {
+        return folder.relativize(file).toString().replace('\\', '/');
+    }
+
+    private static String folder(String name) {
+        String trimmed = name.startsWith("/") ? name.substring(1) : name;
+        return trimmed.endsWith("/") ? trimmed : trimmed + "/";
+    }
+}
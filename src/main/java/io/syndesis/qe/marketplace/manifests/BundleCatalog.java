@@ -0,0 +1,107 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lookup of index bundles by package, channel, CSV name and owned CRD.
+ * <p>
+ * The keys are read from each bundle once when it is added, queries are plain hash lookups and never parse the manifests.
+ */
+public class BundleCatalog {
+
+    private final List<Bundle> bundles = new CopyOnWriteArrayList<>();
+    private final Map<String, Bundle> byCsvName = new HashMap<>();
+    private final Map<String, List<Bundle>> byPackage = new HashMap<>();
+    private final Map<String, List<Bundle>> byChannel = new HashMap<>();
+    private final Map<String, List<Bundle>> byOwnedCrd = new HashMap<>();
+
+    public synchronized void addAll(Collection<Bundle> added) {
+        added.forEach(this::add);
+    }
+
+    public synchronized void add(Bundle bundle) {
+        if (byCsvName.putIfAbsent(bundle.getCSVName(), bundle) != null) {
+            return;
+        }
+        bundles.add(bundle);
+        index(byPackage, bundle.getPackageName(), bundle);
+        for (String channel : bundle.getChannels()) {
+            index(byChannel, channelKey(bundle.getPackageName(), channel.trim()), bundle);
+        }
+        for (String crd : ownedCrds(bundle)) {
+            index(byOwnedCrd, crd, bundle);
+        }
+    }
+
+    /**
+     * @return all the bundles in the order they were added
+     */
+    public List<Bundle> getBundles() {
+        return Collections.unmodifiableList(bundles);
+    }
+
+    public synchronized Optional<Bundle> findByCsvName(String csvName) {
+        return Optional.ofNullable(byCsvName.get(csvName));
+    }
+
+    public synchronized List<Bundle> findByPackage(String packageName) {
+        return lookup(byPackage, packageName);
+    }
+
+    public synchronized List<Bundle> findByChannel(String packageName, String channel) {
+        return lookup(byChannel, channelKey(packageName, channel));
+    }
+
+    /**
+     * @return bundles owning the CRD, matched as CSVs declare it in {@code spec.customresourcedefinitions.owned}
+     */
+    public synchronized List<Bundle> findByOwnedCrd(String group, String version, String kind) {
+        return lookup(byOwnedCrd, crdKey(group, version, kind));
+    }
+
+    private static void index(Map<String, List<Bundle>> index, String key, Bundle bundle) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new ArrayList<>()).add(bundle);
+        }
+    }
+
+    private static List<Bundle> lookup(Map<String, List<Bundle>> index, String key) {
+        List<Bundle> found = index.get(key);
+        return found == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(found));
+    }
+
+    /**
+     * Owned CRDs are named {@code <plural>.<group>}, the group is whatever follows the first dot.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> ownedCrds(Bundle bundle) {
+        Map<String, Object> definitions = (Map<String, Object>) bundle.csvSection("spec").get("customresourcedefinitions");
+        List<Map<String, Object>> owned = definitions == null ? null : (List<Map<String, Object>>) definitions.get("owned");
+        if (owned == null) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>();
+        for (Map<String, Object> crd : owned) {
+            String name = (String) crd.get("name");
+            if (name != null && name.contains(".")) {
+                keys.add(crdKey(name.substring(name.indexOf('.') + 1), (String) crd.get("version"), (String) crd.get("kind")));
+            }
+        }
+        return keys;
+    }
+
+    private static String channelKey(String packageName, String channel) {
+        return packageName + "/" + channel;
+    }
+
+    private static String crdKey(String group, String version, String kind) {
+        return group + "/" + version + "/" + kind;
+    }
+}
@@ -0,0 +1,212 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checks bundles before they are added to an index, so broken bundles are reported before opm runs.
+ * <p>
+ * Bundles are validated concurrently and the result is cached by the digest of the bundle contents.
+ */
+@Slf4j
+public final class BundleValidator {
+
+    static final List<String> REQUIRED_ANNOTATIONS = Arrays.asList(
+        "operators.operatorframework.io.bundle.mediatype.v1",
+        "operators.operatorframework.io.bundle.manifests.v1",
+        "operators.operatorframework.io.bundle.metadata.v1",
+        "operators.operatorframework.io.bundle.package.v1",
+        "operators.operatorframework.io.bundle.channels.v1");
+
+    private static final Pattern IMAGE_REFERENCE = Pattern.compile(
+        "^[a-z0-9]+(?:[._-][a-z0-9]+)*(?:\\.[a-z0-9]+(?:[._-][a-z0-9]+)*)*(?::[0-9]+)?"
+            + "(?:/[a-z0-9]+(?:(?:[._]|__|-+)[a-z0-9]+)*)*"
+            + "(?::[\\w][\\w.-]{0,127})?(?:@sha256:[a-f0-9]{64})?$");
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "bundle-validator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, List<String>> RESULTS = new ConcurrentHashMap<>();
+
+    private BundleValidator() {
+    }
+
+    public static ValidationReport validate(Collection<Bundle> bundles) {
+        return validateAsync(bundles).join();
+    }
+
+    /**
+     * @return report completed when all the bundles are validated
+     */
+    public static CompletableFuture<ValidationReport> validateAsync(Collection<Bundle> bundles) {
+        List<Bundle> ordered = new ArrayList<>(bundles);
+        List<CompletableFuture<List<String>>> results = ordered.stream()
+            .map(bundle -> CompletableFuture.supplyAsync(() -> validate(bundle), EXECUTOR))
+            .collect(Collectors.toList());
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            ValidationReport report = new ValidationReport();
+            for (int i = 0; i < ordered.size(); i++) {
+                report.add(ordered.get(i).getImageName(), results.get(i).join());
+            }
+            return report;
+        });
+    }
+
+    /**
+     * @return problems found in the bundle, empty when it is valid
+     */
+    public static List<String> validate(Bundle bundle) {
+        String contentDigest;
+        try {
+            contentDigest = bundle.getContentDigest();
+        } catch (Exception e) {
+            // not cached, the metadata is read again by the next validation
+            log.debug("Reading bundle {} failed", bundle.getImageName(), e);
+            return Collections.singletonList("Bundle metadata can not be read: " + e);
+        }
+        return RESULTS.computeIfAbsent(contentDigest, d -> {
+            log.debug("Validating bundle {}", bundle.getImageName());
+            List<String> problems = new ArrayList<>();
+            Map<String, String> annotations = bundle.getAnnotations() == null ? Collections.emptyMap() : bundle.getAnnotations();
+            validateAnnotations(annotations, problems);
+            if (bundle.getCsv() == null) {
+                problems.add("CSV is missing from the manifests folder");
+            } else {
+                validateCsv(bundle, problems);
+            }
+            return Collections.unmodifiableList(problems);
+        });
+    }
+
+    private static void validateAnnotations(Map<String, String> annotations, List<String> problems) {
+        for (String key : REQUIRED_ANNOTATIONS) {
+            if (annotations.get(key) == null || annotations.get(key).trim().isEmpty()) {
+                problems.add("Annotation " + key + " is missing");
+            }
+        }
+        String channels = annotations.get("operators.operatorframework.io.bundle.channels.v1");
+        String defaultChannel = annotations.get("operators.operatorframework.io.bundle.channel.default.v1");
+        if (channels != null && defaultChannel != null
+            && Arrays.stream(channels.split(",")).map(String::trim).noneMatch(defaultChannel::equals)) {
+            problems.add("Default channel " + defaultChannel + " is not one of the channels " + channels);
+        }
+    }
+
+    private static void validateCsv(Bundle bundle, List<String> problems) {
+        Map<String, Object> csv;
+        try {
+            csv = Parsers.readYamlMap(bundle.getCsv());
+        } catch (IOException e) {
+            problems.add("CSV is not valid YAML: " + e.getMessage());
+            return;
+        }
+        if (csv == null) {
+            problems.add("CSV is empty");
+            return;
+        }
+        if (!"ClusterServiceVersion".equals(csv.get("kind"))) {
+            problems.add("CSV kind is " + csv.get("kind"));
+        }
+        if (map(csv.get("metadata")).get("name") == null) {
+            problems.add("CSV metadata.name is missing");
+        }
+        if (!(csv.get("spec") instanceof Map)) {
+            problems.add("CSV spec is missing");
+            return;
+        }
+        Map<String, Object> spec = map(csv.get("spec"));
+        if (spec.get("version") == null) {
+            problems.add("CSV spec.version is missing");
+        }
+
+        List<Object> images = new ArrayList<>();
+        List<Object> deployments = list(map(map(spec.get("install")).get("spec")).get("deployments"));
+        if (deployments.isEmpty()) {
+            problems.add("CSV spec.install.spec.deployments is missing");
+        } else {
+            for (Object deployment : deployments) {
+                images.addAll(containerImages(deployment));
+            }
+        }
+        for (Object related : list(spec.get("relatedImages"))) {
+            images.add(map(related).get("image"));
+        }
+        for (Object image : images) {
+            if (!(image instanceof String) || !IMAGE_REFERENCE.matcher((String) image).matches()) {
+                problems.add("Image reference " + image + " is not valid");
+            }
+        }
+
+        List<Object> owned = list(map(spec.get("customresourcedefinitions")).get("owned"));
+        if (!owned.isEmpty()) {
+            List<Map<String, Object>> crds = new ArrayList<>();
+            for (String crd : bundle.getCrds()) {
+                try {
+                    crds.add(map(Parsers.readYamlMap(crd)));
+                } catch (IOException e) {
+                    problems.add("CRD is not valid YAML: " + e.getMessage());
+                }
+            }
+            for (Object entry : owned) {
+                Map<String, Object> ownedCrd = map(entry);
+                if (crds.stream().noneMatch(crd -> matches(crd, ownedCrd))) {
+                    problems.add("Owned CRD " + ownedCrd.get("name") + " " + ownedCrd.get("version") + " " + ownedCrd.get("kind")
+                        + " is not in the bundle");
+                }
+            }
+        }
+    }
+
+    private static List<Object> containerImages(Object deployment) {
+        List<Object> containers = list(map(map(map(map(deployment).get("spec")).get("template")).get("spec")).get("containers"));
+        if (containers.isEmpty()) {
+            return Collections.singletonList(null);
+        }
+        return containers.stream().map(container -> map(container).get("image")).collect(Collectors.toList());
+    }
+
+    private static boolean matches(Map<String, Object> crd, Map<String, Object> ownedCrd) {
+        Map<String, Object> spec = map(crd.get("spec"));
+        if (ownedCrd.get("name") == null || !Objects.equals(ownedCrd.get("name"), map(crd.get("metadata")).get("name"))
+            || !Objects.equals(ownedCrd.get("kind"), map(spec.get("names")).get("kind"))) {
+            return false;
+        }
+        Object version = ownedCrd.get("version");
+        if (version == null) {
+            return false;
+        }
+        return version.equals(spec.get("version"))
+            || list(spec.get("versions")).stream().anyMatch(v -> version.equals(map(v).get("name")));
+    }
+
+    /**
+     * @return the value when it is a map, an empty map otherwise, so missing or malformed sections read as empty
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Object value) {
+        return value instanceof List ? (List<Object>) value : Collections.emptyList();
+    }
+}
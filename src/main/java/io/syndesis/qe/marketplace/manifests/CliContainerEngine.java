@@ -0,0 +1,42 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.HelperFunctions;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Runs image operations by the docker (or a docker compatible) command line tool.
+ */
+public class CliContainerEngine implements ContainerEngine {
+
+    private final String tool;
+
+    public CliContainerEngine(String tool) {
+        this.tool = tool;
+    }
+
+    @Override
+    public void pull(String image) {
+        HelperFunctions.runCmd(tool, "pull", image);
+    }
+
+    @Override
+    public void save(String image, Path archive) {
+        HelperFunctions.runCmd(tool, "save", image, "-o=" + archive.toAbsolutePath());
+    }
+
+    @Override
+    public void push(String image, File configFolder) {
+        if (configFolder != null) {
+            HelperFunctions.runCmd(tool, "--config", configFolder.getAbsolutePath(), "push", image);
+        } else {
+            HelperFunctions.runCmd(tool, "push", image);
+        }
+    }
+
+    @Override
+    public String getBuildTool() {
+        return tool;
+    }
+}
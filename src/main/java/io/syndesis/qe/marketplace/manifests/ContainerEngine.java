@@ -0,0 +1,44 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Image operations needed to inspect bundles and publish indexes.
+ */
+public interface ContainerEngine {
+
+    /**
+     * Makes the image available to {@link #save(String, Path)}.
+     */
+    void pull(String image);
+
+    /**
+     * Writes the image as a tar archive, either in the {@code docker save} or the OCI image layout format.
+     */
+    void save(String image, Path archive);
+
+    /**
+     * @param configFolder - folder with a docker config.json holding the registry credentials, may be null
+     */
+    void push(String image, File configFolder);
+
+    /**
+     * @return whether {@link #push(String, File)} uploads the image to its registry, so clusters can pull it
+     */
+    default boolean isPublishing() {
+        return true;
+    }
+
+    /**
+     * @return tool used by opm to build index images, null when opm only generates the database for {@link #buildIndex}
+     */
+    String getBuildTool();
+
+    /**
+     * Builds an index image from the database generated by {@code opm index add --generate}.
+     */
+    default void buildIndex(String image, Path database) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " builds indexes by opm");
+    }
+}
@@ -1,29 +1,47 @@
 package io.syndesis.qe.marketplace.manifests;
 
+import static io.syndesis.qe.marketplace.util.HelperFunctions.deleteCustomResource;
 import static io.syndesis.qe.marketplace.util.HelperFunctions.readResource;
-import static io.syndesis.qe.marketplace.util.HelperFunctions.waitFor;
+import static io.syndesis.qe.marketplace.util.HelperFunctions.waitForCustomResources;
 
+import io.syndesis.qe.marketplace.openshift.ClientRegistry;
 import io.syndesis.qe.marketplace.openshift.OpenShiftService;
-import io.syndesis.qe.marketplace.quay.QuayService;
+import io.syndesis.qe.marketplace.openshift.ResourceLabels;
 import io.syndesis.qe.marketplace.quay.QuayUser;
-import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Deadline;
+import io.syndesis.qe.marketplace.util.Parsers;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import io.fabric8.kubernetes.api.model.Pod;
+import cz.xtf.core.openshift.OpenShift;
 import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
-import io.fabric8.openshift.client.OpenShiftClient;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -32,81 +50,381 @@ public class Index {
     private final String name;
     @Getter
     private String ocpName;
-    private List<Bundle> bundles;
+    private final BundleCatalog catalog = new BundleCatalog();
+    private final UpgradeGraph upgradeGraph = new UpgradeGraph();
+    private final List<Bundle> unindexed = new ArrayList<>();
     private Opm opm;
     private boolean isPushed;
-    private static final String BUILD_TOOL = "docker";
+    @Getter
+    @Setter
+    private boolean validateBundles = true;
+    @Getter
+    @Setter
+    private boolean prefetchBundles = true;
     static final String MARKETPLACE_NAMESPACE = "openshift-marketplace";
-    private static QuayService quaySvc;
+    private static final long CATALOG_TIMEOUT = 10 * 60;
+    /**
+     * digests of pushed indexes by their content key, one file per image
+     */
+    private static final Path INDEX_RECORDS = Paths.get(System.getProperty("java.io.tmpdir"), "marketplace-index-records");
     private static File configFile;
+    /**
+     * credentials for the registry of the index and the bundles, set by {@link #pull(QuayUser)},
+     * {@link #addBundles(QuayUser, String...)} and {@link #push(QuayUser)}
+     */
+    private QuayUser registryUser;
+    /**
+     * digest of the pulled image the index started from
+     */
+    private String baseIndex;
+    /**
+     * reference of the pulled image opm adds the bundles to, null for an index built from the bundles only
+     */
+    private String fromIndex;
+    /**
+     * images of all bundles added to the index, opm adds them all on every run
+     */
+    private final Set<String> bundleImages = new LinkedHashSet<>();
+    @Getter
+    private String contentKey;
+    /**
+     * whether the last bundles were found in the registry, so opm and the push were skipped
+     */
+    @Getter
+    private boolean reused;
 
     Index(String name, Opm opm) {
         this.name = name;
-        bundles = new ArrayList<>();
         isPushed = false;
         this.opm = opm;
     }
 
-    void createConfig(QuayUser user) {
+    /**
+     * Writes the docker config with the credentials of the user for quay.io and the registries of the images.
+     */
+    void createConfig(QuayUser user, String... images) {
         try {
-            File configFolder = Files.createTempDirectory("marketplace-docker-config").toFile();
-            configFile = new File(configFolder, "config.json");
+            File configFolder = configFile != null && configFile.getParentFile().isDirectory()
+                ? configFile.getParentFile() : Files.createTempDirectory("marketplace-docker-config").toFile();
             String auth = user.getUserName() + ":" + user.getPassword();
             String encodedAuth = new String(Base64.getEncoder().encode(auth.getBytes()));
-            String contents = "{\"auths\": {\"quay.io\": {\"auth\": \"" + encodedAuth + "\"}}}";
-            try (FileWriter fileWriter = new FileWriter(configFile)) {
-                IOUtils.write(contents, fileWriter);
+            ObjectNode config = Parsers.createObjectNode();
+            ObjectNode auths = config.putObject("auths");
+            auths.putObject("quay.io").put("auth", encodedAuth);
+            for (String image : images) {
+                auths.putObject(RegistryClient.registry(image)).put("auth", encodedAuth);
             }
+            Path tmp = Files.createTempFile(configFolder.toPath(), "config", ".json.tmp");
+            Parsers.writeJson(tmp, config);
+            Files.move(tmp, configFolder.toPath().resolve("config.json"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            configFile = new File(configFolder, "config.json");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     void pull(QuayUser user) {
-        HelperFunctions.runCmd(BUILD_TOOL, "pull", this.name);
+        registryUser = user;
+        getContainerEngine().pull(this.name);
+        try {
+            baseIndex = RegistryClient.digest(this.name, user).orElse(null);
+            // by digest, pushing the index replaces the tag
+            fromIndex = baseIndex == null ? null : this.name.replaceFirst(":[^:/]*$", "") + "@" + baseIndex;
+        } catch (IOException e) {
+            log.debug("Unable to read the digest of index {}: {}", name, e.getMessage());
+            baseIndex = this.name;
+            fromIndex = this.name;
+        }
+    }
+
+    ContainerEngine getContainerEngine() {
+        return opm.getContainerEngine();
     }
 
     public Bundle addBundle(String bundleName) {
-        opm.runOpmCmd("index", "add", "--bundles=" + bundleName, "--tag=" + this.name, "--build-tool=" + BUILD_TOOL);
+        return addBundles(bundleName).get(0);
+    }
+
+    public Bundle addBundle(String bundleName, Duration deadline) {
+        try (Deadline adding = Deadline.start("add bundle " + bundleName, deadline)) {
+            return addBundle(bundleName);
+        }
+    }
+
+    /**
+     * Adds the bundles to the index by a single opm run. opm builds the index from the pulled index, if any, with all
+     * the bundles added so far, so the index serves all bundles of the {@link #getCatalog() catalog}.
+     * <p>
+     * The bundle metadata is read in the background when {@link #isPrefetchBundles()} is set, otherwise on first access.
+     * When {@link #isValidateBundles()} is set the bundles are validated while opm runs, and the call fails with the
+     * report after opm when any of them is invalid.
+     * <p>
+     * The index is content addressed: when the image in the registry was pushed from the same bundles and base index,
+     * as recorded by an earlier {@link #push(QuayUser)}, neither opm nor the push run again.
+     *
+     * @throws IllegalStateException with the aggregated {@link ValidationReport} when any of the bundles is invalid
+     */
+    public List<Bundle> addBundles(String... names) {
+        return addBundles(registryUser, names);
+    }
+
+    /**
+     * @param user - credentials reading the digests of the bundles and of the index from the registry, may be null
+     * @see #addBundles(String...)
+     */
+    public List<Bundle> addBundles(QuayUser user, String... names) {
+        registryUser = user;
+        List<Bundle> added = Stream.of(names).map(bundleName -> new Bundle(bundleName, this)).collect(Collectors.toList());
+        if (prefetchBundles) {
+            added.forEach(Bundle::prefetch);
+        }
+        publishBuiltBundles(added);
+        CompletableFuture<ValidationReport> validation = validateBundles ? BundleValidator.validateAsync(added) : null;
+
+        Set<String> images = new LinkedHashSet<>(bundleImages);
+        images.addAll(Arrays.asList(names));
+        String key = contentKey(images);
+        boolean published = isPublished(key);
+        try {
+            if (published) {
+                log.info("Index {} with the same bundles is already in the registry, skipping opm and push", name);
+            } else {
+                runOpm(images);
+            }
+        } catch (RuntimeException e) {
+            // opm fails on broken bundles as well, the report tells why
+            checkValid(validation, e);
+            throw e;
+        }
+        checkValid(validation, null);
+        reused = published;
+        bundleImages.addAll(images);
+        contentKey = key;
         isPushed = false;
-        Bundle bundle = new Bundle(bundleName, this);
-        bundles.add(bundle);
-        return bundle;
+        synchronized (unindexed) {
+            unindexed.addAll(added);
+        }
+        return added;
     }
 
-    public void addBundles(String... names) {
-        for (String name : names) {
-            addBundle(name);
+    private static void checkValid(CompletableFuture<ValidationReport> validation, RuntimeException opmFailure) {
+        if (validation == null) {
+            return;
+        }
+        ValidationReport report = validation.join();
+        if (!report.isValid()) {
+            IllegalStateException invalid = new IllegalStateException(report.toString());
+            if (opmFailure != null) {
+                invalid.addSuppressed(opmFailure);
+            }
+            throw invalid;
+        }
+    }
+
+    /**
+     * Pushes the bundles built into the layout of the engine, opm reads the bundles from their registry.
+     */
+    private void publishBuiltBundles(List<Bundle> bundles) {
+        if (!(getContainerEngine() instanceof OciLayoutEngine)) {
+            return;
+        }
+        OciLayoutEngine engine = (OciLayoutEngine) getContainerEngine();
+        List<String> built = bundles.stream().map(Bundle::getImageName).filter(engine::isBuilt).collect(Collectors.toList());
+        if (built.isEmpty()) {
+            return;
+        }
+        File configFolder = null;
+        if (registryUser != null) {
+            createConfig(registryUser, built.toArray(new String[0]));
+            configFolder = configFile.getParentFile();
+        }
+        for (String image : built) {
+            engine.push(image, configFolder);
+        }
+    }
+
+    /**
+     * Builds the index by opm, or by the container engine from the database opm generates when the engine has no build
+     * tool. The index is built from the pulled index with all bundles added so far, the images of earlier runs may not
+     * be pushed.
+     */
+    @SneakyThrows
+    private void runOpm(Set<String> images) {
+        List<String> args = new ArrayList<>(Arrays.asList("index", "add", "--bundles=" + String.join(",", images), "--tag=" + this.name));
+        if (fromIndex != null) {
+            args.add("--from-index=" + fromIndex);
+        }
+        String buildTool = getContainerEngine().getBuildTool();
+        if (buildTool != null) {
+            args.add("--build-tool=" + buildTool);
+            opm.runOpmCmd(args.toArray(new String[0]));
+            return;
+        }
+        Path work = Files.createTempDirectory("opm-index");
+        try {
+            args.add("--generate");
+            args.add("--out-dockerfile=index.Dockerfile");
+            opm.runOpmCmd(work.toFile(), args.toArray(new String[0]));
+            getContainerEngine().buildIndex(this.name, work.resolve("database").resolve("index.db"));
+        } finally {
+            FileUtils.deleteQuietly(work.toFile());
+        }
+    }
+
+    /**
+     * @return the catalog of all added bundles, waits for the metadata of bundles that were not indexed yet
+     */
+    public BundleCatalog getCatalog() {
+        indexBundles();
+        return catalog;
+    }
+
+    /**
+     * @return the upgrade graph of all added bundles, waits for the metadata of bundles that were not indexed yet
+     */
+    public UpgradeGraph getUpgradeGraph() {
+        indexBundles();
+        return upgradeGraph;
+    }
+
+    private void indexBundles() {
+        synchronized (unindexed) {
+            for (Bundle bundle : unindexed) {
+                catalog.add(bundle);
+                upgradeGraph.add(bundle);
+            }
+            unindexed.clear();
         }
     }
 
     @SneakyThrows
     public void push(QuayUser user) {
-        if (quaySvc == null) {
-            quaySvc = new QuayService(user, null, null);
+        registryUser = user;
+        createConfig(user, name);
+        if (reused) {
+            log.info("Index {} is unchanged in the registry, skipping push", name);
+            isPushed = true;
+            return;
         }
-        if (configFile == null || !configFile.exists()) {
-            createConfig(user);
+        getContainerEngine().push(name, configFile.getParentFile());
+        // an image kept only locally can not be pulled by the cluster
+        isPushed = getContainerEngine().isPublishing();
+        if (isPushed && contentKey != null) {
+            writeRecord(user);
         }
-        HelperFunctions.runCmd(BUILD_TOOL, "--config", configFile.getParent(), "push", name);
-        isPushed = true;
     }
 
-    private static CustomResourceDefinitionContext catalogSourceIndex() {
-        return new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withVersion("v1alpha1")
-            .withName("CatalogSource")
-            .withPlural("catalogsources")
-            .withScope("Namespaced")
-            .build();
+    /**
+     * The digests of bundles referenced by tag are read from the registry, the bundles are not pulled for the key.
+     *
+     * @return key of the bundles and the base index, the sorted manifest digests of the bundle images, null when the
+     * registry does not serve a bundle
+     */
+    private String contentKey(Set<String> images) {
+        List<String> digests = new ArrayList<>();
+        for (String image : images) {
+            try {
+                Optional<String> digest = RegistryClient.digest(image, registryUser);
+                if (!digest.isPresent()) {
+                    log.debug("Bundle {} is not in its registry, index {} is not content addressed", image, name);
+                    return null;
+                }
+                digests.add(digest.get());
+            } catch (IOException e) {
+                log.debug("Unable to read the digest of bundle {}: {}", image, e.getMessage());
+                return null;
+            }
+        }
+        Collections.sort(digests);
+        return DigestUtils.sha256Hex("base=" + (baseIndex == null ? "" : baseIndex) + "\n" + String.join("\n", digests));
+    }
+
+    /**
+     * @return whether the image in the registry is the one recorded for the key
+     */
+    private boolean isPublished(String key) {
+        Path record = recordFile();
+        if (key == null || !Files.exists(record)) {
+            return false;
+        }
+        try {
+            Map<String, Object> published = Parsers.readJsonMap(Files.readAllBytes(record));
+            if (!key.equals(published.get("key"))) {
+                return false;
+            }
+            Optional<String> remote = RegistryClient.digest(name, registryUser);
+            return remote.isPresent() && remote.get().equals(published.get("digest"));
+        } catch (IOException e) {
+            log.warn("Unable to check whether index {} is published: {}", name, e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeRecord(QuayUser user) {
+        try {
+            Optional<String> digest = RegistryClient.digest(name, user);
+            if (!digest.isPresent()) {
+                return;
+            }
+            Map<String, Object> record = new HashMap<>();
+            record.put("image", name);
+            record.put("key", contentKey);
+            record.put("digest", digest.get());
+            Files.createDirectories(INDEX_RECORDS);
+            Parsers.writeJson(recordFile(), record);
+        } catch (IOException e) {
+            log.warn("Unable to record the push of index {}: {}", name, e.getMessage());
+        }
+    }
+
+    private Path recordFile() {
+        return INDEX_RECORDS.resolve(DigestUtils.sha256Hex(name) + ".json");
+    }
+
+    private static CustomResourceDefinitionContext catalogSources(OpenShiftService service) {
+        return service.getDiscovery().context("operators.coreos.com", "catalogsources");
+    }
+
+    private static CustomResourceDefinitionContext packageManifests(OpenShiftService service) {
+        return service.getDiscovery().context("packages.operators.coreos.com", "packagemanifests");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String connectionState(Map<String, Object> catalogSource) {
+        Map<String, Object> status = (Map<String, Object>) catalogSource.get("status");
+        if (status == null || status.get("connectionState") == null) {
+            return null;
+        }
+        return (String) ((Map<String, Object>) status.get("connectionState")).get("lastObservedState");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String name(Map<String, Object> resource) {
+        return (String) ((Map<String, Object>) resource.get("metadata")).get("name");
     }
 
     public void addIndexToCluster(OpenShiftService service, String catalogName) throws IOException, TimeoutException, InterruptedException {
+        addIndexToCluster(service, catalogName, null);
+    }
+
+    /**
+     * Creates the catalog source and waits until it serves the packages of the index.
+     */
+    public void addIndexToCluster(OpenShiftService service, String catalogName, Duration deadline)
+        throws IOException, TimeoutException, InterruptedException {
+        try (ClientRegistry.Lease lease = service.leaseClient();
+            Deadline adding = Deadline.start("add index " + catalogName, deadline)) {
+            adding.addCleanup(() -> removeIndexFromCluster(service));
+            createCatalogSource(service, catalogName, adding);
+        }
+    }
+
+    private void createCatalogSource(OpenShiftService service, String catalogName, Deadline deadline)
+        throws IOException, TimeoutException, InterruptedException {
         if (!isPushed) {
-            throw new IllegalStateException("You forgot to push the index image to quay");
+            throw new IllegalStateException("Index image " + name + " was not pushed to a registry, push it with an engine that publishes images");
         }
-        OpenShiftClient ocp = service.getClient();
+        OpenShift ocp = service.getClient();
 
         String catalogSource = null;
         try {
@@ -117,16 +435,25 @@ public class Index {
         this.ocpName = catalogName;
         catalogSource = catalogSource.replaceAll("IMAGE", name)
             .replaceAll("DISPLAY_NAME", catalogName)
-            .replaceAll("NAME", catalogName);
-        ocp.customResource(catalogSourceIndex()).createOrReplace(MARKETPLACE_NAMESPACE, catalogSource);
-        Predicate<Pod> podFound = pod ->
-            pod.getMetadata().getName().startsWith(catalogName)
-                && "Running".equalsIgnoreCase(pod.getStatus().getPhase());
-        waitFor(() -> ocp.pods().inNamespace("openshift-marketplace").list()
-            .getItems().stream().anyMatch(podFound), 5, 60 * 1000);
+            .replaceAll("NAME", catalogName)
+            .replaceAll("RUN_ID", ResourceLabels.runId());
+        service.getApplier().apply(catalogSources(service), MARKETPLACE_NAMESPACE, catalogSource);
+
+        log.info("Waiting for catalog source '{}' to be ready", catalogName);
+        try (Deadline ready = deadline.share("catalog source " + catalogName + " ready", 0.5)) {
+            waitForCustomResources(ocp, catalogSources(service), MARKETPLACE_NAMESPACE, catalogName, null,
+                sources -> sources.stream().anyMatch(source -> "READY".equals(connectionState(source))), CATALOG_TIMEOUT);
+        }
+
+        Set<String> expectedPackages = getCatalog().getBundles().stream().map(Bundle::getPackageName).collect(Collectors.toSet());
+        log.info("Waiting for packages {} to be served by catalog '{}'", expectedPackages, catalogName);
+        try (Deadline served = deadline.share("packages of catalog " + catalogName + " served", 1.0)) {
+            waitForCustomResources(ocp, packageManifests(service), MARKETPLACE_NAMESPACE, null, Collections.singletonMap("catalog", catalogName),
+                manifests -> manifests.stream().map(Index::name).collect(Collectors.toSet()).containsAll(expectedPackages), CATALOG_TIMEOUT);
+        }
     }
 
     public void removeIndexFromCluster(OpenShiftService service) {
-        service.getClient().customResource(catalogSourceIndex()).delete(MARKETPLACE_NAMESPACE, ocpName);
+        deleteCustomResource(service.getClient(), catalogSources(service), MARKETPLACE_NAMESPACE, ocpName);
     }
 }
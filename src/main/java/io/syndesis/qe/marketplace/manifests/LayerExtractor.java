@@ -0,0 +1,337 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Unpacks a saved image (output of {@code docker save} or an OCI archive) into a single filesystem.
+ * <p>
+ * Layers are extracted concurrently into a cache keyed by their digest, shared with other processes, and merged in
+ * order. Layers not used for {@code marketplace.layers.cache.ttl} seconds are evicted.
+ */
+@Slf4j
+class LayerExtractor {
+
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+    private static final Path CACHE = Paths.get(System.getProperty("java.io.tmpdir"), "marketplace-layers");
+    private static final long CACHE_TTL = Long.getLong("marketplace.layers.cache.ttl", 7 * 24 * 60 * 60);
+    private static final AtomicBoolean EVICTED = new AtomicBoolean();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "layer-extractor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, CompletableFuture<Path>> LAYERS = new ConcurrentHashMap<>();
+
+    private LayerExtractor() {
+    }
+
+    static void extract(Path imageArchive, Path destination) throws IOException {
+        Path imageFolder = Files.createTempDirectory("image");
+        try {
+            unTar(imageArchive, imageFolder);
+            List<Path> layers = readLayers(imageFolder);
+            log.debug("Image {} has {} layers", imageArchive, layers.size());
+
+            List<CompletableFuture<Path>> staged = layers.stream()
+                .map(LayerExtractor::stage)
+                .collect(Collectors.toList());
+
+            Files.createDirectories(destination);
+            for (CompletableFuture<Path> layer : staged) {
+                merge(layer.join(), destination);
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(imageFolder.toFile());
+        }
+    }
+
+    static void unTar(Path archive, Path destFolder) throws IOException {
+        try (TarArchiveInputStream tis = open(archive)) {
+            unTar(tis, destFolder);
+        }
+    }
+
+    private static List<Path> readLayers(Path imageFolder) throws IOException {
+        List<Path> layers = new ArrayList<>();
+        if (Files.exists(imageFolder.resolve("manifest.json"))) {
+            JsonNode manifest = Parsers.readJsonTree(imageFolder.resolve("manifest.json"));
+            for (JsonNode layer : manifest.get(0).get("Layers")) {
+                layers.add(imageFolder.resolve(layer.asText()));
+            }
+        } else {
+            JsonNode index = Parsers.readJsonTree(imageFolder.resolve("index.json"));
+            JsonNode descriptor = OciLayoutEngine.resolveImageManifest(index.get("manifests").get(0), digest -> blob(imageFolder, digest));
+            JsonNode manifest = Parsers.readJsonTree(blob(imageFolder, descriptor.get("digest").asText()));
+            for (JsonNode layer : manifest.get("layers")) {
+                layers.add(blob(imageFolder, layer.get("digest").asText()));
+            }
+        }
+        return layers;
+    }
+
+    private static Path blob(Path imageFolder, String digest) {
+        String[] parts = digest.split(":");
+        return imageFolder.resolve("blobs").resolve(parts[0]).resolve(parts[1]);
+    }
+
+    private static CompletableFuture<Path> stage(Path layerArchive) {
+        if (EVICTED.compareAndSet(false, true)) {
+            evict();
+        }
+        // blobs of OCI archives are already named by their digest
+        CompletableFuture<String> layerDigest = "sha256".equals(layerArchive.getParent().getFileName().toString())
+            ? CompletableFuture.completedFuture(layerArchive.getFileName().toString())
+            : CompletableFuture.supplyAsync(() -> digest(layerArchive), EXECUTOR);
+        return layerDigest.thenCompose(digest -> {
+            CompletableFuture<Path> known = LAYERS.get(digest);
+            if (known != null && known.isDone() && !known.isCompletedExceptionally() && !Files.isDirectory(known.join())) {
+                // deleted behind our back, by a temp cleaner or the eviction of another process
+                LAYERS.remove(digest, known);
+            }
+            return LAYERS.computeIfAbsent(digest, d -> {
+                CompletableFuture<Path> future = CompletableFuture.supplyAsync(() -> unpack(layerArchive, d), EXECUTOR);
+                future.whenComplete((path, error) -> {
+                    if (error != null) {
+                        LAYERS.remove(d);
+                    }
+                });
+                return future;
+            });
+        }).thenApply(LayerExtractor::touch);
+    }
+
+    private static String digest(Path file) {
+        try (InputStream is = Files.newInputStream(file)) {
+            return DigestUtils.sha256Hex(is);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Path unpack(Path layerArchive, String digest) {
+        Path layer = CACHE.resolve(digest);
+        try {
+            if (Files.isDirectory(layer)) {
+                log.debug("Reusing extracted layer {}", digest);
+                return layer;
+            }
+            Files.createDirectories(CACHE);
+            Path tmp = CACHE.resolve(digest + ".tmp-" + RandomStringUtils.random(8, true, true));
+            try {
+                unTar(layerArchive, tmp);
+                Files.move(tmp, layer, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                // another process extracted the same layer first, its copy is as good as ours
+                if (!Files.isDirectory(layer)) {
+                    throw e;
+                }
+                log.debug("Layer {} was extracted by another process", digest);
+            } finally {
+                FileUtils.deleteQuietly(tmp.toFile());
+            }
+            return layer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Path touch(Path layer) {
+        try {
+            Files.setLastModifiedTime(layer, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("Unable to mark layer {} as used: {}", layer, e.getMessage());
+        }
+        return layer;
+    }
+
+    /**
+     * A layer is renamed before it is deleted, so other processes never see a partly deleted layer.
+     */
+    private static void evict() {
+        if (!Files.isDirectory(CACHE)) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(CACHE_TTL);
+        try (Stream<Path> entries = Files.list(CACHE)) {
+            for (Path entry : entries.collect(Collectors.toList())) {
+                if (entry.getFileName().toString().contains(".evict-")) {
+                    // left over by an eviction that did not finish
+                    FileUtils.deleteQuietly(entry.toFile());
+                    continue;
+                }
+                if (Files.getLastModifiedTime(entry).toMillis() >= oldest) {
+                    continue;
+                }
+                Path evicted = entry.resolveSibling(entry.getFileName() + ".evict-" + RandomStringUtils.random(8, true, true));
+                try {
+                    Files.move(entry, evicted, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    continue;
+                }
+                log.debug("Evicting unused layer {}", entry.getFileName());
+                FileUtils.deleteQuietly(evicted.toFile());
+            }
+        } catch (IOException e) {
+            log.warn("Unable to evict unused layers from {}: {}", CACHE, e.getMessage());
+        }
+    }
+
+    private static TarArchiveInputStream open(Path archive) throws IOException {
+        InputStream is = new BufferedInputStream(Files.newInputStream(archive));
+        is.mark(2);
+        byte[] signature = new byte[2];
+        int read = is.read(signature);
+        is.reset();
+        if (GzipCompressorInputStream.matches(signature, read)) {
+            is = new GzipCompressorInputStream(is);
+        }
+        return new TarArchiveInputStream(is);
+    }
+
+    private static void unTar(TarArchiveInputStream tis, Path destFolder) throws IOException {
+        Files.createDirectories(destFolder);
+        Path root = destFolder.toRealPath();
+        TarArchiveEntry tarEntry;
+        while ((tarEntry = tis.getNextTarEntry()) != null) {
+            Path target = destFolder.resolve(tarEntry.getName()).normalize();
+            if (!target.startsWith(destFolder)) {
+                throw new IOException("Entry " + tarEntry.getName() + " is outside of the target folder");
+            }
+            if (tarEntry.isDirectory()) {
+                Files.createDirectories(target);
+                continue;
+            }
+            if (!tarEntry.isFile() && !tarEntry.isSymbolicLink() && !tarEntry.isLink()) {
+                log.debug("Skipping special entry {}", tarEntry.getName());
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            // a symbolic link extracted before must not lead the entry out of the target folder
+            if (!target.getParent().toRealPath().startsWith(root)) {
+                throw new IOException("Entry " + tarEntry.getName() + " is outside of the target folder");
+            }
+            Files.deleteIfExists(target);
+            if (tarEntry.isSymbolicLink()) {
+                Files.createSymbolicLink(target, Paths.get(tarEntry.getLinkName()));
+            } else if (tarEntry.isLink()) {
+                // hard links point to an entry of the same archive, a copy keeps the cached layers independent
+                Path linked = destFolder.resolve(tarEntry.getLinkName()).normalize();
+                if (!linked.startsWith(destFolder) || !Files.isRegularFile(linked, LinkOption.NOFOLLOW_LINKS)
+                    || !linked.getParent().toRealPath().startsWith(root)) {
+                    throw new IOException("Hard link " + tarEntry.getName() + " points to a missing entry " + tarEntry.getLinkName());
+                }
+                Files.copy(linked, target);
+            } else {
+                Files.copy(tis, target);
+            }
+        }
+    }
+
+    private static void merge(Path layer, Path destination) throws IOException {
+        Path root = destination.toRealPath();
+        List<Path> entries;
+        try (Stream<Path> walk = Files.walk(layer)) {
+            entries = walk.filter(p -> !p.equals(layer)).sorted().collect(Collectors.toList());
+        }
+        for (Path entry : entries) {
+            String name = entry.getFileName().toString();
+            Path target = destination.resolve(layer.relativize(entry).toString());
+            // the directories of the layer replace links of the lower layers, so whiteouts never apply through a link
+            if (OPAQUE_WHITEOUT.equals(name)) {
+                if (throughDirectories(destination, target)) {
+                    FileUtils.cleanDirectory(target.getParent().toFile());
+                }
+            } else if (name.startsWith(WHITEOUT_PREFIX)) {
+                Path whitedOut = target.resolveSibling(name.substring(WHITEOUT_PREFIX.length()));
+                if (throughDirectories(destination, whitedOut) && Files.exists(whitedOut, LinkOption.NOFOLLOW_LINKS)) {
+                    delete(whitedOut);
+                }
+            }
+        }
+        for (Path entry : entries) {
+            if (entry.getFileName().toString().startsWith(WHITEOUT_PREFIX)) {
+                continue;
+            }
+            Path target = destination.resolve(layer.relativize(entry).toString());
+            if (!target.getParent().toRealPath().startsWith(root)) {
+                throw new IOException("Entry " + layer.relativize(entry) + " is outside of the target folder");
+            }
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(target);
+                }
+                Files.createDirectories(target);
+            } else {
+                if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                    FileUtils.deleteDirectory(target.toFile());
+                }
+                // symbolic links are copied as links
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+    }
+
+    /**
+     * Whether all parents of path below root are directories, not links.
+     */
+    private static boolean throughDirectories(Path root, Path path) {
+        Path current = root;
+        for (Path name : root.relativize(path.getParent())) {
+            current = current.resolve(name);
+            if (!Files.isDirectory(current, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            FileUtils.deleteDirectory(path.toFile());
+        } else {
+            Files.delete(path);
+        }
+    }
+}
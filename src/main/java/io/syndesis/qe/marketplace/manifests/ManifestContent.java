@@ -0,0 +1,198 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * UTF-8 content of a bundle manifest, kept gzipped on heap or in a content addressed file and decoded on each access.
+ * <p>
+ * Manifests bigger than {@code marketplace.bundle.file.threshold} bytes (1 MiB by default) are stored in files that are
+ * memory mapped for reading. Smaller manifests stay on heap until all of them together take
+ * {@code marketplace.bundle.heap.budget} bytes (64 MiB by default), the following ones go to files too.
+ * <p>
+ * Once a content is garbage collected its bytes are returned to the budget, and its file is deleted when no other content
+ * with the same digest uses it. The files are kept in a temporary directory of this JVM, which is deleted on exit.
+ */
+@Slf4j
+final class ManifestContent {
+
+    private static final long FILE_THRESHOLD = Long.getLong("marketplace.bundle.file.threshold", 1024 * 1024);
+    private static final long HEAP_BUDGET = Long.getLong("marketplace.bundle.heap.budget", 64 * 1024 * 1024);
+    private static final AtomicLong HEAP_USED = new AtomicLong();
+    private static final ReferenceQueue<ManifestContent> COLLECTED = new ReferenceQueue<>();
+    /**
+     * keeps the releases reachable until their content is collected
+     */
+    private static final Set<Release> RELEASES = ConcurrentHashMap.newKeySet();
+    /**
+     * number of live contents stored in each file
+     */
+    private static final Map<Path, Integer> FILE_USERS = new HashMap<>();
+    private static Path store;
+
+    /**
+     * sha256 of the content
+     */
+    @Getter
+    private final String digest;
+    /**
+     * size of the content in bytes
+     */
+    @Getter
+    private final long size;
+    private final byte[] compressed;
+    private final Path file;
+
+    private ManifestContent(String digest, long size, byte[] compressed, Path file) {
+        this.digest = digest;
+        this.size = size;
+        this.compressed = compressed;
+        this.file = file;
+    }
+
+    static ManifestContent read(Path source) throws IOException {
+        releaseCollected();
+        long size = Files.size(source);
+        if (size <= FILE_THRESHOLD) {
+            MessageDigest sha = DigestUtils.getSha256Digest();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream is = new DigestInputStream(Files.newInputStream(source), sha);
+                OutputStream os = new GZIPOutputStream(bytes)) {
+                IOUtils.copy(is, os);
+            }
+            String digest = Hex.encodeHexString(sha.digest());
+            if (reserve(bytes.size())) {
+                return track(new ManifestContent(digest, size, bytes.toByteArray(), null));
+            }
+            log.debug("Heap budget of {} bytes for bundle manifests is used up, storing {} in a file", HEAP_BUDGET, source);
+            return track(new ManifestContent(digest, size, null, store(source, digest)));
+        }
+        String digest;
+        try (InputStream is = Files.newInputStream(source)) {
+            digest = DigestUtils.sha256Hex(is);
+        }
+        return track(new ManifestContent(digest, size, null, store(source, digest)));
+    }
+
+    private static boolean reserve(long bytes) {
+        long used;
+        do {
+            used = HEAP_USED.get();
+            if (used + bytes > HEAP_BUDGET) {
+                return false;
+            }
+        } while (!HEAP_USED.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    private static ManifestContent track(ManifestContent content) {
+        RELEASES.add(new Release(content));
+        return content;
+    }
+
+    /**
+     * Returns the heap and files of the contents collected since the last call.
+     */
+    static void releaseCollected() {
+        Reference<? extends ManifestContent> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            ((Release) collected).release();
+        }
+    }
+
+    /**
+     * Files are named by their digest, so the same CRD shipped by many bundles is stored once.
+     */
+    private static synchronized Path store(Path source, String digest) throws IOException {
+        if (store == null) {
+            store = Files.createTempDirectory("marketplace-bundle-content");
+            Path created = store;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteQuietly(created.toFile()), "bundle-content-cleanup"));
+        }
+        Path target = store.resolve(digest);
+        if (!Files.exists(target)) {
+            Files.copy(source, target);
+        }
+        FILE_USERS.merge(target, 1, Integer::sum);
+        return target;
+    }
+
+    private static synchronized void unstore(Path file) {
+        if (FILE_USERS.merge(file, -1, Integer::sum) <= 0) {
+            FILE_USERS.remove(file);
+            FileUtils.deleteQuietly(file.toFile());
+        }
+    }
+
+    boolean isFileBacked() {
+        return file != null;
+    }
+
+    String text() {
+        try {
+            if (compressed != null) {
+                try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                    return IOUtils.toString(is, StandardCharsets.UTF_8);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return StandardCharsets.UTF_8.decode(buffer).toString();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs after the content is collected, so it holds what to release instead of the content itself.
+     */
+    private static final class Release extends PhantomReference<ManifestContent> {
+        private final long heapBytes;
+        private final Path file;
+
+        Release(ManifestContent content) {
+            super(content, COLLECTED);
+            heapBytes = content.compressed == null ? 0 : content.compressed.length;
+            file = content.file;
+        }
+
+        void release() {
+            RELEASES.remove(this);
+            HEAP_USED.addAndGet(-heapBytes);
+            if (file != null) {
+                unstore(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps images as an OCI image layout on local disk, so equal blobs are stored once. Images missing in the layout come
+ * from the fallback engine, or from their registry without one.
+ */
+@Slf4j
+public class OciLayoutEngine implements ContainerEngine {
+
+    static final String REF_NAME_ANNOTATION = "org.opencontainers.image.ref.name";
+    static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+    static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+    static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar";
+    static final String GZIP_LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar+gzip";
+    static final String DOCKER_MANIFEST_MEDIA_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+    static final String DOCKER_GZIP_LAYER_MEDIA_TYPE = "application/vnd.docker.image.rootfs.diff.tar.gzip";
+    static final String SOURCE_DIGEST_ANNOTATION = "io.syndesis.qe.marketplace.source-digest";
+    private static final String DATABASE_LABEL = "operators.operatorframework.io.index.database.v1";
+    private static final String DATABASE = "/database/index.db";
+    private static final String PLATFORM = System.getProperty("marketplace.image.platform", "linux/amd64");
+
+    @Getter
+    private final Path root;
+    private final ContainerEngine fallback;
+
+    public OciLayoutEngine(Path root) {
+        this(root, null);
+    }
+
+    @SneakyThrows
+    public OciLayoutEngine(Path root, ContainerEngine fallback) {
+        this.root = root;
+        this.fallback = fallback;
+        Files.createDirectories(root.resolve("blobs").resolve("sha256"));
+        if (Files.notExists(root.resolve("oci-layout"))) {
+            Files.write(root.resolve("oci-layout"), "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes());
+        }
+        if (Files.notExists(root.resolve("index.json"))) {
+            writeIndex(emptyIndex());
+        }
+    }
+
+    public synchronized boolean contains(String image) {
+        return findManifest(image).isPresent();
+    }
+
+    public synchronized boolean isBuilt(String image) {
+        return findManifest(image).map(descriptor -> descriptor.path("annotations").has(SOURCE_DIGEST_ANNOTATION)).orElse(false);
+    }
+
+    @Override
+    @SneakyThrows
+    public void pull(String image) {
+        if (contains(image)) {
+            return;
+        }
+        if (fallback != null) {
+            importFromFallback(image);
+        } else {
+            importFromRegistry(image);
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public void save(String image, Path archive) {
+        JsonNode descriptor;
+        List<String> digests = new ArrayList<>();
+        synchronized (this) {
+            descriptor = findManifest(image).orElseThrow(() -> new IllegalStateException("Image " + image + " is not in " + root));
+        }
+        descriptor = resolveImageManifest(descriptor, this::blob);
+        String manifestDigest = descriptor.get("digest").asText();
+        JsonNode manifest = Parsers.readJsonTree(blob(manifestDigest));
+        digests.add(manifestDigest);
+        digests.add(manifest.get("config").get("digest").asText());
+        manifest.get("layers").forEach(layer -> digests.add(layer.get("digest").asText()));
+
+        ObjectNode index = emptyIndex();
+        ((ArrayNode) index.get("manifests")).add(descriptor);
+
+        try (TarArchiveOutputStream tos = new TarArchiveOutputStream(new BufferedOutputStream(Files.newOutputStream(archive)))) {
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            putEntry(tos, "blobs/", null, 0);
+            putEntry(tos, "blobs/sha256/", null, 0);
+            for (String digest : digests.stream().distinct().sorted().toArray(String[]::new)) {
+                Path blob = blob(digest);
+                try (InputStream is = Files.newInputStream(blob)) {
+                    putEntry(tos, "blobs/sha256/" + hex(digest), is, Files.size(blob));
+                }
+            }
+            byte[] indexJson = Parsers.writeJson(index);
+            putEntry(tos, "index.json", new ByteArrayInputStream(indexJson), indexJson.length);
+            byte[] layout = Files.readAllBytes(root.resolve("oci-layout"));
+            putEntry(tos, "oci-layout", new ByteArrayInputStream(layout), layout.length);
+        }
+    }
+
+    /**
+     * Images built in the layout are uploaded from it, others are pushed by the fallback engine.
+     */
+    @Override
+    @SneakyThrows
+    public void push(String image, File configFolder) {
+        Optional<JsonNode> stored = findManifest(image);
+        if (fallback != null && !isBuilt(image)) {
+            fallback.push(image, configFolder);
+            return;
+        }
+        JsonNode descriptor = resolveImageManifest(
+            stored.orElseThrow(() -> new IllegalStateException("Image " + image + " is not in " + root)), this::blob);
+        String digest = descriptor.get("digest").asText();
+        RegistryClient.Session registry = RegistryClient.session(image, RegistryClient.credentials(configFolder, image));
+        if (registry.digest().map(digest::equals).orElse(false)) {
+            log.info("Image {} is already in its registry", image);
+            return;
+        }
+        byte[] content = Files.readAllBytes(blob(digest));
+        JsonNode manifest = Parsers.json().readTree(content);
+        List<String> blobs = new ArrayList<>();
+        blobs.add(manifest.get("config").get("digest").asText());
+        manifest.get("layers").forEach(layer -> blobs.add(layer.get("digest").asText()));
+        for (String blob : blobs) {
+            if (!registry.hasBlob(blob)) {
+                registry.uploadBlob(blob, blob(blob));
+            }
+        }
+        registry.putManifest(content, manifest.path("mediaType").asText(descriptor.path("mediaType").asText(MANIFEST_MEDIA_TYPE)));
+        log.info("Pushed image {} as {}", image, digest);
+    }
+
+    @Override
+    public boolean isPublishing() {
+        return fallback == null || fallback.isPublishing();
+    }
+
+    @Override
+    public String getBuildTool() {
+        return fallback == null ? null : fallback.getBuildTool();
+    }
+
+    /**
+     * Builds the index on top of the {@code marketplace.opm.builder} image.
+     */
+    @Override
+    @SneakyThrows
+    public void buildIndex(String image, Path database) {
+        String builder = System.getProperty("marketplace.opm.builder", "quay.io/operator-framework/upstream-opm-builder:latest");
+        pull(builder);
+        JsonNode base = resolveImageManifest(findManifest(builder).get(), this::blob);
+        ObjectNode manifest = (ObjectNode) Parsers.readJsonTree(blob(base.get("digest").asText()));
+        ObjectNode config = (ObjectNode) Parsers.readJsonTree(blob(manifest.get("config").get("digest").asText()));
+        String mediaType = manifest.path("mediaType").asText(base.path("mediaType").asText(MANIFEST_MEDIA_TYPE));
+
+        MessageDigest diffId = DigestUtils.getSha256Digest();
+        MessageDigest compressed = DigestUtils.getSha256Digest();
+        Path upload = newBlobFile();
+        try {
+            try (OutputStream os = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(upload)), compressed);
+                TarArchiveOutputStream tos = new TarArchiveOutputStream(new DigestOutputStream(new GzipCompressorOutputStream(os), diffId))) {
+                putEntry(tos, "database/", null, 0);
+                try (InputStream is = Files.newInputStream(database)) {
+                    putEntry(tos, "database/index.db", is, Files.size(database));
+                }
+            }
+            BlobDescriptor layer = commitBlob(upload, Hex.encodeHexString(compressed.digest()));
+            String layerDiffId = "sha256:" + Hex.encodeHexString(diffId.digest());
+
+            ObjectNode container = object(config, "config");
+            object(container, "Labels").put(DATABASE_LABEL, DATABASE);
+            object(container, "ExposedPorts").putObject("50051/tcp");
+            container.putArray("Entrypoint").add("/bin/opm");
+            container.putArray("Cmd").add("registry").add("serve").add("--database").add(DATABASE);
+            ((ArrayNode) object(config, "rootfs").withArray("diff_ids")).add(layerDiffId);
+            if (config.path("history").isArray()) {
+                ((ArrayNode) config.get("history")).addObject().put("created_by", "opm index add");
+            }
+            manifest.set("config", descriptor(manifest.get("config").get("mediaType").asText(), writeBlob(Parsers.writeCanonicalJson(config))));
+            manifest.withArray("layers").add(descriptor(
+                DOCKER_MANIFEST_MEDIA_TYPE.equals(mediaType) ? DOCKER_GZIP_LAYER_MEDIA_TYPE : GZIP_LAYER_MEDIA_TYPE, layer));
+
+            ObjectNode descriptor = descriptor(mediaType, writeBlob(Parsers.writeCanonicalJson(manifest)));
+            descriptor.putObject("annotations").put(SOURCE_DIGEST_ANNOTATION, layerDiffId);
+            tag(image, descriptor);
+            log.info("Built index {} as {}", image, descriptor.get("digest").asText());
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    public void importArchive(String image, Path archive) throws IOException {
+        Path extracted = Files.createTempDirectory("oci-import");
+        try {
+            LayerExtractor.unTar(archive, extracted);
+            JsonNode descriptor;
+            if (Files.exists(extracted.resolve("index.json"))) {
+                JsonNode index = Parsers.readJsonTree(extracted.resolve("index.json"));
+                try (Stream<Path> blobs = Files.list(extracted.resolve("blobs").resolve("sha256"))) {
+                    for (Path blob : (Iterable<Path>) blobs::iterator) {
+                        writeBlob(blob);
+                    }
+                }
+                descriptor = resolveImageManifest(index.get("manifests").get(0), this::blob);
+            } else {
+                JsonNode dockerManifest = Parsers.readJsonTree(extracted.resolve("manifest.json")).get(0);
+                ObjectNode manifest = Parsers.createObjectNode();
+                manifest.put("schemaVersion", 2);
+                manifest.put("mediaType", MANIFEST_MEDIA_TYPE);
+                manifest.set("config", descriptor(CONFIG_MEDIA_TYPE, writeBlob(extracted.resolve(dockerManifest.get("Config").asText()))));
+                ArrayNode layers = manifest.putArray("layers");
+                for (JsonNode layer : dockerManifest.get("Layers")) {
+                    Path layerFile = extracted.resolve(layer.asText());
+                    layers.add(descriptor(isGzip(layerFile) ? GZIP_LAYER_MEDIA_TYPE : LAYER_MEDIA_TYPE, writeBlob(layerFile)));
+                }
+                descriptor = descriptor(MANIFEST_MEDIA_TYPE, writeBlob(Parsers.writeJson(manifest)));
+            }
+            tag(image, descriptor);
+        } finally {
+            FileUtils.deleteQuietly(extracted.toFile());
+        }
+    }
+
+    synchronized void tag(String image, JsonNode manifestDescriptor) throws IOException {
+        ObjectNode descriptor = manifestDescriptor.deepCopy();
+        if (!descriptor.has("annotations")) {
+            descriptor.putObject("annotations");
+        }
+        ((ObjectNode) descriptor.get("annotations")).put(REF_NAME_ANNOTATION, image);
+        ObjectNode index = (ObjectNode) Parsers.readJsonTree(root.resolve("index.json"));
+        ArrayNode manifests = (ArrayNode) index.get("manifests");
+        for (Iterator<JsonNode> it = manifests.iterator(); it.hasNext(); ) {
+            JsonNode existing = it.next();
+            if (existing.has("annotations") && image.equals(existing.get("annotations").path(REF_NAME_ANNOTATION).asText())) {
+                it.remove();
+            }
+        }
+        manifests.add(descriptor);
+        writeIndex(index);
+    }
+
+    synchronized Optional<JsonNode> findManifest(String image) {
+        try {
+            for (JsonNode manifest : Parsers.readJsonTree(root.resolve("index.json")).get("manifests")) {
+                if (image.equals(manifest.path("annotations").path(REF_NAME_ANNOTATION).asText())) {
+                    return Optional.of(manifest);
+                }
+            }
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    BlobDescriptor writeBlob(Path file) throws IOException {
+        String hex;
+        try (InputStream is = Files.newInputStream(file)) {
+            hex = DigestUtils.sha256Hex(is);
+        }
+        Path target = root.resolve("blobs").resolve("sha256").resolve(hex);
+        if (Files.notExists(target)) {
+            Path tmp = target.resolveSibling(hex + ".tmp-" + RandomStringUtils.random(8, true, true));
+            Files.copy(file, tmp);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new BlobDescriptor("sha256:" + hex, Files.size(target));
+    }
+
+    BlobDescriptor writeBlob(byte[] content) throws IOException {
+        String hex = DigestUtils.sha256Hex(content);
+        Path target = root.resolve("blobs").resolve("sha256").resolve(hex);
+        if (Files.notExists(target)) {
+            Path tmp = target.resolveSibling(hex + ".tmp-" + RandomStringUtils.random(8, true, true));
+            Files.write(tmp, content);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new BlobDescriptor("sha256:" + hex, content.length);
+    }
+
+    BlobDescriptor commitBlob(Path file, String hex) throws IOException {
+        Path target = root.resolve("blobs").resolve("sha256").resolve(hex);
+        if (Files.notExists(target)) {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        return new BlobDescriptor("sha256:" + hex, Files.size(target));
+    }
+
+    Path newBlobFile() throws IOException {
+        return Files.createTempFile(root.resolve("blobs").resolve("sha256"), "upload", ".tmp");
+    }
+
+    Path blob(String digest) {
+        return root.resolve("blobs").resolve("sha256").resolve(hex(digest));
+    }
+
+    ObjectNode descriptor(String mediaType, BlobDescriptor blob) {
+        ObjectNode descriptor = Parsers.createObjectNode();
+        descriptor.put("mediaType", mediaType);
+        descriptor.put("digest", blob.getDigest());
+        descriptor.put("size", blob.getSize());
+        return descriptor;
+    }
+
+    private void importFromFallback(String image) throws IOException {
+        if (fallback == null) {
+            throw new IllegalStateException("Image " + image + " is not in " + root + " and no fallback engine is configured");
+        }
+        Path archive = Files.createTempFile("oci-import", ".tar");
+        try {
+            fallback.pull(image);
+            fallback.save(image, archive);
+            importArchive(image, archive);
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    private void importFromRegistry(String image) throws IOException {
+        RegistryClient.Session registry = RegistryClient.session(image, null);
+        RegistryClient.Manifest pulled = registry.manifest(registry.getReference());
+        JsonNode descriptor = resolveImageManifest(descriptor(pulled.getMediaType(), writeBlob(pulled.getContent())), digest -> {
+            try {
+                if (Files.notExists(blob(digest))) {
+                    writeBlob(registry.manifest(digest).getContent());
+                }
+                return blob(digest);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        JsonNode manifest = Parsers.readJsonTree(blob(descriptor.get("digest").asText()));
+        List<String> blobs = new ArrayList<>();
+        blobs.add(manifest.get("config").get("digest").asText());
+        manifest.get("layers").forEach(layer -> blobs.add(layer.get("digest").asText()));
+        for (String digest : blobs) {
+            if (Files.notExists(blob(digest))) {
+                Path download = newBlobFile();
+                try {
+                    registry.downloadBlob(digest, download);
+                    commitBlob(download, hex(digest));
+                } finally {
+                    Files.deleteIfExists(download);
+                }
+            }
+        }
+        tag(image, descriptor);
+        log.info("Pulled image {} into {}", image, root);
+    }
+
+    private static ObjectNode object(ObjectNode parent, String field) {
+        if (!parent.path(field).isObject()) {
+            parent.putObject(field);
+        }
+        return (ObjectNode) parent.get(field);
+    }
+
+    private ObjectNode emptyIndex() {
+        ObjectNode index = Parsers.createObjectNode();
+        index.put("schemaVersion", 2);
+        index.putArray("manifests");
+        return index;
+    }
+
+    private void writeIndex(JsonNode index) throws IOException {
+        Path tmp = Files.createTempFile(root, "index", ".json.tmp");
+        Parsers.writeJson(tmp, index);
+        Files.move(tmp, root.resolve("index.json"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Follows image indexes and manifest lists down to the manifest of the configured platform.
+     */
+    static JsonNode resolveImageManifest(JsonNode descriptor, Function<String, Path> blobs) throws IOException {
+        JsonNode resolved = descriptor;
+        for (int depth = 0; depth < 4; depth++) {
+            JsonNode content = Parsers.readJsonTree(blobs.apply(resolved.get("digest").asText()));
+            JsonNode manifests = content.path("manifests");
+            if (!manifests.isArray()) {
+                return resolved;
+            }
+            if (manifests.size() == 0) {
+                throw new IOException("Image index " + resolved.get("digest").asText() + " has no manifests");
+            }
+            JsonNode platformManifest = manifests.get(0);
+            for (JsonNode manifest : manifests) {
+                JsonNode platform = manifest.path("platform");
+                if (PLATFORM.equals(platform.path("os").asText() + "/" + platform.path("architecture").asText())) {
+                    platformManifest = manifest;
+                    break;
+                }
+            }
+            resolved = platformManifest;
+        }
+        throw new IOException("Image index " + descriptor.get("digest").asText() + " is nested too deep");
+    }
+
+    private static String hex(String digest) {
+        return digest.substring(digest.indexOf(':') + 1);
+    }
+
+    private static boolean isGzip(Path file) throws IOException {
+        byte[] signature = new byte[2];
+        try (InputStream is = Files.newInputStream(file)) {
+            return GzipCompressorInputStream.matches(signature, is.read(signature));
+        }
+    }
+
+    static void putEntry(TarArchiveOutputStream tos, String name, InputStream content, long size) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setModTime(new Date(0));
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName("");
+        entry.setGroupName("");
+        if (content == null) {
+            entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+            tos.putArchiveEntry(entry);
+        } else {
+            entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
+            entry.setSize(size);
+            tos.putArchiveEntry(entry);
+            IOUtils.copy(content, tos);
+        }
+        tos.closeArchiveEntry();
+    }
+
+    @Value
+    static class BlobDescriptor {
+        String digest;
+        long size;
+    }
+}
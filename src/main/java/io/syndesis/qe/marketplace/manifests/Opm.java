@@ -4,17 +4,21 @@ import io.syndesis.qe.marketplace.openshift.OpenShiftService;
 import io.syndesis.qe.marketplace.openshift.OpenShiftUser;
 import io.syndesis.qe.marketplace.quay.QuayUser;
 import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Parsers;
 
-import org.apache.commons.io.IOUtils;
-import org.json.JSONObject;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -24,56 +28,81 @@ public class Opm {
     private File binary;
     private static final String OPM_IMAGE = "registry.redhat.io/openshift4/ose-operator-registry:";
     private final OpenShiftService ocpSvc;
+    @Getter
+    private final ContainerEngine containerEngine;
 
     public Opm(OpenShiftService ocpSvc) {
+        this(ocpSvc, new CliContainerEngine("docker"));
+    }
+
+    public Opm(OpenShiftService ocpSvc, ContainerEngine containerEngine) {
         this.ocpSvc = ocpSvc;
-        try {
-            Process which = new ProcessBuilder("which", "opm").start();
-            int result = which.waitFor();
-            String path = IOUtils.toString(which.getInputStream(), Charset.defaultCharset()).trim();
-            if (result != 0) {
-                fetchOpm();
-            } else {
-                binary = new File(path);
-            }
-        } catch (InterruptedException | IOException e) {
-            throw new RuntimeException(e);
+        this.containerEngine = containerEngine;
+        binary = findOnPath().orElseGet(this::fetchOpm);
+    }
+
+    /**
+     * @return opm binary set by the {@code marketplace.opm} system property, or found in the directories of the PATH
+     * environment variable
+     */
+    public static Optional<File> findOnPath() {
+        String configured = System.getProperty("marketplace.opm");
+        if (configured != null) {
+            return Optional.of(new File(configured));
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return Optional.empty();
         }
+        return Arrays.stream(path.split(File.pathSeparator))
+            .map(dir -> new File(dir, "opm"))
+            .filter(file -> file.isFile() && file.canExecute())
+            .findFirst();
     }
 
-    //Get version of the OCP server to a suitable image tag (4.16.7 -> v4.16)
-    private String getTag() {
-        CustomResourceDefinitionContext crdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("config.openshift.io")
-            .withVersion("v1")
-            .withPlural("clusteroperators")
-            .withScope("Cluster")
-            .build();
-        JSONObject apiServer = new JSONObject(ocpSvc.getClient().customResource(crdContext).get("openshift-apiserver"));
-        String fullVersion = apiServer.getJSONObject("status").getJSONArray("versions").getJSONObject(0).getString("version");
-        return "v" + fullVersion.substring(0, fullVersion.lastIndexOf("."));
+    /**
+     * @return tag of the operator registry image matching the version of the OCP server (4.16.7 -> v4.16)
+     */
+    public static String getTag(OpenShiftService ocpSvc) {
+        CustomResourceDefinitionContext crdContext = ocpSvc.getDiscovery().context("config.openshift.io", "clusteroperators");
+        JsonNode apiServer = Parsers.json().valueToTree(ocpSvc.getClient().customResource(crdContext).get("openshift-apiserver"));
+        String fullVersion = apiServer.path("status").path("versions").path(0).path("version").asText();
+        Matcher version = Pattern.compile("^(\\d+\\.\\d+)\\.").matcher(fullVersion);
+        if (!version.find()) {
+            throw new IllegalStateException("Unable to parse the cluster version '" + fullVersion + "' of openshift-apiserver");
+        }
+        return "v" + version.group(1);
+    }
+
+    public static String getImage(OpenShiftService ocpSvc) {
+        return OPM_IMAGE + getTag(ocpSvc);
     }
 
-    private void fetchOpm() {
+    private File fetchOpm() {
         try {
             Path binaryPath = Files.createTempDirectory("opm");
             OpenShiftUser user = ocpSvc.getAdminUser();
             HelperFunctions.runCmd("oc", "login", "-u", user.getUserName(), "-p", user.getPassword(), user.getApiUrl());
-            HelperFunctions.runCmd("oc", "image", "extract", OPM_IMAGE + getTag(), "--path", "/usr/bin/registry/opm:" + binaryPath.toAbsolutePath());
-            binary = binaryPath.resolve("opm").toFile();
-            binary.setExecutable(true);
-            binary.deleteOnExit();
+            HelperFunctions.runCmd("oc", "image", "extract", getImage(ocpSvc), "--path", "/usr/bin/registry/opm:" + binaryPath.toAbsolutePath());
+            File opm = binaryPath.resolve("opm").toFile();
+            opm.setExecutable(true);
+            opm.deleteOnExit();
+            return opm;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    @SneakyThrows
     void runOpmCmd(String... args) {
+        runOpmCmd(null, args);
+    }
+
+    @SneakyThrows
+    void runOpmCmd(File directory, String... args) {
         String[] command = new String[args.length + 1];
         System.arraycopy(args, 0, command, 1, args.length);
         command[0] = binary.getAbsolutePath();
-        HelperFunctions.runCmd(command);
+        HelperFunctions.runCmd(directory, command);
     }
 
     public Index createIndex(String name) {
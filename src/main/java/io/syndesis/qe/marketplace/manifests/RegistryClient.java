@@ -0,0 +1,387 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.quay.QuayUser;
+import io.syndesis.qe.marketplace.util.Deadline;
+import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Talks to registries by the Docker registry HTTP API: reads manifest digests without pulling anything, pulls and
+ * pushes manifests and blobs.
+ * <p>
+ * Registries listed in the {@code marketplace.registry.insecure} system property, separated by commas, are called over
+ * plain HTTP.
+ */
+@Slf4j
+final class RegistryClient {
+
+    private static final String ACCEPT = String.join(",",
+        "application/vnd.oci.image.index.v1+json",
+        "application/vnd.oci.image.manifest.v1+json",
+        "application/vnd.docker.distribution.manifest.list.v2+json",
+        "application/vnd.docker.distribution.manifest.v2+json");
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private RegistryClient() {
+    }
+
+    /**
+     * @param user - credentials for private repositories, may be null
+     * @return digest of the manifest the image reference points to, empty when the registry does not have it
+     */
+    static Optional<String> digest(String image, QuayUser user) throws IOException {
+        int digestAt = image.indexOf('@');
+        if (digestAt >= 0) {
+            return Optional.of(image.substring(digestAt + 1));
+        }
+        return session(image, user == null ? null : basic(user.getUserName(), user.getPassword())).digest();
+    }
+
+    /**
+     * @param credentials - base64 encoded {@code user:password}, may be null
+     */
+    static Session session(String image, String credentials) {
+        return new Session(ImageReference.parse(image), credentials);
+    }
+
+    /**
+     * @return base64 encoded credentials for the registry of the image from the docker {@code config.json} in the
+     * folder, null when there are none
+     */
+    static String credentials(File configFolder, String image) throws IOException {
+        if (configFolder == null || !new File(configFolder, "config.json").isFile()) {
+            return null;
+        }
+        String registry = ImageReference.parse(image).registry;
+        JsonNode auths = Parsers.readJsonTree(new File(configFolder, "config.json").toPath()).path("auths");
+        for (Iterator<Map.Entry<String, JsonNode>> it = auths.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> auth = it.next();
+            String host = auth.getKey().replaceFirst("^https?://", "").replaceFirst("/.*$", "");
+            if (host.equals(registry) || "registry-1.docker.io".equals(registry) && host.endsWith("docker.io")) {
+                return auth.getValue().path("auth").asText(null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return registry host of the image reference, {@code registry-1.docker.io} for Docker Hub
+     */
+    static String registry(String image) {
+        return ImageReference.parse(image).registry;
+    }
+
+    private static String basic(String userName, String password) {
+        return Base64.getEncoder().encodeToString((userName + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Requests a bearer token as the {@code WWW-Authenticate} challenge of the registry asks for.
+     */
+    private static String token(String challenge, String credentials) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        Matcher matcher = CHALLENGE_PARAMETER.matcher(challenge);
+        while (matcher.find()) {
+            parameters.put(matcher.group(1), matcher.group(2));
+        }
+        if (!challenge.startsWith("Bearer") || !parameters.containsKey("realm")) {
+            throw new IOException("Unsupported registry authentication challenge: " + challenge);
+        }
+        try {
+            URIBuilder uri = new URIBuilder(parameters.get("realm"));
+            if (parameters.containsKey("service")) {
+                uri.addParameter("service", parameters.get("service"));
+            }
+            if (parameters.containsKey("scope")) {
+                uri.addParameter("scope", parameters.get("scope"));
+            }
+            HttpGet get = new HttpGet(uri.build());
+            if (credentials != null) {
+                get.addHeader(HttpHeaders.AUTHORIZATION, "Basic " + credentials);
+            }
+            try (CloseableHttpResponse response = execute(get)) {
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    throw new IOException("Unable to get a registry token from " + uri + ": " + response.getStatusLine());
+                }
+                Map<String, Object> token = Parsers.readJsonMap(body);
+                return (String) (token.containsKey("token") ? token.get("token") : token.get("access_token"));
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid registry token realm " + parameters.get("realm"), e);
+        }
+    }
+
+    private static CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        try (Deadline.Registration registration = Deadline.current().onCancel(request::abort)) {
+            return HelperFunctions.httpClient().execute(request);
+        }
+    }
+
+    /**
+     * Requests to the repository of an image, authorized as the challenges of the registry ask for. The token is kept
+     * for the following requests and replaced when a request needs another scope, for example to push.
+     */
+    static final class Session {
+        private final ImageReference reference;
+        private final String credentials;
+        private String authorization;
+
+        private Session(ImageReference reference, String credentials) {
+            this.reference = reference;
+            this.credentials = credentials;
+        }
+
+        /**
+         * @return tag or digest of the image reference
+         */
+        String getReference() {
+            return reference.tag;
+        }
+
+        /**
+         * @return digest of the manifest of the image reference, empty when the registry does not have it
+         */
+        Optional<String> digest() throws IOException {
+            String url = url("manifests/" + reference.tag);
+            HttpHead head = new HttpHead(url);
+            head.addHeader(HttpHeaders.ACCEPT, ACCEPT);
+            try (CloseableHttpResponse response = execute(head)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 404) {
+                    return Optional.empty();
+                }
+                Header digest = response.getFirstHeader("Docker-Content-Digest");
+                if (status != 200 || digest == null) {
+                    throw new IOException("Unable to read the manifest digest of " + url + ": " + response.getStatusLine());
+                }
+                return Optional.of(digest.getValue());
+            }
+        }
+
+        /**
+         * @param tagOrDigest - reference of the manifest in the repository
+         */
+        Manifest manifest(String tagOrDigest) throws IOException {
+            HttpGet get = new HttpGet(url("manifests/" + tagOrDigest));
+            get.addHeader(HttpHeaders.ACCEPT, ACCEPT);
+            try (CloseableHttpResponse response = execute(get)) {
+                expect(response, 200, get);
+                Header contentType = response.getEntity().getContentType();
+                return new Manifest(EntityUtils.toByteArray(response.getEntity()),
+                    contentType == null ? null : contentType.getValue().split(";")[0].trim());
+            }
+        }
+
+        void putManifest(byte[] content, String mediaType) throws IOException {
+            HttpPut put = new HttpPut(url("manifests/" + reference.tag));
+            put.setEntity(new ByteArrayEntity(content, ContentType.create(mediaType)));
+            try (CloseableHttpResponse response = execute(put)) {
+                expect(response, 201, put);
+            }
+        }
+
+        boolean hasBlob(String digest) throws IOException {
+            HttpHead head = new HttpHead(url("blobs/" + digest));
+            try (CloseableHttpResponse response = execute(head)) {
+                if (response.getStatusLine().getStatusCode() == 404) {
+                    return false;
+                }
+                expect(response, 200, head);
+                return true;
+            }
+        }
+
+        /**
+         * Downloads the blob into the file and checks its digest. Redirects to a storage are followed without the
+         * registry credentials.
+         */
+        void downloadBlob(String digest, Path file) throws IOException {
+            HttpGet get = new HttpGet(url("blobs/" + digest));
+            get.setConfig(RequestConfig.custom().setRedirectsEnabled(false).build());
+            CloseableHttpResponse response = execute(get);
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 300 && status < 400 && response.getFirstHeader(HttpHeaders.LOCATION) != null) {
+                    URI location = get.getURI().resolve(response.getFirstHeader(HttpHeaders.LOCATION).getValue());
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    response.close();
+                    get = new HttpGet(location);
+                    response = RegistryClient.execute(get);
+                }
+                expect(response, 200, get);
+                MessageDigest sha256 = DigestUtils.getSha256Digest();
+                try (InputStream is = new DigestInputStream(response.getEntity().getContent(), sha256)) {
+                    Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (!digest.equals("sha256:" + Hex.encodeHexString(sha256.digest()))) {
+                    throw new IOException("Blob " + digest + " of " + reference.repository + " does not match its digest");
+                }
+            } finally {
+                response.close();
+            }
+        }
+
+        /**
+         * Uploads the blob by a monolithic upload.
+         */
+        void uploadBlob(String digest, Path file) throws IOException {
+            HttpPost post = new HttpPost(url("blobs/uploads/"));
+            String location;
+            try (CloseableHttpResponse response = execute(post)) {
+                expect(response, 202, post);
+                Header header = response.getFirstHeader(HttpHeaders.LOCATION);
+                if (header == null) {
+                    throw new IOException("Registry " + reference.registry + " started an upload without a location");
+                }
+                location = post.getURI().resolve(header.getValue()).toString();
+            }
+            HttpPut put = new HttpPut(location + (location.contains("?") ? "&" : "?") + "digest=" + URLEncoder.encode(digest, "UTF-8"));
+            put.setEntity(new FileEntity(file.toFile(), ContentType.APPLICATION_OCTET_STREAM));
+            try (CloseableHttpResponse response = execute(put)) {
+                expect(response, 201, put);
+            }
+        }
+
+        private String url(String path) {
+            return reference.baseUrl() + "/v2/" + reference.repository + "/" + path;
+        }
+
+        private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+            if (authorization != null) {
+                request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+            }
+            CloseableHttpResponse response = RegistryClient.execute(request);
+            if (response.getStatusLine().getStatusCode() != 401) {
+                return response;
+            }
+            Header challenge = response.getFirstHeader(HttpHeaders.WWW_AUTHENTICATE);
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            if (challenge == null) {
+                throw new IOException("Registry " + reference.registry + " requires authentication without a challenge");
+            }
+            if (challenge.getValue().startsWith("Basic") && credentials != null) {
+                authorization = "Basic " + credentials;
+            } else {
+                authorization = "Bearer " + token(challenge.getValue(), credentials);
+            }
+            request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+            return RegistryClient.execute(request);
+        }
+
+        private static void expect(CloseableHttpResponse response, int status, HttpRequestBase request) throws IOException {
+            if (response.getStatusLine().getStatusCode() != status) {
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                throw new IOException(request.getMethod() + " " + request.getURI() + " failed: " + response.getStatusLine() + " " + body);
+            }
+        }
+    }
+
+    @Value
+    static class Manifest {
+        byte[] content;
+        /**
+         * content type the registry served the manifest with, may be null
+         */
+        String mediaType;
+    }
+
+    /**
+     * Registry, repository and tag of an image reference such as {@code quay.io/org/index:1.0}.
+     */
+    private static final class ImageReference {
+        private final String registry;
+        private final String repository;
+        private final String tag;
+
+        private ImageReference(String registry, String repository, String tag) {
+            this.registry = registry;
+            this.repository = repository;
+            this.tag = tag;
+        }
+
+        /**
+         * The tag is the digest for references such as {@code quay.io/org/index@sha256:...}.
+         */
+        static ImageReference parse(String image) {
+            String registry = "registry-1.docker.io";
+            String rest = image;
+            int slash = image.indexOf('/');
+            String first = slash < 0 ? "" : image.substring(0, slash);
+            if (first.contains(".") || first.contains(":") || "localhost".equals(first)) {
+                registry = "docker.io".equals(first) ? registry : first;
+                rest = image.substring(slash + 1);
+            }
+            if ("registry-1.docker.io".equals(registry) && !rest.contains("/")) {
+                rest = "library/" + rest;
+            }
+            int at = rest.indexOf('@');
+            if (at >= 0) {
+                return new ImageReference(registry, rest.substring(0, at), rest.substring(at + 1));
+            }
+            int colon = rest.lastIndexOf(':');
+            if (colon > rest.lastIndexOf('/')) {
+                return new ImageReference(registry, rest.substring(0, colon), rest.substring(colon + 1));
+            }
+            return new ImageReference(registry, rest, "latest");
+        }
+
+        String baseUrl() {
+            return (isInsecure(registry) ? "http://" : "https://") + registry;
+        }
+
+        /**
+         * The property is read on every call, so it can be changed at runtime.
+         */
+        private static boolean isInsecure(String registry) {
+            return Arrays.stream(System.getProperty("marketplace.registry.insecure", "").split(","))
+                .map(String::trim)
+                .anyMatch(registry::equals);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import io.syndesis.qe.marketplace.util.SemanticVersion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Upgrade edges between the bundles of an index, built from the {@code replaces}, {@code skips} and {@code olm.skipRange}
+ * of their CSVs.
+ * <p>
+ * Edges are kept per package channel and in both directions, and are updated as bundles are added, so queries only walk
+ * the part of the graph they need.
+ */
+@Slf4j
+public class UpgradeGraph {
+
+    private final Map<String, Bundle> bundles = new HashMap<>();
+    private final Map<String, Channel> channels = new HashMap<>();
+    private final Map<String, Set<String>> packageChannels = new HashMap<>();
+    private final Map<String, Node> newest = new HashMap<>();
+
+    public synchronized void addAll(Collection<Bundle> added) {
+        added.forEach(this::add);
+    }
+
+    public synchronized void add(Bundle bundle) {
+        String csvName = bundle.getCSVName();
+        if (bundles.containsKey(csvName)) {
+            log.debug("Bundle {} is already in the upgrade graph", csvName);
+            return;
+        }
+        bundles.put(csvName, bundle);
+        Node node = new Node(bundle);
+        for (String channel : bundle.getChannels()) {
+            packageChannels.computeIfAbsent(bundle.getPackageName(), p -> new TreeSet<>()).add(channel.trim());
+            channels.computeIfAbsent(key(bundle.getPackageName(), channel.trim()), k -> new Channel()).add(node);
+        }
+        newest.merge(bundle.getPackageName(), node, (current, added) -> compare(added, current) > 0 ? added : current);
+    }
+
+    public synchronized Optional<Bundle> getBundle(String csvName) {
+        return Optional.ofNullable(bundles.get(csvName));
+    }
+
+    public synchronized Set<String> getChannels(String packageName) {
+        return Collections.unmodifiableSet(packageChannels.getOrDefault(packageName, Collections.emptySet()));
+    }
+
+    /**
+     * @return default channel declared by the newest bundle of the package
+     */
+    public synchronized Optional<String> getDefaultChannel(String packageName) {
+        return Optional.ofNullable(newest.get(packageName)).map(node -> bundles.get(node.name).getDefaultChannel());
+    }
+
+    /**
+     * @return CSV name of the bundle no other bundle of the channel upgrades from, the newest one if there are several
+     */
+    public synchronized Optional<String> head(String packageName, String channel) {
+        Channel c = channels.get(key(packageName, channel));
+        return c == null ? Optional.empty() : Optional.ofNullable(c.head());
+    }
+
+    /**
+     * @return the shortest upgrade path including both ends, empty when {@code to} can't be reached from {@code from}
+     */
+    public synchronized List<String> path(String packageName, String channel, String from, String to) {
+        Channel c = channels.get(key(packageName, channel));
+        if (c == null) {
+            return Collections.emptyList();
+        }
+        Map<String, String> previous = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>();
+        previous.put(from, null);
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            if (current.equals(to)) {
+                LinkedList<String> path = new LinkedList<>();
+                for (String step = to; step != null; step = previous.get(step)) {
+                    path.addFirst(step);
+                }
+                return path;
+            }
+            for (String next : c.upgradesTo.getOrDefault(current, Collections.emptySet())) {
+                if (!previous.containsKey(next)) {
+                    previous.put(next, current);
+                    queue.add(next);
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return CSV names of all the bundles the given one can be reached from, including CSVs that are only referenced
+     */
+    public synchronized Set<String> predecessors(String packageName, String channel, String csvName) {
+        Channel c = channels.get(key(packageName, channel));
+        if (c == null) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>(Collections.singleton(csvName));
+        while (!queue.isEmpty()) {
+            for (String previous : c.upgradesFrom.getOrDefault(queue.poll(), Collections.emptySet())) {
+                if (!previous.equals(csvName) && result.add(previous)) {
+                    queue.add(previous);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String key(String packageName, String channel) {
+        return packageName + "/" + channel;
+    }
+
+    private static int compare(Node a, Node b) {
+        if (a.version == null || b.version == null) {
+            return a.version == null ? (b.version == null ? 0 : -1) : 1;
+        }
+        return a.version.compareTo(b.version);
+    }
+
+    private static class Node {
+        private final String name;
+        private final SemanticVersion version;
+        private final String replaces;
+        private final List<String> skips;
+        private final Predicate<SemanticVersion> skipRange;
+
+        Node(Bundle bundle) {
+            name = bundle.getCSVName();
+            version = SemanticVersion.parseOrNull(bundle.getVersion());
+            replaces = bundle.getReplaces();
+            skips = bundle.getSkips();
+            skipRange = bundle.getSkipRange() == null ? null : SemanticVersion.range(bundle.getSkipRange());
+        }
+
+        boolean skipsOver(Node other) {
+            return skipRange != null && other.version != null && other != this && skipRange.test(other.version);
+        }
+    }
+
+    private static class Channel {
+        private final Map<String, Node> members = new HashMap<>();
+        private final Map<String, Set<String>> upgradesTo = new HashMap<>();
+        private final Map<String, Set<String>> upgradesFrom = new HashMap<>();
+        private final List<Node> withSkipRange = new ArrayList<>();
+        private String head;
+
+        void add(Node node) {
+            members.put(node.name, node);
+            if (node.replaces != null) {
+                edge(node.replaces, node.name);
+            }
+            node.skips.forEach(skipped -> edge(skipped, node.name));
+            if (node.skipRange != null) {
+                members.values().stream().filter(node::skipsOver).forEach(member -> edge(member.name, node.name));
+                withSkipRange.add(node);
+            }
+            withSkipRange.stream().filter(ranged -> ranged.skipsOver(node)).forEach(ranged -> edge(node.name, ranged.name));
+            head = null;
+        }
+
+        private void edge(String from, String to) {
+            upgradesTo.computeIfAbsent(from, f -> new HashSet<>()).add(to);
+            upgradesFrom.computeIfAbsent(to, t -> new HashSet<>()).add(from);
+        }
+
+        String head() {
+            if (head == null) {
+                head = members.values().stream()
+                    .filter(member -> !upgradesTo.containsKey(member.name)
+                        || upgradesTo.get(member.name).stream().noneMatch(members::containsKey))
+                    .max(Comparator.comparing((Node member) -> member, UpgradeGraph::compare).thenComparing(member -> member.name))
+                    .map(member -> member.name)
+                    .orElse(null);
+            }
+            return head;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Problems found by the {@link BundleValidator}, grouped by bundle image.
+ */
+public class ValidationReport {
+
+    private final Map<String, List<String>> problems = new LinkedHashMap<>();
+
+    void add(String bundle, List<String> bundleProblems) {
+        if (!bundleProblems.isEmpty()) {
+            problems.put(bundle, bundleProblems);
+        }
+    }
+
+    public boolean isValid() {
+        return problems.isEmpty();
+    }
+
+    public Map<String, List<String>> getProblems() {
+        return Collections.unmodifiableMap(problems);
+    }
+
+    @Override
+    public String toString() {
+        if (isValid()) {
+            return "All bundles are valid";
+        }
+        StringBuilder sb = new StringBuilder("Invalid bundles:");
+        problems.forEach((bundle, bundleProblems) -> {
+            sb.append("\n  ").append(bundle).append(":");
+            bundleProblems.forEach(problem -> sb.append("\n    - ").append(problem));
+        });
+        return sb.toString();
+    }
+}
@@ -0,0 +1,240 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * API groups, versions and resources served by a cluster, discovered once per cluster.
+ * <p>
+ * Contexts are resolved to the preferred version of the group that serves the resource, so the same code works on
+ * clusters where OLM resources moved to a newer version. Resources the cluster does not serve fail right away, without
+ * a call to the API server. When the {@code marketplace.discovery.cache.dir} system property is set, the discovery is
+ * also stored on disk, keyed by the API URL and the server version.
+ */
+@Slf4j
+public class ApiDiscovery {
+
+    private static final Map<String, ApiDiscovery> CLUSTERS = new ConcurrentHashMap<>();
+    private static final String CACHE_DIR = System.getProperty("marketplace.discovery.cache.dir");
+
+    private volatile OpenShift client;
+    private final String apiUrl;
+
+    private String serverVersion;
+    /**
+     * served versions by group, the preferred version first
+     */
+    private Map<String, List<String>> groups;
+    /**
+     * resources of {@code <group>/<version>} by plural, with their kind and whether they are namespaced
+     */
+    private final Map<String, Map<String, Map<String, Object>>> resources = new ConcurrentHashMap<>();
+    private final Map<String, Optional<CustomResourceDefinitionContext>> contexts = new ConcurrentHashMap<>();
+
+    private ApiDiscovery(OpenShift client) {
+        this.client = client;
+        this.apiUrl = client.getMasterUrl().toString();
+    }
+
+    public static ApiDiscovery of(OpenShift client) {
+        ApiDiscovery discovery = CLUSTERS.computeIfAbsent(client.getMasterUrl().toString(), url -> new ApiDiscovery(client));
+        // the discovery outlives clients closed by the ClientRegistry, it uses the latest one
+        discovery.client = client;
+        return discovery;
+    }
+
+    /**
+     * @throws UnsupportedOperationException when the cluster does not serve the resource
+     */
+    public CustomResourceDefinitionContext context(String group, String plural) {
+        return find(group, plural).orElseThrow(() -> new UnsupportedOperationException(
+            plural + "." + group + " is not served by " + apiUrl + " (" + getServerVersion() + ")"));
+    }
+
+    public boolean supports(String group, String plural) {
+        return find(group, plural).isPresent();
+    }
+
+    public Optional<CustomResourceDefinitionContext> find(String group, String plural) {
+        String key = plural + "." + group;
+        Optional<CustomResourceDefinitionContext> context = contexts.get(key);
+        if (context == null) {
+            context = resolve(group, plural);
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    public synchronized String getServerVersion() {
+        if (serverVersion == null) {
+            Map<String, Object> version = get("version");
+            serverVersion = version == null ? "unknown" : String.valueOf(version.get("gitVersion"));
+        }
+        return serverVersion;
+    }
+
+    /**
+     * Forgets everything discovered, for example after CRDs were installed.
+     */
+    public synchronized void refresh() {
+        if (CACHE_DIR != null) {
+            try {
+                Files.deleteIfExists(cacheFile());
+            } catch (IOException e) {
+                log.warn("Unable to delete API discovery cache: {}", e.getMessage());
+            }
+        }
+        serverVersion = null;
+        groups = null;
+        resources.clear();
+        contexts.clear();
+    }
+
+    private Optional<CustomResourceDefinitionContext> resolve(String group, String plural) {
+        for (String version : groups().getOrDefault(group, Collections.emptyList())) {
+            Map<String, Object> resource = resources(group, version).get(plural);
+            if (resource != null) {
+                return Optional.of(new CustomResourceDefinitionContext.Builder()
+                    .withGroup(group)
+                    .withVersion(version)
+                    .withName((String) resource.get("kind"))
+                    .withPlural(plural)
+                    .withScope(Boolean.TRUE.equals(resource.get("namespaced")) ? "Namespaced" : "Cluster")
+                    .build());
+            }
+        }
+        log.debug("{}.{} is not served by {}", plural, group, apiUrl);
+        return Optional.empty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Map<String, List<String>> groups() {
+        if (groups == null && !loadCache()) {
+            Map<String, List<String>> discovered = new HashMap<>();
+            Map<String, Object> groupList = get("apis");
+            List<Map<String, Object>> items = groupList == null
+                ? Collections.emptyList() : (List<Map<String, Object>>) groupList.getOrDefault("groups", Collections.emptyList());
+            for (Map<String, Object> group : items) {
+                List<String> versions = new ArrayList<>();
+                Map<String, Object> preferred = (Map<String, Object>) group.get("preferredVersion");
+                if (preferred != null) {
+                    versions.add((String) preferred.get("version"));
+                }
+                for (Map<String, Object> version : (List<Map<String, Object>>) group.get("versions")) {
+                    if (!versions.contains(version.get("version"))) {
+                        versions.add((String) version.get("version"));
+                    }
+                }
+                discovered.put((String) group.get("name"), versions);
+            }
+            groups = discovered;
+            storeCache();
+        }
+        return groups;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Map<String, Map<String, Object>> resources(String group, String version) {
+        String groupVersion = group + "/" + version;
+        Map<String, Map<String, Object>> served = resources.get(groupVersion);
+        if (served == null) {
+            served = new HashMap<>();
+            Map<String, Object> resourceList = get("apis/" + groupVersion);
+            List<Map<String, Object>> items = resourceList == null
+                ? Collections.emptyList() : (List<Map<String, Object>>) resourceList.getOrDefault("resources", Collections.emptyList());
+            for (Map<String, Object> resource : items) {
+                String name = (String) resource.get("name");
+                // subresources such as status are listed as <plural>/<subresource>
+                if (!name.contains("/")) {
+                    Map<String, Object> description = new HashMap<>();
+                    description.put("kind", resource.get("kind"));
+                    description.put("namespaced", resource.get("namespaced"));
+                    served.put(name, description);
+                }
+            }
+            resources.put(groupVersion, served);
+            storeCache();
+        }
+        return served;
+    }
+
+    private Map<String, Object> get(String path) {
+        HttpUrl url = HttpUrl.get(client.getMasterUrl()).newBuilder().addPathSegments(path).build();
+        try (Response response = client.getHttpClient().newCall(new Request.Builder().url(url).get().build()).execute()) {
+            if (response.code() == 404) {
+                return null;
+            }
+            String body = response.body() == null ? "" : response.body().string();
+            if (!response.isSuccessful()) {
+                throw new KubernetesClientException("Failure executing GET " + url + ": " + body, response.code(), null);
+            }
+            return Parsers.readJsonMap(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to discover " + url, e);
+        }
+    }
+
+    private Path cacheFile() {
+        return Paths.get(CACHE_DIR).resolve(DigestUtils.sha256Hex(apiUrl + "\0" + getServerVersion()) + ".json");
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean loadCache() {
+        if (CACHE_DIR == null || !Files.exists(cacheFile())) {
+            return false;
+        }
+        try {
+            Map<String, Object> cache = Parsers.readJsonMap(Files.readAllBytes(cacheFile()));
+            groups = (Map<String, List<String>>) cache.get("groups");
+            resources.putAll((Map<String, Map<String, Map<String, Object>>>) cache.get("resources"));
+            log.debug("Loaded API discovery of {} from {}", apiUrl, cacheFile());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable API discovery cache {}: {}", cacheFile(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void storeCache() {
+        if (CACHE_DIR == null || groups == null) {
+            return;
+        }
+        Map<String, Object> cache = new HashMap<>();
+        cache.put("apiUrl", apiUrl);
+        cache.put("serverVersion", getServerVersion());
+        cache.put("groups", groups);
+        cache.put("resources", resources);
+        try {
+            Path file = cacheFile();
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Parsers.writeJson(tmp, cache);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to store API discovery cache: {}", e.getMessage());
+        }
+    }
+}
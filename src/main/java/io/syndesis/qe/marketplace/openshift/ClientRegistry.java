@@ -0,0 +1,140 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import cz.xtf.core.openshift.OpenShift;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * OpenShift clients shared by everything that talks to the same cluster as the same user in the same namespace.
+ * <p>
+ * Each client keeps its own HTTP connection pool and websocket threads, so sharing them avoids a pool per service
+ * instance. Callers get the client from the registry whenever they need it instead of keeping it, and hold a
+ * {@link Lease} while an operation runs. {@link #close(String)} and {@link #closeAll()} remove the clients from the
+ * registry and close them once their last lease is released, the next {@link #get} creates a new client.
+ */
+@Slf4j
+public final class ClientRegistry {
+
+    private static final Map<String, Entry> CLIENTS = new HashMap<>();
+
+    private ClientRegistry() {
+    }
+
+    public static OpenShift get(OpenShiftUser user, String namespace) {
+        return entry(user, namespace, false).client;
+    }
+
+    /**
+     * Keeps the client open until the lease is closed, even when the registry closes the clients of its cluster meanwhile.
+     */
+    public static Lease lease(OpenShiftUser user, String namespace) {
+        return new Lease(entry(user, namespace, true));
+    }
+
+    /**
+     * Closes the clients of all users and namespaces of the cluster, leased clients when their last lease is released.
+     */
+    public static void close(String apiUrl) {
+        retire(apiUrl + '\0');
+    }
+
+    public static void closeAll() {
+        retire("");
+    }
+
+    private static void retire(String keyPrefix) {
+        synchronized (CLIENTS) {
+            for (Iterator<Map.Entry<String, Entry>> it = CLIENTS.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> registered = it.next();
+                if (registered.getKey().startsWith(keyPrefix)) {
+                    it.remove();
+                    registered.getValue().retired = true;
+                    if (registered.getValue().leases == 0) {
+                        close(registered.getValue().client);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Entry entry(OpenShiftUser user, String namespace, boolean lease) {
+        String key = key(user.getApiUrl(), user.getUserName(), namespace);
+        synchronized (CLIENTS) {
+            Entry entry = CLIENTS.get(key);
+            if (entry != null) {
+                if (lease) {
+                    entry.leases++;
+                }
+                return entry;
+            }
+        }
+        // building a client logs in, which must not hold up the callers of other clusters
+        Entry created = new Entry(OpenShift.get(user.getApiUrl(), namespace, user.getUserName(), user.getPassword()));
+        Entry entry;
+        synchronized (CLIENTS) {
+            Entry published = CLIENTS.putIfAbsent(key, created);
+            entry = published == null ? created : published;
+            if (lease) {
+                entry.leases++;
+            }
+        }
+        if (entry != created) {
+            close(created.client);
+        }
+        return entry;
+    }
+
+    private static void close(OpenShift client) {
+        try {
+            client.close();
+        } catch (RuntimeException e) {
+            log.warn("Unable to close client of {}: {}", client.getMasterUrl(), e.getMessage());
+        }
+    }
+
+    private static String key(String apiUrl, String userName, String namespace) {
+        return apiUrl + '\0' + userName + '\0' + namespace;
+    }
+
+    private static final class Entry {
+        private final OpenShift client;
+        private int leases;
+        private boolean retired;
+
+        private Entry(OpenShift client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A client in use, closing the lease releases it.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public OpenShift getClient() {
+            return entry.client;
+        }
+
+        @Override
+        public void close() {
+            synchronized (CLIENTS) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (--entry.leases == 0 && entry.retired) {
+                    ClientRegistry.close(entry.client);
+                }
+            }
+        }
+    }
+}
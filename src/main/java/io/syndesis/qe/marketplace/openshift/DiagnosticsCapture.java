@@ -0,0 +1,338 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.api.model.ContainerStatus;
+import io.fabric8.kubernetes.api.model.Event;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.LogWatch;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams the pod logs and events of a namespace and the events of openshift-marketplace into in-memory ring buffers,
+ * which a background thread appends to files in {@link #getDirectory()}.
+ */
+@Slf4j
+public class DiagnosticsCapture implements AutoCloseable {
+
+    private static final String MARKETPLACE_NAMESPACE = "openshift-marketplace";
+    private static final int BUFFER_LINES = Integer.getInteger("marketplace.diagnostics.buffer.lines", 2000);
+    private static final long FILE_BYTES = Long.getLong("marketplace.diagnostics.file.bytes", 10 * 1024 * 1024);
+    private static final int MAX_LINE = 8 * 1024;
+    private static final int TAIL_LINES = 30;
+
+    private final OpenShift client;
+    private ClientRegistry.Lease lease;
+    private final String namespace;
+    @Getter
+    private final Path directory;
+
+    private final Map<String, RingBuffer> buffers = new ConcurrentHashMap<>();
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+    private final Map<String, LogWatch> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private volatile boolean closed;
+
+    public DiagnosticsCapture(OpenShift client, String namespace) {
+        this(client, namespace, Paths.get(System.getProperty("marketplace.diagnostics.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "marketplace-diagnostics").toString()))
+            .resolve(namespace + "-" + System.currentTimeMillis()));
+    }
+
+    DiagnosticsCapture(ClientRegistry.Lease lease, String namespace) {
+        this(lease.getClient(), namespace);
+        this.lease = lease;
+    }
+
+    public DiagnosticsCapture(OpenShift client, String namespace, Path directory) {
+        this.client = client;
+        this.namespace = namespace;
+        this.directory = directory;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "diagnostics-" + namespace);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public DiagnosticsCapture start() {
+        watchEvents(namespace);
+        watchEvents(MARKETPLACE_NAMESPACE);
+        try {
+            watches.add(client.pods().inNamespace(namespace).watch(new Watcher<Pod>() {
+                @Override
+                public void eventReceived(Action action, Pod pod) {
+                    if (action == Action.ADDED || action == Action.MODIFIED) {
+                        streamLogs(pod);
+                    }
+                }
+
+                @Override
+                public void onClose(KubernetesClientException cause) {
+                    closed("pods", cause);
+                }
+            }));
+            client.pods().inNamespace(namespace).list().getItems().forEach(this::streamLogs);
+        } catch (KubernetesClientException e) {
+            log.warn("Unable to capture pod logs of {}: {}", namespace, e.getMessage());
+        }
+        flusher.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+        return this;
+    }
+
+    private void watchEvents(String eventNamespace) {
+        RingBuffer buffer = buffer("events-" + eventNamespace);
+        try {
+            watches.add(client.events().inNamespace(eventNamespace).watch(new Watcher<Event>() {
+                @Override
+                public void eventReceived(Action action, Event event) {
+                    if (action != Action.DELETED) {
+                        buffer.add(format(event));
+                    }
+                }
+
+                @Override
+                public void onClose(KubernetesClientException cause) {
+                    closed("events of " + eventNamespace, cause);
+                }
+            }));
+        } catch (KubernetesClientException e) {
+            log.warn("Unable to capture events of {}: {}", eventNamespace, e.getMessage());
+        }
+    }
+
+    private void streamLogs(Pod pod) {
+        if (closed || pod.getStatus() == null || pod.getStatus().getContainerStatuses() == null) {
+            return;
+        }
+        String podName = pod.getMetadata().getName();
+        for (ContainerStatus container : pod.getStatus().getContainerStatuses()) {
+            if (container.getState() == null || container.getState().getRunning() == null) {
+                continue;
+            }
+            String key = podName + "/" + container.getName() + "/" + container.getRestartCount();
+            if (logs.containsKey(key)) {
+                continue;
+            }
+            RingBuffer buffer = buffer("pod-" + podName + "-" + container.getName());
+            try {
+                logs.put(key, client.pods().inNamespace(namespace).withName(podName).inContainer(container.getName())
+                    .watchLog(new LineOutputStream(buffer)));
+            } catch (KubernetesClientException e) {
+                log.debug("Unable to follow log of {}/{}: {}", podName, container.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private void closed(String resources, KubernetesClientException cause) {
+        if (cause != null && !closed) {
+            log.warn("Diagnostics watch of {} was closed: {}", resources, cause.getMessage());
+        }
+    }
+
+    private RingBuffer buffer(String name) {
+        return buffers.computeIfAbsent(name, RingBuffer::new);
+    }
+
+    private static String format(Event event) {
+        String timestamp = event.getLastTimestamp() != null ? event.getLastTimestamp() : event.getMetadata().getCreationTimestamp();
+        return timestamp + " " + event.getType() + " " + event.getReason() + " " + event.getInvolvedObject().getKind() + "/"
+            + event.getInvolvedObject().getName() + ": " + event.getMessage();
+    }
+
+    public Map<String, List<String>> tail(int lines) {
+        Map<String, List<String>> tail = new TreeMap<>();
+        buffers.forEach((name, buffer) -> tail.put(name, buffer.tail(lines)));
+        return tail;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder("Diagnostics of ").append(namespace).append(", full logs in ").append(directory);
+        tail(TAIL_LINES).forEach((name, lines) -> {
+            RingBuffer buffer = buffers.get(name);
+            sb.append("\n--- ").append(name).append(" (").append(buffer.getWritten()).append(" lines");
+            if (buffer.getDropped() > 0) {
+                sb.append(", ").append(buffer.getDropped()).append(" dropped");
+            }
+            sb.append(')');
+            lines.forEach(line -> sb.append("\n").append(line));
+        });
+        return sb.toString();
+    }
+
+    public void attachTo(Throwable failure) {
+        flush();
+        failure.addSuppressed(new DiagnosticsException(summary()));
+    }
+
+    private synchronized void flush() {
+        buffers.forEach((name, buffer) -> {
+            List<String> lines = buffer.drain();
+            if (lines.isEmpty()) {
+                return;
+            }
+            try {
+                Files.createDirectories(directory);
+                Path file = directory.resolve(name + ".log");
+                if (Files.exists(file) && Files.size(file) > FILE_BYTES) {
+                    Files.move(file, directory.resolve(name + ".log.1"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Unable to write diagnostics {}: {}", name, e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        watches.forEach(Watch::close);
+        logs.values().forEach(LogWatch::close);
+        flusher.shutdownNow();
+        flush();
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    /**
+     * Closes the capture and deletes its files.
+     */
+    public void discard() {
+        close();
+        try {
+            FileUtils.deleteDirectory(directory.toFile());
+        } catch (IOException e) {
+            log.warn("Unable to delete diagnostics {}: {}", directory, e.getMessage());
+        }
+    }
+
+    public static class DiagnosticsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DiagnosticsException(String diagnostics) {
+            super(diagnostics, null, false, false);
+        }
+    }
+
+    static final class RingBuffer {
+        private final String name;
+        private final String[] lines = new String[BUFFER_LINES];
+        @Getter
+        private long written;
+        private long flushed;
+        @Getter
+        private long dropped;
+
+        RingBuffer(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(String line) {
+            lines[(int) (written % lines.length)] = line;
+            written++;
+        }
+
+        synchronized List<String> tail(int count) {
+            long from = Math.max(0, Math.max(written - lines.length, written - count));
+            return copy(from);
+        }
+
+        synchronized List<String> drain() {
+            long from = Math.max(flushed, written - lines.length);
+            dropped += from - flushed;
+            List<String> drained = copy(from);
+            flushed = written;
+            return drained;
+        }
+
+        private List<String> copy(long from) {
+            if (from >= written) {
+                return Collections.emptyList();
+            }
+            List<String> copy = new ArrayList<>((int) (written - from));
+            for (long i = from; i < written; i++) {
+                copy.add(lines[(int) (i % lines.length)]);
+            }
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class LineOutputStream extends OutputStream {
+        private final RingBuffer buffer;
+        private final byte[] line = new byte[MAX_LINE];
+        private int length;
+
+        LineOutputStream(RingBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else if (length < line.length) {
+                line[length++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        private void flushLine() {
+            buffer.add(new String(line, 0, length, StandardCharsets.UTF_8));
+            length = 0;
+        }
+
+        @Override
+        public void close() {
+            if (length > 0) {
+                flushLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.Getter;
+import lombok.Value;
+
+/**
+ * Timestamped OLM phases of a single operator install, recorded by the {@link InstallTracker}.
+ */
+@Getter
+public class InstallTimeline {
+
+    public enum Phase {
+        TRACKING_STARTED,
+        SUBSCRIPTION_CREATED,
+        INSTALL_PLAN_CREATED,
+        INSTALL_PLAN_COMPLETE,
+        CSV_SUCCEEDED,
+        DEPLOYMENT_AVAILABLE,
+        FAILED
+    }
+
+    @Value
+    public static class Event {
+        Phase phase;
+        Instant timestamp;
+        /**
+         * time since the previous event
+         */
+        Duration duration;
+        String detail;
+    }
+
+    private final String cluster;
+    private final String namespace;
+    private final String subscription;
+    private final List<Event> events = new ArrayList<>();
+    private String failureReason;
+
+    InstallTimeline(String cluster, String namespace, String subscription) {
+        this.cluster = cluster;
+        this.namespace = namespace;
+        this.subscription = subscription;
+    }
+
+    synchronized boolean record(Phase phase, String detail) {
+        if (reached(phase)) {
+            return false;
+        }
+        Instant now = Instant.now();
+        Duration duration = events.isEmpty() ? Duration.ZERO : Duration.between(events.get(events.size() - 1).getTimestamp(), now);
+        events.add(new Event(phase, now, duration, detail));
+        if (phase == Phase.FAILED) {
+            failureReason = detail;
+        }
+        return true;
+    }
+
+    public synchronized List<Event> getEvents() {
+        return Collections.unmodifiableList(new ArrayList<>(events));
+    }
+
+    public synchronized boolean reached(Phase phase) {
+        return events.stream().anyMatch(event -> event.getPhase() == phase);
+    }
+
+    public synchronized Optional<Event> event(Phase phase) {
+        return events.stream().filter(event -> event.getPhase() == phase).findFirst();
+    }
+
+    public boolean isFailed() {
+        return reached(Phase.FAILED);
+    }
+
+    public boolean isComplete() {
+        return reached(Phase.DEPLOYMENT_AVAILABLE) || isFailed();
+    }
+
+    /**
+     * @return time from the start of tracking to the last recorded event
+     */
+    public synchronized Duration getTotal() {
+        return events.isEmpty() ? Duration.ZERO : Duration.between(events.get(0).getTimestamp(), events.get(events.size() - 1).getTimestamp());
+    }
+
+    public synchronized String toJson() {
+        ObjectNode report = Parsers.createObjectNode();
+        report.put("cluster", cluster);
+        report.put("namespace", namespace);
+        report.put("subscription", subscription);
+        report.put("totalMillis", getTotal().toMillis());
+        report.put("failureReason", failureReason);
+        ArrayNode phases = report.putArray("phases");
+        for (Event event : events) {
+            phases.addObject()
+                .put("phase", event.getPhase().name())
+                .put("timestamp", event.getTimestamp().toString())
+                .put("durationMillis", event.getDuration().toMillis())
+                .put("detail", event.getDetail());
+        }
+        try {
+            return Parsers.writePrettyJson(report);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Install of ").append(subscription).append(" in ").append(namespace).append(':');
+        events.forEach(event -> sb.append("\n  ").append(event.getPhase()).append(" +").append(event.getDuration().toMillis())
+            .append("ms").append(event.getDetail() == null ? "" : " (" + event.getDetail() + ")"));
+        return sb.toString();
+    }
+}
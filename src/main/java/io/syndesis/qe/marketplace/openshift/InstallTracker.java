@@ -0,0 +1,371 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import io.syndesis.qe.marketplace.openshift.InstallTimeline.Phase;
+import io.syndesis.qe.marketplace.util.Deadline;
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Watches the Subscription, InstallPlan, CSV and Deployments of one operator install and records when each OLM phase
+ * is reached. Start it before the subscription is created.
+ */
+@Slf4j
+public class InstallTracker implements AutoCloseable {
+
+    private static final String SUBSCRIPTION = "subscription";
+    private static final String INSTALL_PLANS = "installplans";
+    private static final String CSVS = "clusterserviceversions";
+    private static final String DEPLOYMENTS = "deployments";
+    private static final long POLL_INTERVAL = Long.getLong("marketplace.install.poll.interval", 5000);
+
+    private final OpenShift client;
+    private ClientRegistry.Lease lease;
+    private final String namespace;
+    private final String subscriptionName;
+    @Getter
+    private final InstallTimeline timeline;
+
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+    private final Map<String, String> resourceVersions = new ConcurrentHashMap<>();
+    private final Set<String> broken = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch complete = new CountDownLatch(1);
+    private volatile boolean closed;
+
+    private volatile Map<String, Object> subscription;
+    private final Map<String, Map<String, Object>> installPlans = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> csvs = new ConcurrentHashMap<>();
+    private final Map<String, Deployment> deployments = new ConcurrentHashMap<>();
+
+    public InstallTracker(OpenShift client, String namespace, String subscriptionName) {
+        this.client = client;
+        this.namespace = namespace;
+        this.subscriptionName = subscriptionName;
+        this.timeline = new InstallTimeline(client.getMasterUrl().getHost(), namespace, subscriptionName);
+    }
+
+    InstallTracker(ClientRegistry.Lease lease, String namespace, String subscriptionName) {
+        this(lease.getClient(), namespace, subscriptionName);
+        this.lease = lease;
+    }
+
+    static CustomResourceDefinitionContext subscriptions(OpenShift client) {
+        return ApiDiscovery.of(client).context("operators.coreos.com", "subscriptions");
+    }
+
+    static CustomResourceDefinitionContext installPlans(OpenShift client) {
+        return ApiDiscovery.of(client).context("operators.coreos.com", "installplans");
+    }
+
+    static CustomResourceDefinitionContext clusterServiceVersions(OpenShift client) {
+        return ApiDiscovery.of(client).context("operators.coreos.com", "clusterserviceversions");
+    }
+
+    public InstallTracker start() {
+        timeline.record(Phase.TRACKING_STARTED, null);
+        try {
+            for (String resources : Arrays.asList(SUBSCRIPTION, INSTALL_PLANS, CSVS, DEPLOYMENTS)) {
+                watch(resources);
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        } catch (KubernetesClientException e) {
+            close();
+            throw e;
+        }
+        list();
+        return this;
+    }
+
+    /**
+     * Waits until the operator deployments are available or the install fails.
+     */
+    public InstallTimeline awaitCompletion(long timeout) throws InterruptedException, TimeoutException {
+        timeout = Deadline.current().bound(timeout);
+        long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        while (!complete.await(Math.min(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL), Math.max(0, waitUntil - System.nanoTime())),
+            TimeUnit.NANOSECONDS)) {
+            if (System.nanoTime() - waitUntil >= 0) {
+                Deadline.current().check();
+                throw new TimeoutException("Install of " + subscriptionName + " did not complete in " + timeout + " seconds\n" + timeline);
+            }
+            if (!broken.isEmpty()) {
+                poll();
+            }
+        }
+        return timeline;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        watches.values().forEach(Watch::close);
+        watches.clear();
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    private void watch(String resources) throws IOException {
+        String resourceVersion = resourceVersions.get(resources);
+        Watch watch;
+        switch (resources) {
+            case SUBSCRIPTION:
+                watch = client.customResource(subscriptions(client)).watch(namespace, subscriptionName, (Map<String, String>) null,
+                    resourceVersion, watcher(SUBSCRIPTION, resource -> subscription = resource, resource -> subscription = null));
+                break;
+            case INSTALL_PLANS:
+                watch = client.customResource(installPlans(client)).watch(namespace, null, (Map<String, String>) null, resourceVersion,
+                    watcher(INSTALL_PLANS, resource -> installPlans.put(name(resource), resource), resource -> installPlans.remove(name(resource))));
+                break;
+            case CSVS:
+                watch = client.customResource(clusterServiceVersions(client)).watch(namespace, null, (Map<String, String>) null, resourceVersion,
+                    watcher(CSVS, resource -> csvs.put(name(resource), resource), resource -> csvs.remove(name(resource))));
+                break;
+            default:
+                watch = client.apps().deployments().inNamespace(namespace).withResourceVersion(resourceVersion).watch(deploymentWatcher());
+        }
+        watches.put(resources, watch);
+        if (closed) {
+            watch.close();
+        }
+    }
+
+    private void list() {
+        try {
+            subscription = client.customResource(subscriptions(client)).get(namespace, subscriptionName);
+        } catch (KubernetesClientException e) {
+            log.debug("Subscription {} does not exist yet", subscriptionName);
+        }
+        items(client.customResource(installPlans(client)).list(namespace)).forEach(plan -> installPlans.putIfAbsent(name(plan), plan));
+        items(client.customResource(clusterServiceVersions(client)).list(namespace)).forEach(csv -> csvs.putIfAbsent(name(csv), csv));
+        client.apps().deployments().inNamespace(namespace).list().getItems()
+            .forEach(deployment -> deployments.putIfAbsent(deployment.getMetadata().getName(), deployment));
+        update();
+    }
+
+    private void poll() {
+        try {
+            installPlans.clear();
+            csvs.clear();
+            deployments.clear();
+            list();
+        } catch (KubernetesClientException e) {
+            log.warn("Unable to list the install resources in {}: {}", namespace, e.getMessage());
+        }
+        for (String resources : broken) {
+            reopen(resources);
+        }
+    }
+
+    private Watcher<String> watcher(String resources, Consumer<Map<String, Object>> onUpdate, Consumer<Map<String, Object>> onDelete) {
+        return new Watcher<String>() {
+            @Override
+            public void eventReceived(Action action, String resource) {
+                try {
+                    Map<String, Object> object = Parsers.readJsonMap(resource);
+                    if (action == Action.DELETED) {
+                        onDelete.accept(object);
+                    } else if (action != Action.ERROR) {
+                        onUpdate.accept(object);
+                    }
+                    if (action != Action.ERROR && section(object, "metadata").get("resourceVersion") != null) {
+                        resourceVersions.put(resources, (String) section(object, "metadata").get("resourceVersion"));
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to parse watched resource: {}", e.getMessage());
+                }
+                update();
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                closed(resources, cause);
+            }
+        };
+    }
+
+    private Watcher<Deployment> deploymentWatcher() {
+        return new Watcher<Deployment>() {
+            @Override
+            public void eventReceived(Action action, Deployment deployment) {
+                if (action == Action.DELETED) {
+                    deployments.remove(deployment.getMetadata().getName());
+                } else if (action != Action.ERROR) {
+                    deployments.put(deployment.getMetadata().getName(), deployment);
+                }
+                if (action != Action.ERROR) {
+                    resourceVersions.put(DEPLOYMENTS, deployment.getMetadata().getResourceVersion());
+                }
+                update();
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                closed(DEPLOYMENTS, cause);
+            }
+        };
+    }
+
+    /**
+     * A watch closed with a cause was dropped by the server.
+     */
+    private void closed(String resources, KubernetesClientException cause) {
+        if (closed || cause == null) {
+            return;
+        }
+        log.warn("Watch of {} in {} was closed, reopening it: {}", resources, namespace, cause.getMessage());
+        if (cause.getCode() == HttpURLConnection.HTTP_GONE) {
+            resourceVersions.remove(resources);
+        }
+        broken.add(resources);
+        reopen(resources);
+    }
+
+    private void reopen(String resources) {
+        try {
+            watch(resources);
+            broken.remove(resources);
+        } catch (IOException | KubernetesClientException e) {
+            log.warn("Unable to reopen watch of {} in {}, listing them every {} ms: {}", resources, namespace, POLL_INTERVAL, e.getMessage());
+        }
+    }
+
+    private synchronized void update() {
+        Map<String, Object> sub = subscription;
+        if (sub == null) {
+            return;
+        }
+        timeline.record(Phase.SUBSCRIPTION_CREATED, null);
+        String resolutionFailure = conditionMessage(sub, "ResolutionFailed");
+        if (resolutionFailure != null) {
+            fail("Subscription resolution failed: " + resolutionFailure);
+            return;
+        }
+
+        String planName = installPlanName(sub);
+        Map<String, Object> plan = planName == null ? null : installPlans.get(planName);
+        if (plan != null) {
+            timeline.record(Phase.INSTALL_PLAN_CREATED, planName);
+            String phase = (String) section(plan, "status").get("phase");
+            if ("Complete".equals(phase)) {
+                timeline.record(Phase.INSTALL_PLAN_COMPLETE, planName);
+            } else if ("Failed".equals(phase)) {
+                fail("InstallPlan " + planName + " failed: " + conditionMessage(plan, "Installed"));
+                return;
+            }
+        }
+
+        String csvName = (String) section(sub, "status").get("currentCSV");
+        Map<String, Object> csv = csvName == null ? null : csvs.get(csvName);
+        if (csv == null) {
+            return;
+        }
+        Map<String, Object> csvStatus = section(csv, "status");
+        if ("Succeeded".equals(csvStatus.get("phase"))) {
+            timeline.record(Phase.CSV_SUCCEEDED, csvName);
+        } else if ("Failed".equals(csvStatus.get("phase"))) {
+            fail("CSV " + csvName + " failed: " + csvStatus.get("reason") + " " + csvStatus.get("message"));
+            return;
+        }
+
+        List<String> deploymentNames = deploymentNames(csv);
+        if (!deploymentNames.isEmpty() && deploymentNames.stream().allMatch(this::isAvailable)) {
+            timeline.record(Phase.DEPLOYMENT_AVAILABLE, String.join(",", deploymentNames));
+        }
+        if (timeline.reached(Phase.CSV_SUCCEEDED) && timeline.reached(Phase.DEPLOYMENT_AVAILABLE)) {
+            complete.countDown();
+        }
+    }
+
+    private void fail(String reason) {
+        if (timeline.record(Phase.FAILED, reason)) {
+            log.error("Install of {} failed: {}", subscriptionName, reason);
+        }
+        complete.countDown();
+    }
+
+    private boolean isAvailable(String deploymentName) {
+        Deployment deployment = deployments.get(deploymentName);
+        if (deployment == null || deployment.getStatus() == null) {
+            return false;
+        }
+        int replicas = deployment.getSpec().getReplicas() == null ? 1 : deployment.getSpec().getReplicas();
+        Integer available = deployment.getStatus().getAvailableReplicas();
+        return available != null && available >= replicas;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> deploymentNames(Map<String, Object> csv) {
+        Map<String, Object> install = (Map<String, Object>) section(csv, "spec").get("install");
+        Map<String, Object> installSpec = install == null ? null : (Map<String, Object>) install.get("spec");
+        List<Map<String, Object>> deployments = installSpec == null ? null : (List<Map<String, Object>>) installSpec.get("deployments");
+        List<String> names = new ArrayList<>();
+        if (deployments != null) {
+            deployments.forEach(deployment -> names.add((String) deployment.get("name")));
+        }
+        return names;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String installPlanName(Map<String, Object> subscription) {
+        Map<String, Object> status = section(subscription, "status");
+        Map<String, Object> ref = (Map<String, Object>) status.get("installPlanRef");
+        if (ref == null) {
+            ref = (Map<String, Object>) status.get("installplan");
+        }
+        return ref == null ? null : (String) ref.get("name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String conditionMessage(Map<String, Object> resource, String type) {
+        List<Map<String, Object>> conditions = (List<Map<String, Object>>) section(resource, "status").get("conditions");
+        if (conditions == null) {
+            return null;
+        }
+        return conditions.stream()
+            .filter(condition -> type.equals(condition.get("type")))
+            .filter(condition -> "ResolutionFailed".equals(type) ? "True".equals(condition.get("status")) : true)
+            .map(condition -> condition.get("reason") + ": " + condition.get("message"))
+            .findFirst()
+            .orElse(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> section(Map<String, Object> resource, String key) {
+        Map<String, Object> section = (Map<String, Object>) resource.get(key);
+        return section == null ? Collections.emptyMap() : section;
+    }
+
+    private static String name(Map<String, Object> resource) {
+        return (String) section(resource, "metadata").get("name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> items(Map<String, Object> list) {
+        List<Map<String, Object>> items = (List<Map<String, Object>>) list.get("items");
+        return items == null ? Collections.emptyList() : items;
+    }
+}
@@ -0,0 +1,217 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import io.syndesis.qe.marketplace.util.HelperFunctions;
+
+import org.apache.commons.lang3.RandomStringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.xtf.core.openshift.OpenShift;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps a number of pre-provisioned namespaces ready, so a deployment does not have to wait for project deletion and creation.
+ * <p>
+ * Returned namespaces are recycled by removing only the resources labelled by {@link ResourceLabels#MANAGED}, the pool
+ * is replenished in the background whenever a namespace is leased. Provisioning is retried
+ * {@code marketplace.pool.provision.attempts} times (3 by default), when it keeps failing {@link #lease()} fails
+ * right away instead of waiting for its timeout.
+ */
+@Slf4j
+public class NamespacePool implements AutoCloseable {
+
+    public static final String POOL_LABEL = "marketplace-utilities.syndesis.io/pool";
+    private static final long DEFAULT_LEASE_TIMEOUT = 5 * 60;
+    private static final int PROVISION_ATTEMPTS = Integer.getInteger("marketplace.pool.provision.attempts", 3);
+    private static final long PROVISION_RETRY_DELAY = 5;
+
+    private final OpenShiftUser adminUser;
+    private final OpenShiftUser requestUser;
+    @Getter
+    private final String prefix;
+    @Getter
+    private final int size;
+
+    private final BlockingQueue<String> ready = new LinkedBlockingQueue<>();
+    private final Set<String> leased = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+    private final AtomicInteger provisioning = new AtomicInteger();
+    private volatile Exception provisionFailure;
+    private volatile boolean closed;
+
+    public NamespacePool(String prefix, int size, OpenShiftUser adminUser, OpenShiftUser regularUser) {
+        this.prefix = prefix;
+        this.size = size;
+        this.adminUser = adminUser;
+        this.requestUser = regularUser == null ? adminUser : regularUser;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(size, 4)), r -> {
+            Thread thread = new Thread(r, "namespace-pool-" + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < size; i++) {
+            replenish();
+        }
+    }
+
+    public String lease() throws TimeoutException, InterruptedException {
+        return lease(DEFAULT_LEASE_TIMEOUT);
+    }
+
+    /**
+     * Takes a ready namespace out of the pool, waiting at most timeout seconds for one to be provisioned.
+     */
+    public String lease(long timeout) throws TimeoutException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Namespace pool " + prefix + " is already closed");
+        }
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        String namespace;
+        while ((namespace = ready.poll(1, TimeUnit.SECONDS)) == null) {
+            if (provisionFailure != null && provisioning.get() == 0) {
+                throw new IllegalStateException("Namespace pool " + prefix + " is unable to provision namespaces", provisionFailure);
+            }
+            if (System.nanoTime() - end >= 0) {
+                throw new TimeoutException("No namespace from pool " + prefix + " became ready in " + timeout + " seconds");
+            }
+        }
+        leased.add(namespace);
+        replenish();
+        log.info("Leased namespace '{}' from the pool", namespace);
+        return namespace;
+    }
+
+    public boolean isLeased(String namespace) {
+        return leased.contains(namespace);
+    }
+
+    /**
+     * Returns the namespace to the pool, it is cleaned up asynchronously and then kept as a spare.
+     */
+    public void release(String namespace) {
+        if (!leased.remove(namespace)) {
+            log.warn("Namespace '{}' is not leased from pool {}", namespace, prefix);
+            return;
+        }
+        submit(() -> recycle(namespace));
+    }
+
+    public int available() {
+        return ready.size();
+    }
+
+    private void replenish() {
+        submit(this::provision);
+    }
+
+    /**
+     * Runs the task counted as one that may still bring a namespace into the pool.
+     */
+    private void submit(Runnable task) {
+        provisioning.incrementAndGet();
+        executor.submit(() -> {
+            try {
+                task.run();
+            } finally {
+                provisioning.decrementAndGet();
+            }
+        });
+    }
+
+    private void provision() {
+        for (int attempt = 1; attempt <= PROVISION_ATTEMPTS && !closed && ready.size() < size; attempt++) {
+            String namespace = prefix + "-" + RandomStringUtils.random(5, true, true).toLowerCase();
+            try (ClientRegistry.Lease admin = ClientRegistry.lease(adminUser, "default")) {
+                OpenShift adminClient = admin.getClient();
+                ClientRegistry.get(requestUser, "default").createProjectRequest(namespace);
+                HelperFunctions.waitFor(() -> adminClient.getProject(namespace) != null, 1, 30);
+                adminClient.namespaces().withName(namespace).edit()
+                    .editMetadata()
+                    .addToLabels(POOL_LABEL, prefix)
+                    .endMetadata()
+                    .done();
+                provisionFailure = null;
+                offer(namespace);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Unable to provision namespace '{}' for pool {}, attempt {} of {}: {}", namespace, prefix, attempt,
+                    PROVISION_ATTEMPTS, e.getMessage());
+                provisionFailure = e;
+                deleteQuietly(namespace);
+                try {
+                    TimeUnit.SECONDS.sleep(PROVISION_RETRY_DELAY);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the namespace as a spare, unless the pool already has enough of them or is closed.
+     */
+    private synchronized void offer(String namespace) {
+        if (closed || ready.size() >= size) {
+            log.debug("Pool {} is full, deleting namespace '{}'", prefix, namespace);
+            deleteQuietly(namespace);
+        } else {
+            ready.offer(namespace);
+            log.debug("Namespace '{}' is ready in pool {}", namespace, prefix);
+        }
+    }
+
+    /**
+     * @return the admin client from the {@link ClientRegistry}, it is not kept as the registry may close it
+     */
+    private OpenShift adminClient() {
+        return ClientRegistry.get(adminUser, "default");
+    }
+
+    private void deleteQuietly(String namespace) {
+        try {
+            adminClient().deleteProject(namespace);
+        } catch (RuntimeException e) {
+            log.debug("Unable to delete namespace '{}': {}", namespace, e.getMessage());
+        }
+    }
+
+    private void recycle(String namespace) {
+        try (ClientRegistry.Lease admin = ClientRegistry.lease(adminUser, "default")) {
+            OpenShift adminClient = admin.getClient();
+            new ResourceSweeper(adminClient).delete(namespace, ResourceLabels.anyRun());
+            HelperFunctions.waitFor(() -> adminClient.pods().inNamespace(namespace).list().getItems().isEmpty(), 1, 60);
+        } catch (Exception e) {
+            log.error("Unable to recycle namespace '" + namespace + "', dropping it from the pool", e);
+            deleteQuietly(namespace);
+            replenish();
+            return;
+        }
+        offer(namespace);
+    }
+
+    @Override
+    public void close() {
+        List<String> toDelete = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            ready.drainTo(toDelete);
+        }
+        executor.shutdownNow();
+        toDelete.forEach(this::deleteQuietly);
+    }
+}
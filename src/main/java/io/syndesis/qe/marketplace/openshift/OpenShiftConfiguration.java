@@ -1,12 +1,15 @@
 package io.syndesis.qe.marketplace.openshift;
 
+import java.util.List;
+import java.util.Map;
+
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 
 @Data
 @AllArgsConstructor
-@Builder
+@Builder(toBuilder = true)
 public class OpenShiftConfiguration {
 
     private String namespace;
@@ -14,5 +17,14 @@ public class OpenShiftConfiguration {
     private String pullSecret;
     private String quayOpsrcToken;
     private String installedCSV;
+    /**
+     * @deprecated the brew registry script is not run anymore, use {@link #registryMirrors}
+     */
+    @Deprecated
     private String icspConfigURL;
+    /**
+     * mirror registries by source registry, {@link RegistryMirrors#BREW} when not set
+     */
+    private Map<String, List<String>> registryMirrors;
+    private NamespacePool namespacePool;
 }
@@ -1,27 +1,38 @@
 package io.syndesis.qe.marketplace.openshift;
 
 import static io.syndesis.qe.marketplace.util.HelperFunctions.readResource;
-import static io.syndesis.qe.marketplace.util.HelperFunctions.runCmd;
 import static io.syndesis.qe.marketplace.util.HelperFunctions.waitFor;
+import static io.syndesis.qe.marketplace.util.HelperFunctions.waitForCustomResources;
 
+import io.syndesis.qe.marketplace.util.Deadline;
 import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Parsers;
 
-import org.apache.commons.codec.binary.StringUtils;
-import org.apache.commons.io.FileUtils;
+import com.fasterxml.jackson.databind.JsonNode;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.api.model.Secret;
-import io.fabric8.kubernetes.api.model.SecretList;
-import io.fabric8.kubernetes.api.model.apps.DeploymentList;
+import io.fabric8.kubernetes.api.model.SecretBuilder;
+import io.fabric8.kubernetes.api.model.ServiceAccount;
+import io.fabric8.kubernetes.api.model.ServiceAccountBuilder;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.DeploymentStatus;
 import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
 import lombok.SneakyThrows;
@@ -33,12 +44,22 @@ public class OpenShiftService {
     private final String quayNamespace;
     private final String quayPackageName;
 
-    private final OpenShift openShiftClient;
-
     private final OpenShiftConfiguration openShiftConfiguration;
     private final OpenShiftUser adminUser;
 
-    private OpenShift openShiftClientAsRegularUser;
+    private final OpenShiftUser regularUser;
+
+    private final ResourceApplier applier;
+
+    private static final long INSTALL_TIMEOUT = 5 * 60;
+    private static final String RESTARTED_AT_ANNOTATION = "kubectl.kubernetes.io/restartedAt";
+    /**
+     * labels of registry pods by the marketplace operator versions, and of the pods OLM runs for catalog sources
+     */
+    private static final List<String> OPERATOR_SOURCE_POD_LABELS = Arrays.asList("marketplace.operatorSource", "opsrc-owner-name",
+        "olm.catalogSource");
+    private InstallTimeline lastInstallTimeline;
+    private Path lastDiagnostics;
 
     public OpenShiftService(
         String quayNamespace,
@@ -49,104 +70,190 @@ public class OpenShiftService {
 
         this.quayNamespace = quayNamespace;
         this.quayPackageName = quayPackageName;
+
+        if (openShiftConfiguration.getNamespacePool() != null && openShiftConfiguration.getNamespace() == null) {
+            // the leased namespace belongs to this service only, the configuration of the caller is left as it is
+            try {
+                openShiftConfiguration = openShiftConfiguration.toBuilder()
+                    .namespace(openShiftConfiguration.getNamespacePool().lease())
+                    .build();
+            } catch (InterruptedException | TimeoutException e) {
+                throw new RuntimeException("Unable to lease a namespace from the pool", e);
+            }
+        }
         this.openShiftConfiguration = openShiftConfiguration;
 
-        this.openShiftClient = OpenShift.get(
-            adminOpenShiftUser.getApiUrl(),
-            openShiftConfiguration.getNamespace(),
-            adminOpenShiftUser.getUserName(),
-            adminOpenShiftUser.getPassword()
-        );
         this.adminUser = adminOpenShiftUser;
+        this.regularUser = regularOpenShiftUser;
+        this.applier = new ResourceApplier(this::getClient);
+    }
+
+    public void deployOperator() throws IOException {
+        deployOperator(null);
+    }
 
-        if (regularOpenShiftUser != null) {
-            openShiftClientAsRegularUser = OpenShift.get(
-                regularOpenShiftUser.getApiUrl(),
-                openShiftConfiguration.getNamespace(),
-                regularOpenShiftUser.getUserName(),
-                regularOpenShiftUser.getPassword()
-            );
+    /**
+     * The namespace gets at most a third of the deadline.
+     */
+    public void deployOperator(Duration deadline) throws IOException {
+        try (ClientRegistry.Lease lease = leaseClient();
+            Deadline deployment = Deadline.start("deploy operator " + quayPackageName, deadline)) {
+            lastInstallTimeline = null;
+            lastDiagnostics = null;
+            try (Deadline namespace = deployment.share("create namespace", 1.0 / 3)) {
+                createNamespace();
+            }
+            try (DiagnosticsCapture diagnostics = captureDiagnostics()) {
+                lastDiagnostics = diagnostics.getDirectory();
+                try {
+                    installOperator();
+                } catch (IOException | RuntimeException e) {
+                    diagnostics.attachTo(e);
+                    throw e;
+                }
+                diagnostics.discard();
+                lastDiagnostics = null;
+            }
         }
+
+        log.info("Operator deployed, " + applier.getWrites() + " API writes issued, "
+            + applier.getAvoidedWrites() + " avoided for unchanged resources");
     }
 
-    public void deployOperator() throws IOException {
-        createNamespace();
+    private void installOperator() throws IOException {
         createPullSecret();
         disableDefaultSources();
         createOpsrcToken();
         createOpsrc();
         createOperatorgroup();
-        createSubscription();
 
-        DeploymentList deploymentList =
-            openShiftClient.apps().deployments().inNamespace(openShiftConfiguration.getNamespace()).list();
-        if (deploymentList.getItems().size() != 1) {
-            log.error("Must be one deployment, actual number is " + deploymentList.getItems().size());
-            throw new IOException("There must be one deployment");
-        }
+        try (InstallTracker tracker = trackInstall(quayPackageName);
+            Deadline.Registration cancellation = Deadline.current().onCancel(tracker)) {
+            lastInstallTimeline = tracker.getTimeline();
+            boolean prelink = openShiftConfiguration.getPullSecretName() != null;
+            createSubscription(prelink);
+            if (prelink) {
+                prelinkPullSecret();
+            }
 
-        String operatorResourcesName = deploymentList.getItems().get(0).getMetadata().getName();
+            Deployment deployment = waitForOperatorDeployment();
+            String operatorResourcesName = deployment.getMetadata().getName();
+            log.info("Operator deployment name is '" + operatorResourcesName + "'");
 
-        log.info("Operator pod name is '" + operatorResourcesName + "'");
+            String serviceAccount = deployment.getSpec().getTemplate().getSpec().getServiceAccountName();
+            if (prelink && !hasPullSecret(serviceAccount == null ? operatorResourcesName : serviceAccount)) {
+                log.info("Pull secret was not kept on the operator service account, restarting operator pod so it uses it");
+                linkPullSecret(serviceAccount == null ? operatorResourcesName : serviceAccount);
+                rolloutRestart(operatorResourcesName);
+            }
 
-        linkPullSecret(operatorResourcesName);
+            try {
+                tracker.awaitCompletion(INSTALL_TIMEOUT);
+            } catch (TimeoutException e) {
+                throw new IOException("Operator install was not completed: " + e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the operator install", e);
+            }
+            if (lastInstallTimeline.isFailed()) {
+                throw new IOException("Operator install failed\n" + lastInstallTimeline);
+            }
+            log.info(lastInstallTimeline.toString());
+        }
+    }
+
+    /**
+     * Starts tracking the install of the subscription in the namespace of this service, call it before the
+     * subscription is created.
+     */
+    public InstallTracker trackInstall(String subscriptionName) {
+        return new InstallTracker(leaseClient(), openShiftConfiguration.getNamespace(), subscriptionName).start();
+    }
+
+    /**
+     * Starts streaming pod logs and events of the namespace of this service, see {@link DiagnosticsCapture}.
+     */
+    public DiagnosticsCapture captureDiagnostics() {
+        return new DiagnosticsCapture(leaseClient(), openShiftConfiguration.getNamespace()).start();
+    }
 
-        log.info("Redeploying operator pod so it uses new pull secret");
+    /**
+     * @return directory with pod logs and events captured during the last {@link #deployOperator()}, null when it
+     * succeeded
+     */
+    public Path getLastDiagnostics() {
+        return lastDiagnostics;
+    }
 
-        scaleOperatorPod(0, operatorResourcesName);
-        scaleOperatorPod(1, operatorResourcesName);
+    /**
+     * @return timeline of the last {@link #deployOperator()}, null when it failed before the subscription was created
+     */
+    public InstallTimeline getLastInstallTimeline() {
+        return lastInstallTimeline;
     }
 
     public void deleteOpsrcToken() {
         log.info("Deleting opsrc token");
-        SecretList secretList = openShiftClient.secrets().inNamespace("openshift-marketplace").list();
-        for (Secret secret : secretList.getItems()) {
-            if (StringUtils.equals(secret.getMetadata().getName(), quayPackageName + "-opsrctoken")) {
-                openShiftClient.secrets().inNamespace("openshift-marketplace").delete(secret);
-            }
-        }
+        getClient().secrets().inNamespace("openshift-marketplace").withName(quayPackageName + "-opsrctoken").delete();
     }
 
     public void deleteOperatorSource() throws IOException {
         log.info("Deleting operator source for quay package '" + quayPackageName + "'");
-        CustomResourceDefinitionContext operatorSourceCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withPlural("operatorsources")
-            .withScope("Namespaced")
-            .withVersion("v1")
-            .build();
+        if (!getDiscovery().supports("operators.coreos.com", "operatorsources")) {
+            log.info("Operator sources are not served by the cluster, nothing to delete");
+            return;
+        }
 
-        openShiftClient.customResource(operatorSourceCrdContext)
+        getClient().customResource(getDiscovery().context("operators.coreos.com", "operatorsources"))
             .delete("openshift-marketplace", quayPackageName + "-opsrc");
     }
 
+    /**
+     * Restarts the registry pods serving the operator source of this package. The pods are found by the labels the
+     * marketplace operator puts on them, when none of them matches every pod of openshift-marketplace is restarted, as
+     * this always did before.
+     */
     public void refreshOperators() {
-        openShiftClient.pods().inNamespace("openshift-marketplace")
-            .delete();
+        String operatorSource = quayPackageName + "-opsrc";
+        for (String label : OPERATOR_SOURCE_POD_LABELS) {
+            List<Pod> pods = getClient().pods().inNamespace("openshift-marketplace").withLabel(label, operatorSource).list().getItems();
+            if (!pods.isEmpty()) {
+                log.info("Restarting " + pods.size() + " registry pods of operator source '" + operatorSource + "'");
+                getClient().pods().inNamespace("openshift-marketplace").delete(pods);
+                return;
+            }
+        }
+        log.warn("No registry pod is labelled with operator source '" + operatorSource + "', restarting all pods of openshift-marketplace");
+        getClient().pods().inNamespace("openshift-marketplace").delete();
     }
 
-    @SneakyThrows
-    public void setupImageContentSourcePolicy() {
-        CustomResourceDefinitionContext operatorSourceCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operator.openshift.io")
-            .withPlural("imagecontentsourcepolicies")
-            .withScope("Cluster")
-            .withVersion("v1alpha1")
-            .build();
+    /**
+     * Deletes all resources created by this run, in every namespace.
+     */
+    public void teardown() {
+        int deleted = new ResourceSweeper(getClient()).deleteRun(ResourceLabels.runId());
+        log.info("Deleted " + deleted + " resources of run " + ResourceLabels.runId());
+    }
 
-        try {
-            openShiftClient.customResource(operatorSourceCrdContext).get("brew-registry");
-        } catch (KubernetesClientException e) {
-            log.info("ICSP was not found, creating new!");
-            if (openShiftConfiguration.getIcspConfigURL() == null) {
-                throw new RuntimeException("ICSP is configured by a script. Set this script URL in OpenshiftConfiguration please.");
-            }
-            File script = new File("/tmp/brew-registry-script.sh");
-            FileUtils.copyURLToFile(new URL(openShiftConfiguration.getIcspConfigURL()), script);
-            script.setExecutable(true);
-            runCmd("oc", "login", "-u", adminUser.getUserName(), "-p", adminUser.getPassword(), adminUser.getApiUrl());
-            runCmd(script.getAbsolutePath());
+    /**
+     * Deletes resources leaked by other runs that are older than ttl seconds.
+     */
+    public void sweepLeakedResources(long ttl) {
+        int deleted = new ResourceSweeper(getClient()).sweep(ttl);
+        log.info("Swept " + deleted + " leaked resources");
+    }
+
+    /**
+     * Configures the registry mirrors of {@link OpenShiftConfiguration#getRegistryMirrors()}, the brew mirrors by default.
+     * Only the first call per cluster checks the cluster, see {@link RegistryMirrors}.
+     */
+    @SuppressWarnings("deprecation") // warns callers still setting the replaced icspConfigURL
+    public void setupImageContentSourcePolicy() {
+        if (openShiftConfiguration.getIcspConfigURL() != null) {
+            log.warn("icspConfigURL is no longer used, registry mirrors are configured from registryMirrors");
         }
+        Map<String, List<String>> mirrors = openShiftConfiguration.getRegistryMirrors();
+        RegistryMirrors.of(getClient()).ensure(mirrors == null ? RegistryMirrors.BREW : mirrors, applier);
     }
 
     /**
@@ -154,40 +261,38 @@ public class OpenShiftService {
      *
      * @param pullSecretContent - base64 encoded Docker auths json
      */
+    @SneakyThrows
     public void patchGlobalSecrets(String pullSecretContent) {
         Map<String, String> obligatoryMap = new HashMap<>();
         obligatoryMap.put(".dockerconfigjson", pullSecretContent);
 
-        Secret s = openShiftClient.inNamespace("openshift-marketplace").secrets().createOrReplaceWithNew()
+        Secret s = new SecretBuilder()
             .withType("kubernetes.io/dockerconfigjson")
-            .editOrNewMetadata()
+            .withNewMetadata()
             .withName("quay-pull-secret")
             .withNamespace("openshift-marketplace")
             .endMetadata()
             .withData(obligatoryMap)
-            .done();
-
-        openShiftClient.serviceAccounts().inNamespace("openshift-marketplace").withName("default").edit()
-            .addNewSecret()
-            .withName(s.getMetadata().getName())
-            .withNamespace(s.getMetadata().getNamespace())
-            .endSecret()
-            .done();
+            .build();
+        applier.apply("secrets", s);
+
+        ServiceAccount sa = getClient().serviceAccounts().inNamespace("openshift-marketplace").withName("default").get();
+        if (sa.getSecrets().stream().noneMatch(ref -> s.getMetadata().getName().equals(ref.getName()))) {
+            getClient().serviceAccounts().inNamespace("openshift-marketplace").withName("default").edit()
+                .addNewSecret()
+                .withName(s.getMetadata().getName())
+                .withNamespace(s.getMetadata().getNamespace())
+                .endSecret()
+                .done();
+        }
     }
 
     private void disableDefaultSources() throws IOException {
         log.info("Disabling default sources on openshift");
 
-        CustomResourceDefinitionContext crdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("config.openshift.io")
-            .withPlural("operatorhubs")
-            .withScope("Cluster")
-            .withVersion("v1")
-            .build();
+        CustomResourceDefinitionContext crdContext = getDiscovery().context("config.openshift.io", "operatorhubs");
 
-        openShiftClient.customResource(crdContext)
-            .createOrReplace("openshift-marketplace",
-                OpenShiftService.class.getResourceAsStream("/openshift/disable-default-sources.yaml"));
+        applier.apply(crdContext, null, OpenShiftService.class.getResourceAsStream("/openshift/disable-default-sources.yaml"));
     }
 
     private void createOpsrcToken() throws IOException {
@@ -195,42 +300,53 @@ public class OpenShiftService {
         Map<String, String> data = new HashMap<>();
         data.put("token", openShiftConfiguration.getQuayOpsrcToken());
 
-        openShiftClient.inNamespace("openshift-marketplace").secrets().createOrReplaceWithNew()
+        applier.apply("secrets", new SecretBuilder()
             .withNewMetadata()
             .withName(quayPackageName + "-opsrctoken")
             .withNamespace("openshift-marketplace")
+            .addToLabels(ResourceLabels.managed())
             .endMetadata()
             .withData(data)
             .withType("Opaque")
-            .done();
+            .build());
     }
 
     private void createOpsrc() throws IOException {
         log.info("Creating operator source which points toward quay");
 
-        CustomResourceDefinitionContext operatorSourceCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withPlural("operatorsources")
-            .withScope("Namespaced")
-            .withVersion("v1")
-            .build();
+        CustomResourceDefinitionContext operatorSourceCrdContext = getDiscovery().context("operators.coreos.com", "operatorsources");
 
         String operatorSourceYaml = readResource("openshift/create-operatorsource.yaml")
             .replaceAll("PACKAGE_NAME", quayPackageName)
-            .replaceAll("QUAY_NAMESPACE", quayNamespace);
+            .replaceAll("QUAY_NAMESPACE", quayNamespace)
+            .replaceAll("RUN_ID", ResourceLabels.runId());
+
+        applier.apply(operatorSourceCrdContext, "openshift-marketplace", operatorSourceYaml);
+    }
 
-        openShiftClient.customResource(operatorSourceCrdContext)
-            .createOrReplace("openshift-marketplace",
-                new ByteArrayInputStream(operatorSourceYaml.getBytes(StandardCharsets.UTF_8)));
+    /**
+     * Returns the namespace leased from the {@link NamespacePool} so it can be recycled for another deployment.
+     */
+    public void releaseNamespace() {
+        NamespacePool pool = openShiftConfiguration.getNamespacePool();
+        if (pool != null && pool.isLeased(openShiftConfiguration.getNamespace())) {
+            pool.release(openShiftConfiguration.getNamespace());
+        }
     }
 
     private void createNamespace() throws IOException {
-        if (openShiftClient.getProject(openShiftConfiguration.getNamespace()) != null) {
+        NamespacePool pool = openShiftConfiguration.getNamespacePool();
+        if (pool != null && pool.isLeased(openShiftConfiguration.getNamespace())) {
+            log.info("Using pre-provisioned namespace '" + openShiftConfiguration.getNamespace() + "'");
+            return;
+        }
+
+        if (getClient().getProject(openShiftConfiguration.getNamespace()) != null) {
             log.info("Namespace exists, deleting namespace first");
-            openShiftClient.deleteProject(openShiftConfiguration.getNamespace());
+            getClient().deleteProject(openShiftConfiguration.getNamespace());
             try {
                 HelperFunctions.waitFor(
-                    () -> openShiftClient.getProject(openShiftConfiguration.getNamespace()) == null,
+                    () -> getClient().getProject(openShiftConfiguration.getNamespace()) == null,
                     1, 30);
             } catch (InterruptedException | TimeoutException e) {
                 log.error("Namespace was not deleted");
@@ -240,15 +356,15 @@ public class OpenShiftService {
 
         log.info("Creating namespace");
 
-        if (openShiftClientAsRegularUser != null) {
-            openShiftClientAsRegularUser.createProjectRequest(openShiftConfiguration.getNamespace());
+        if (regularUser != null) {
+            ClientRegistry.get(regularUser, openShiftConfiguration.getNamespace()).createProjectRequest(openShiftConfiguration.getNamespace());
         } else {
-            openShiftClient.createProjectRequest(openShiftConfiguration.getNamespace());
+            getClient().createProjectRequest(openShiftConfiguration.getNamespace());
         }
 
         try {
             HelperFunctions.waitFor(
-                () -> openShiftClient.getProject(openShiftConfiguration.getNamespace()) != null,
+                () -> getClient().getProject(openShiftConfiguration.getNamespace()) != null,
                 1, 30);
         } catch (InterruptedException | TimeoutException e) {
             log.error("Namespace was not created");
@@ -264,42 +380,47 @@ public class OpenShiftService {
             Map<String, String> pullSecretMap = new HashMap<>();
             pullSecretMap.put(".dockerconfigjson", openShiftConfiguration.getPullSecret());
 
-            openShiftClient.secrets().createOrReplaceWithNew()
+            applier.apply("secrets", new SecretBuilder()
                 .withNewMetadata()
                 .withName(openShiftConfiguration.getPullSecretName())
+                .withNamespace(openShiftConfiguration.getNamespace())
+                .addToLabels(ResourceLabels.managed())
                 .endMetadata()
                 .withData(pullSecretMap)
                 .withType("kubernetes.io/dockerconfigjson")
-                .done();
+                .build());
         }
     }
 
     private void createOperatorgroup() throws IOException {
         log.info("Creating operatorgroup");
 
-        CustomResourceDefinitionContext operatorGroupCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withPlural("operatorgroups")
-            .withScope("Namespaced")
-            .withVersion("v1alpha2")
-            .build();
+        CustomResourceDefinitionContext operatorGroupCrdContext = getDiscovery().context("operators.coreos.com", "operatorgroups");
 
         String operatorGroupYaml = readResource("openshift/create-operatorgroup.yaml")
-            .replaceAll("OPENSHIFT_PROJECT", openShiftConfiguration.getNamespace());
+            .replaceAll("OPENSHIFT_PROJECT", openShiftConfiguration.getNamespace())
+            .replaceAll("RUN_ID", ResourceLabels.runId());
 
-        openShiftClient.customResource(operatorGroupCrdContext)
-            .createOrReplace(openShiftConfiguration.getNamespace(),
-                new ByteArrayInputStream(operatorGroupYaml.getBytes(StandardCharsets.UTF_8)));
+        applier.apply(operatorGroupCrdContext, openShiftConfiguration.getNamespace(), operatorGroupYaml);
     }
 
-    private void createSubscription() throws IOException {
+    /**
+     * @param manualApproval - the install plan waits for approval, so the pull secret can be linked before the operator
+     * pod is created
+     */
+    private void createSubscription(boolean manualApproval) throws IOException {
         setupImageContentSourcePolicy();
 
         log.info("Creating operator subscription");
+        applySubscription(manualApproval ? "Manual" : "Automatic");
+    }
 
+    private void applySubscription(String installPlanApproval) throws IOException {
         String subscriptionYaml = readResource("openshift/create-subscription.yaml")
             .replaceAll("PACKAGE_NAME", quayPackageName)
-            .replaceAll("OPENSHIFT_PROJECT", openShiftConfiguration.getNamespace());
+            .replaceAll("OPENSHIFT_PROJECT", openShiftConfiguration.getNamespace())
+            .replaceAll("INSTALL_PLAN_APPROVAL", installPlanApproval)
+            .replaceAll("RUN_ID", ResourceLabels.runId());
 
         if (openShiftConfiguration.getInstalledCSV() != null) {
             subscriptionYaml = subscriptionYaml.replaceAll("STARTING_CSV", openShiftConfiguration.getInstalledCSV());
@@ -307,58 +428,179 @@ public class OpenShiftService {
             subscriptionYaml = subscriptionYaml.replaceAll("\\s*\\w*:\\s*STARTING_CSV", "");
         }
 
-        CustomResourceDefinitionContext subscriptionCrdContext = new CustomResourceDefinitionContext.Builder()
-            .withGroup("operators.coreos.com")
-            .withPlural("subscriptions")
-            .withScope("Namespaced")
-            .withVersion("v1alpha1")
-            .build();
+        applier.apply(InstallTracker.subscriptions(getClient()), openShiftConfiguration.getNamespace(), subscriptionYaml);
+    }
+
+    /**
+     * Waits for the install plan of the subscription, links the pull secret to the service accounts it is going to
+     * create and approves it. The subscription is switched back to automatic approval afterwards, so later upgrades
+     * are installed without waiting.
+     */
+    @SuppressWarnings("unchecked")
+    private void prelinkPullSecret() throws IOException {
+        String namespace = openShiftConfiguration.getNamespace();
+        AtomicReference<Map<String, Object>> pending = new AtomicReference<>();
+        try (Deadline approval = Deadline.current().share("install plan approval", 1.0 / 3)) {
+            waitForCustomResources(getClient(), InstallTracker.installPlans(getClient()), namespace, null, null,
+                plans -> {
+                    plans.stream()
+                        .filter(plan -> "RequiresApproval".equals(((Map<String, Object>) plan.getOrDefault("status", Collections.emptyMap())).get("phase")))
+                        .findFirst()
+                        .ifPresent(pending::set);
+                    return pending.get() != null;
+                },
+                2 * 60);
+        } catch (InterruptedException | TimeoutException e) {
+            log.error("There is no install plan waiting for approval");
+            throw new IOException("Install plan has not been created", e);
+        }
+
+        Map<String, Object> plan = pending.get();
+        for (String serviceAccount : serviceAccounts(plan)) {
+            linkPullSecret(serviceAccount);
+        }
 
-        openShiftClient.customResource(subscriptionCrdContext)
-            .createOrReplace(openShiftConfiguration.getNamespace(),
-                new ByteArrayInputStream(subscriptionYaml.getBytes(StandardCharsets.UTF_8)));
+        log.info("Approving install plan");
+        ((Map<String, Object>) plan.get("spec")).put("approved", true);
+        getClient().customResource(InstallTracker.installPlans(getClient()))
+            .edit(namespace, (String) ((Map<String, Object>) plan.get("metadata")).get("name"), plan);
+
+        log.info("Switching the subscription to automatic install plan approval");
+        applySubscription("Automatic");
+    }
+
+    /**
+     * Service accounts created by the plan steps and the ones used by the deployments of its CSV.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> serviceAccounts(Map<String, Object> plan) throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        List<Map<String, Object>> steps = (List<Map<String, Object>>) ((Map<String, Object>) plan.get("status")).get("plan");
+        for (Map<String, Object> step : steps == null ? Collections.<Map<String, Object>>emptyList() : steps) {
+            Map<String, Object> resource = (Map<String, Object>) step.get("resource");
+            if ("ServiceAccount".equals(resource.get("kind"))) {
+                names.add((String) resource.get("name"));
+            } else if ("ClusterServiceVersion".equals(resource.get("kind")) && resource.get("manifest") != null) {
+                JsonNode deployments = Parsers.readJsonTree((String) resource.get("manifest"))
+                    .path("spec").path("install").path("spec").path("deployments");
+                for (JsonNode deployment : deployments) {
+                    JsonNode serviceAccount = deployment.path("spec").path("template").path("spec").path("serviceAccountName");
+                    names.add(serviceAccount.isMissingNode() ? deployment.path("name").asText() : serviceAccount.asText());
+                }
+            }
+        }
+        return names;
+    }
 
+    private Deployment waitForOperatorDeployment() throws IOException {
+        String namespace = openShiftConfiguration.getNamespace();
         try {
-            waitFor(() ->
-                    openShiftClient.inNamespace(openShiftConfiguration.getNamespace()).pods().list().getItems().size() == 1,
-                1, 2 * 60);
+            waitFor(() -> getClient().apps().deployments().inNamespace(namespace).list().getItems().size() > 0, 1, 2 * 60);
         } catch (InterruptedException | TimeoutException e) {
-            log.error("There is no pod in project after waiting for 120 seconds");
-            throw new IOException("Pod has not been created and/or stared", e);
+            log.error("There is no deployment in project after waiting for 120 seconds");
+            throw new IOException("Operator deployment has not been created", e);
+        }
+        List<Deployment> deployments = getClient().apps().deployments().inNamespace(namespace).list().getItems();
+        if (deployments.size() != 1) {
+            log.error("Must be one deployment, actual number is " + deployments.size());
+            throw new IOException("There must be one deployment");
         }
+        return deployments.get(0);
+    }
+
+    private boolean hasPullSecret(String serviceAccountName) {
+        ServiceAccount sa = getClient().serviceAccounts().inNamespace(openShiftConfiguration.getNamespace())
+            .withName(serviceAccountName).get();
+        return sa != null && sa.getImagePullSecrets().stream()
+            .anyMatch(ref -> openShiftConfiguration.getPullSecretName().equals(ref.getName()));
     }
 
-    private void scaleOperatorPod(int scale, String operatorResourcesName) throws IOException {
-        openShiftClient
-            .apps().deployments().inNamespace(openShiftConfiguration.getNamespace())
-            .withName(operatorResourcesName).scale(scale);
+    /**
+     * Adds the pull secret to the service account, the account is created when it does not exist yet.
+     */
+    private void linkPullSecret(String serviceAccountName) {
+        log.info("Linking pull secret to service account '" + serviceAccountName + "'");
+        String namespace = openShiftConfiguration.getNamespace();
+        String pullSecretName = openShiftConfiguration.getPullSecretName();
+        ServiceAccount sa = getClient().serviceAccounts().inNamespace(namespace).withName(serviceAccountName).get();
+        if (sa == null) {
+            getClient().serviceAccounts().inNamespace(namespace).create(new ServiceAccountBuilder()
+                .withNewMetadata()
+                .withName(serviceAccountName)
+                .withNamespace(namespace)
+                .addToLabels(ResourceLabels.managed())
+                .endMetadata()
+                .addNewImagePullSecret(pullSecretName)
+                .build());
+        } else if (!hasPullSecret(serviceAccountName)) {
+            getClient().serviceAccounts().inNamespace(namespace).withName(serviceAccountName).edit()
+                .addNewImagePullSecret(pullSecretName)
+                .done();
+        }
+    }
+
+    /**
+     * Restarts the deployment the same way as {@code oc rollout restart}, and waits until the new pods are available.
+     */
+    private void rolloutRestart(String deploymentName) throws IOException {
+        String namespace = openShiftConfiguration.getNamespace();
+        Deployment restarted = getClient().apps().deployments().inNamespace(namespace).withName(deploymentName).edit()
+            .editSpec().editTemplate().editOrNewMetadata()
+            .addToAnnotations(RESTARTED_AT_ANNOTATION, Instant.now().toString())
+            .endMetadata().endTemplate().endSpec()
+            .done();
+        long generation = restarted.getMetadata().getGeneration();
         try {
-            HelperFunctions.waitFor(
-                () -> openShiftClient.pods().inNamespace(openShiftConfiguration.getNamespace())
-                    .list().getItems().size() == scale,
-                1, 30
-            );
+            waitFor(() -> isRolledOut(getClient().apps().deployments().inNamespace(namespace).withName(deploymentName).get(), generation),
+                1, 2 * 60);
         } catch (InterruptedException | TimeoutException e) {
-            log.error("Couldn't wait for pod to scale");
-            throw new IOException("Operator pod did not scale", e);
+            log.error("Couldn't wait for operator rollout");
+            throw new IOException("Operator deployment was not rolled out", e);
         }
     }
 
-    private void linkPullSecret(String operatorResourcesName) {
-        log.info("Linking pull secret to service account user");
-
-        HelperFunctions.linkPullSecret(
-            openShiftClient,
-            openShiftConfiguration.getNamespace(),
-            operatorResourcesName,
-            openShiftConfiguration.getPullSecretName());
+    private static boolean isRolledOut(Deployment deployment, long generation) {
+        if (deployment == null || deployment.getStatus() == null || deployment.getStatus().getObservedGeneration() == null
+            || deployment.getStatus().getObservedGeneration() < generation) {
+            return false;
+        }
+        int replicas = deployment.getSpec().getReplicas() == null ? 1 : deployment.getSpec().getReplicas();
+        DeploymentStatus status = deployment.getStatus();
+        return Objects.equals(status.getUpdatedReplicas(), replicas)
+            && Objects.equals(status.getAvailableReplicas(), replicas)
+            && Objects.equals(status.getReplicas(), replicas);
     }
 
+    /**
+     * @return the client of the admin user from the {@link ClientRegistry}, get it again instead of keeping it
+     */
     public OpenShift getClient() {
-        return openShiftClient;
+        return ClientRegistry.get(adminUser, openShiftConfiguration.getNamespace());
+    }
+
+    /**
+     * Keeps the client of the admin user open while an operation runs, see {@link ClientRegistry#lease}.
+     */
+    public ClientRegistry.Lease leaseClient() {
+        return ClientRegistry.lease(adminUser, openShiftConfiguration.getNamespace());
     }
 
     public OpenShiftUser getAdminUser() {
         return adminUser;
     }
+
+    /**
+     * @return user creating the namespace, null when the admin user creates it
+     */
+    public OpenShiftUser getRegularUser() {
+        return regularUser;
+    }
+
+    public ResourceApplier getApplier() {
+        return applier;
+    }
+
+    public ApiDiscovery getDiscovery() {
+        return ApiDiscovery.of(getClient());
+    }
 }
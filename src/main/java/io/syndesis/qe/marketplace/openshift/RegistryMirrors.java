@@ -0,0 +1,146 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Registry mirrors of a cluster, configured from a list of mirrors per source registry.
+ * <p>
+ * The mirrors are applied as an ImageDigestMirrorSet on clusters that serve it, or as an ImageContentSourcePolicy on older
+ * clusters and on clusters that already use ImageContentSourcePolicies, as both kinds can not be mixed. Every change of
+ * the mirrors rolls out to all nodes, so the resource is written only when its content differs, and each mirror list is
+ * set up once per cluster: concurrent callers wait for the setup in flight instead of starting their own.
+ */
+@Slf4j
+public class RegistryMirrors {
+
+    public static final String NAME = "brew-registry";
+
+    /**
+     * Mirrors of the Red Hat registries to brew, what the brew registry script used to configure.
+     */
+    public static final Map<String, List<String>> BREW;
+
+    static {
+        Map<String, List<String>> brew = new LinkedHashMap<>();
+        for (String source : Arrays.asList("registry.redhat.io", "registry.stage.redhat.io", "registry-proxy.engineering.redhat.com")) {
+            brew.put(source, Collections.singletonList("brew.registry.redhat.io"));
+        }
+        BREW = Collections.unmodifiableMap(brew);
+    }
+
+    private static final Map<String, RegistryMirrors> CLUSTERS = new ConcurrentHashMap<>();
+
+    private volatile OpenShift client;
+    private final Map<Map<String, List<String>>, CompletableFuture<Boolean>> setups = new ConcurrentHashMap<>();
+
+    private RegistryMirrors(OpenShift client) {
+        this.client = client;
+    }
+
+    public static RegistryMirrors of(OpenShift client) {
+        RegistryMirrors mirrors = CLUSTERS.computeIfAbsent(client.getMasterUrl().toString(), url -> new RegistryMirrors(client));
+        mirrors.client = client;
+        return mirrors;
+    }
+
+    /**
+     * Makes sure the cluster mirrors the source registries, the first call for a mirror list checks the cluster, later
+     * calls return right away.
+     *
+     * @param mirrors - mirror registries by source registry
+     * @return whether the cluster was changed by this call
+     */
+    public boolean ensure(Map<String, List<String>> mirrors, ResourceApplier applier) {
+        Map<String, List<String>> key = Collections.unmodifiableMap(new LinkedHashMap<>(mirrors));
+        CompletableFuture<Boolean> setup = new CompletableFuture<>();
+        CompletableFuture<Boolean> inFlight = setups.putIfAbsent(key, setup);
+        if (inFlight != null) {
+            try {
+                inFlight.join();
+                return false;
+            } catch (CompletionException e) {
+                // the failed setup was already removed, the next call tries again
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            boolean changed = apply(key, applier);
+            setup.complete(changed);
+            return changed;
+        } catch (RuntimeException e) {
+            setups.remove(key, setup);
+            setup.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets which mirrors were set up, for example after the mirror resource was deleted.
+     */
+    public void refresh() {
+        setups.clear();
+    }
+
+    private boolean apply(Map<String, List<String>> mirrors, ResourceApplier applier) {
+        ApiDiscovery discovery = ApiDiscovery.of(client);
+        boolean digestMirrorSets = discovery.supports("config.openshift.io", "imagedigestmirrorsets") && !hasPolicies(discovery);
+        CustomResourceDefinitionContext context = digestMirrorSets
+            ? discovery.context("config.openshift.io", "imagedigestmirrorsets")
+            : discovery.context("operator.openshift.io", "imagecontentsourcepolicies");
+
+        List<Map<String, Object>> entries = new ArrayList<>();
+        mirrors.forEach((source, sourceMirrors) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("source", source);
+            entry.put("mirrors", new ArrayList<>(sourceMirrors));
+            entries.add(entry);
+        });
+        Map<String, Object> spec = new HashMap<>();
+        spec.put(digestMirrorSets ? "imageDigestMirrors" : "repositoryDigestMirrors", entries);
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("name", NAME);
+        metadata.put("labels", new HashMap<>(ResourceLabels.anyRun()));
+        Map<String, Object> resource = new HashMap<>();
+        String kind = digestMirrorSets ? "ImageDigestMirrorSet" : "ImageContentSourcePolicy";
+        resource.put("kind", kind);
+        resource.put("metadata", metadata);
+        resource.put("spec", spec);
+
+        try {
+            boolean changed = applier.apply(context, null, resource);
+            log.info(changed ? "Registry mirrors were configured by {} {}" : "Registry mirrors of {} {} are up to date",
+                kind, NAME);
+            return changed;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to configure registry mirrors", e);
+        }
+    }
+
+    private boolean hasPolicies(ApiDiscovery discovery) {
+        return discovery.find("operator.openshift.io", "imagecontentsourcepolicies").map(context -> {
+            try {
+                List<?> items = (List<?>) client.customResource(context).list().get("items");
+                return items != null && !items.isEmpty();
+            } catch (KubernetesClientException e) {
+                log.debug("Unable to list image content source policies: {}", e.getMessage());
+                return false;
+            }
+        }).orElse(false);
+    }
+}
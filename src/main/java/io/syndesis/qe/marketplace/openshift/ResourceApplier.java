@@ -0,0 +1,193 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Applies resources only when their content hash differs from the one on the cluster, by a JSON merge patch that also
+ * removes the keys dropped since the last apply.
+ */
+@Slf4j
+public class ResourceApplier {
+
+    public static final String HASH_ANNOTATION = "marketplace-utilities.syndesis.io/content-hash";
+    public static final String APPLIED_KEYS_ANNOTATION = "marketplace-utilities.syndesis.io/applied-keys";
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final MediaType MERGE_PATCH = MediaType.parse("application/merge-patch+json");
+
+    private final Supplier<OpenShift> client;
+
+    private final AtomicInteger writes = new AtomicInteger();
+    private final AtomicInteger avoidedWrites = new AtomicInteger();
+
+    public ResourceApplier(OpenShift client) {
+        this(() -> client);
+    }
+
+    public ResourceApplier(Supplier<OpenShift> client) {
+        this.client = client;
+    }
+
+    public boolean apply(CustomResourceDefinitionContext context, String namespace, String yaml) throws IOException {
+        return apply(context, namespace, Parsers.readYamlMap(yaml));
+    }
+
+    public boolean apply(CustomResourceDefinitionContext context, String namespace, InputStream yaml) throws IOException {
+        return apply(context, namespace, Parsers.readYamlMap(yaml));
+    }
+
+    public boolean apply(CustomResourceDefinitionContext context, String namespace, Map<String, Object> desired) throws IOException {
+        desired.put("apiVersion", context.getGroup() + "/" + context.getVersion());
+        boolean namespaced = "Namespaced".equals(context.getScope());
+        return apply("apis/" + context.getGroup() + "/" + context.getVersion(), context.getPlural(), namespaced ? namespace : null, desired);
+    }
+
+    public boolean apply(String plural, HasMetadata resource) throws IOException {
+        Map<String, Object> desired = Parsers.toMap(resource);
+        return apply("api/v1", plural, resource.getMetadata().getNamespace(), desired);
+    }
+
+    public int getWrites() {
+        return writes.get();
+    }
+
+    public int getAvoidedWrites() {
+        return avoidedWrites.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean apply(String apiPath, String plural, String namespace, Map<String, Object> desired) throws IOException {
+        Map<String, Object> metadata = (Map<String, Object>) desired.computeIfAbsent("metadata", k -> new HashMap<>());
+        String name = (String) metadata.get("name");
+        if (namespace != null) {
+            metadata.put("namespace", namespace);
+        }
+        Map<String, Object> annotations = (Map<String, Object>) metadata.computeIfAbsent("annotations", k -> new HashMap<>());
+        annotations.remove(HASH_ANNOTATION);
+        annotations.remove(APPLIED_KEYS_ANNOTATION);
+        String hash = hash(desired);
+        annotations.put(HASH_ANNOTATION, hash);
+        annotations.put(APPLIED_KEYS_ANNOTATION, new String(Parsers.writeCanonicalJson(keys(desired)), StandardCharsets.UTF_8));
+
+        HttpUrl.Builder collection = HttpUrl.get(client.get().getMasterUrl()).newBuilder().addPathSegments(apiPath);
+        if (namespace != null) {
+            collection.addPathSegment("namespaces").addPathSegment(namespace);
+        }
+        collection.addPathSegment(plural);
+        HttpUrl resourceUrl = collection.build().newBuilder().addPathSegment(name).build();
+
+        Map<String, Object> current = call(new Request.Builder().url(resourceUrl).get().build(), true);
+        if (current != null) {
+            Map<String, Object> currentAnnotations = (Map<String, Object>) ((Map<String, Object>) current.get("metadata")).get("annotations");
+            if (currentAnnotations != null && hash.equals(currentAnnotations.get(HASH_ANNOTATION))) {
+                avoidedWrites.incrementAndGet();
+                log.debug("{} {} is up to date, skipping", plural, name);
+                return false;
+            }
+            Object appliedKeys = currentAnnotations == null ? null : currentAnnotations.get(APPLIED_KEYS_ANNOTATION);
+            if (appliedKeys != null) {
+                log.debug("Patching {} {}", plural, name);
+                Map<String, Object> patch = Parsers.readJsonMap(Parsers.writeCanonicalJson(desired));
+                removeDropped(patch, Parsers.readJsonMap((String) appliedKeys));
+                call(new Request.Builder().url(resourceUrl)
+                    .patch(RequestBody.create(MERGE_PATCH, Parsers.writeCanonicalJson(patch))).build(), false);
+            } else {
+                log.debug("Replacing {} {}, its applied keys are not known", plural, name);
+                metadata.put("resourceVersion", ((Map<String, Object>) current.get("metadata")).get("resourceVersion"));
+                call(new Request.Builder().url(resourceUrl)
+                    .put(RequestBody.create(JSON, Parsers.writeCanonicalJson(desired))).build(), false);
+                metadata.remove("resourceVersion");
+            }
+        } else {
+            log.debug("Creating {} {}", plural, name);
+            try {
+                call(new Request.Builder().url(collection.build())
+                    .post(RequestBody.create(JSON, Parsers.writeCanonicalJson(desired))).build(), false);
+            } catch (KubernetesClientException e) {
+                if (e.getCode() != 409) {
+                    throw e;
+                }
+                // created concurrently, e.g. a cluster scoped resource applied by parallel deployments
+                log.debug("{} {} was created concurrently, applying again", plural, name);
+                return apply(apiPath, plural, namespace, desired);
+            }
+        }
+        writes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The run id label is left out, so a later run skips a resource it would apply unchanged.
+     */
+    @SuppressWarnings("unchecked")
+    private static String hash(Map<String, Object> desired) throws IOException {
+        Map<String, Object> content = Parsers.readJsonMap(Parsers.writeCanonicalJson(desired));
+        Map<String, Object> metadata = (Map<String, Object>) content.get("metadata");
+        Map<String, Object> labels = (Map<String, Object>) metadata.get("labels");
+        if (labels != null) {
+            labels.remove(ResourceLabels.RUN_ID);
+        }
+        return DigestUtils.sha256Hex(Parsers.writeCanonicalJson(content));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> keys(Map<String, Object> object) {
+        Map<String, Object> keys = new HashMap<>();
+        object.forEach((key, value) -> keys.put(key, value instanceof Map ? keys((Map<String, Object>) value) : 1));
+        return keys;
+    }
+
+    /**
+     * Sets the keys applied last time but missing in the patch to null, so the merge patch removes them.
+     */
+    @SuppressWarnings("unchecked")
+    private static void removeDropped(Map<String, Object> patch, Map<String, Object> appliedKeys) {
+        appliedKeys.forEach((key, applied) -> {
+            if (!patch.containsKey(key) && applied instanceof Map) {
+                patch.put(key, new HashMap<>());
+            }
+            Object value = patch.get(key);
+            if (!patch.containsKey(key)) {
+                patch.put(key, null);
+            } else if (value instanceof Map && applied instanceof Map) {
+                removeDropped((Map<String, Object>) value, (Map<String, Object>) applied);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> call(Request request, boolean allowNotFound) throws IOException {
+        try (Response response = client.get().getHttpClient().newCall(request).execute()) {
+            if (allowNotFound && response.code() == 404) {
+                return null;
+            }
+            String body = response.body() == null ? "" : response.body().string();
+            if (!response.isSuccessful()) {
+                throw new KubernetesClientException(
+                    "Failure executing " + request.method() + " " + request.url() + ": " + body, response.code(), null);
+            }
+            return Parsers.readJsonMap(body);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import org.apache.commons.lang3.RandomStringUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Labels put on every resource created by this library, so it can be found and removed again without touching anything else.
+ * <p>
+ * Each JVM gets its own run id, it can be fixed by the {@code marketplace.run.id} system property.
+ */
+public final class ResourceLabels {
+
+    public static final String MANAGED = "marketplace-utilities.syndesis.io/managed";
+    public static final String RUN_ID = "marketplace-utilities.syndesis.io/run-id";
+
+    private static final String CURRENT_RUN_ID =
+        System.getProperty("marketplace.run.id", RandomStringUtils.random(8, true, true).toLowerCase());
+
+    private ResourceLabels() {
+    }
+
+    public static String runId() {
+        return CURRENT_RUN_ID;
+    }
+
+    /**
+     * Labels of resources created by the current run.
+     */
+    public static Map<String, String> managed() {
+        return run(CURRENT_RUN_ID);
+    }
+
+    public static Map<String, String> run(String runId) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put(MANAGED, "true");
+        labels.put(RUN_ID, runId);
+        return labels;
+    }
+
+    /**
+     * Labels of resources created by any run.
+     */
+    public static Map<String, String> anyRun() {
+        return Collections.singletonMap(MANAGED, "true");
+    }
+}
@@ -0,0 +1,143 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import static io.syndesis.qe.marketplace.util.HelperFunctions.deleteCustomResource;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.api.model.Secret;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Finds resources labelled by {@link ResourceLabels} and deletes them concurrently.
+ */
+@Slf4j
+public class ResourceSweeper {
+
+    private static final int THREADS = 8;
+
+    private final OpenShift client;
+
+    public ResourceSweeper(OpenShift client) {
+        this.client = client;
+    }
+
+    public int deleteRun(String runId) {
+        return delete(find(null, ResourceLabels.run(runId), r -> true));
+    }
+
+    public int delete(String namespace, Map<String, String> selector) {
+        return delete(find(namespace, selector, r -> true));
+    }
+
+    /**
+     * Deletes resources of other runs that are older than ttl seconds.
+     */
+    public int sweep(long ttl) {
+        Instant threshold = Instant.now().minusSeconds(ttl);
+        List<ManagedResource> leaked = find(null, ResourceLabels.anyRun(),
+            r -> !ResourceLabels.runId().equals(r.runId) && r.created != null && r.created.isBefore(threshold));
+        if (!leaked.isEmpty()) {
+            log.info("Sweeping {} resources left by runs older than {} seconds", leaked.size(), ttl);
+        }
+        return delete(leaked);
+    }
+
+    private List<ManagedResource> find(String namespace, Map<String, String> selector, Predicate<ManagedResource> filter) {
+        List<ManagedResource> found = new ArrayList<>();
+        for (CustomResourceDefinitionContext context : managedContexts(ApiDiscovery.of(client))) {
+            try {
+                Map<String, Object> list = client.customResource(context).list(namespace, selector);
+                for (Object item : (List<?>) list.get("items")) {
+                    found.add(ManagedResource.of(context, (Map<?, ?>) item));
+                }
+            } catch (KubernetesClientException e) {
+                log.debug("Unable to list {}: {}", context.getPlural(), e.getMessage());
+            }
+        }
+        List<Secret> secrets = namespace == null
+            ? client.secrets().inAnyNamespace().withLabels(selector).list().getItems()
+            : client.secrets().inNamespace(namespace).withLabels(selector).list().getItems();
+        for (Secret secret : secrets) {
+            found.add(new ManagedResource(null, secret.getMetadata().getNamespace(), secret.getMetadata().getName(),
+                secret.getMetadata().getLabels().get(ResourceLabels.RUN_ID), parse(secret.getMetadata().getCreationTimestamp()), null));
+        }
+        return found.stream().filter(filter).collect(Collectors.toList());
+    }
+
+    private int delete(List<ManagedResource> resources) {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CompletableFuture<?>[] deletions = resources.stream()
+                .map(resource -> CompletableFuture.runAsync(() -> delete(resource), executor))
+                .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(deletions).join();
+        } finally {
+            executor.shutdown();
+        }
+        return resources.size();
+    }
+
+    private void delete(ManagedResource resource) {
+        log.debug("Deleting {} {}/{}", resource.context == null ? "secret" : resource.context.getPlural(), resource.namespace, resource.name);
+        try {
+            if (resource.context == null) {
+                client.secrets().inNamespace(resource.namespace).withName(resource.name).delete();
+                return;
+            }
+            deleteCustomResource(client, resource.context, resource.namespace, resource.name);
+            if (resource.installedCSV != null) {
+                deleteCustomResource(client, InstallTracker.clusterServiceVersions(client), resource.namespace, resource.installedCSV);
+            }
+        } catch (KubernetesClientException e) {
+            log.warn("Unable to delete {}/{}: {}", resource.namespace, resource.name, e.getMessage());
+        }
+    }
+
+    private static Instant parse(String timestamp) {
+        return timestamp == null ? null : Instant.parse(timestamp);
+    }
+
+    private static List<CustomResourceDefinitionContext> managedContexts(ApiDiscovery discovery) {
+        return Stream.of("subscriptions", "operatorgroups", "catalogsources", "operatorsources")
+            .map(plural -> discovery.find("operators.coreos.com", plural))
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(Collectors.toList());
+    }
+
+    @AllArgsConstructor
+    private static class ManagedResource {
+        private final CustomResourceDefinitionContext context;
+        private final String namespace;
+        private final String name;
+        private final String runId;
+        private final Instant created;
+        private final String installedCSV;
+
+        static ManagedResource of(CustomResourceDefinitionContext context, Map<?, ?> resource) {
+            Map<?, ?> metadata = (Map<?, ?>) resource.get("metadata");
+            Map<?, ?> labels = (Map<?, ?>) metadata.get("labels");
+            Map<?, ?> status = (Map<?, ?>) resource.get("status");
+            return new ManagedResource(context,
+                (String) metadata.get("namespace"),
+                (String) metadata.get("name"),
+                labels == null ? null : (String) labels.get(ResourceLabels.RUN_ID),
+                parse((String) metadata.get("creationTimestamp")),
+                status == null ? null : (String) status.get("installedCSV"));
+        }
+    }
+}
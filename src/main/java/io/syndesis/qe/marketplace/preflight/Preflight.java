@@ -0,0 +1,357 @@
+package io.syndesis.qe.marketplace.preflight;
+
+import io.syndesis.qe.marketplace.manifests.Opm;
+import io.syndesis.qe.marketplace.openshift.ApiDiscovery;
+import io.syndesis.qe.marketplace.openshift.ClientRegistry;
+import io.syndesis.qe.marketplace.openshift.OpenShiftService;
+import io.syndesis.qe.marketplace.openshift.OpenShiftUser;
+import io.syndesis.qe.marketplace.preflight.PreflightReport.CheckResult;
+import io.syndesis.qe.marketplace.quay.QuayService;
+import io.syndesis.qe.marketplace.quay.QuayUser;
+import io.syndesis.qe.marketplace.util.Deadline;
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.io.IOUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Checks the environment before a run, so a missing tool, bad credentials or an unsupported cluster are reported in
+ * seconds instead of deep inside a deployment.
+ * <p>
+ * All checks run at the same time, each limited by {@code marketplace.preflight.timeout} seconds. Successful results
+ * are kept for {@code marketplace.preflight.ttl} seconds and shared by all instances, so repeated test class setups do
+ * not check again; failed checks always run again. Checks running in another instance are waited for instead of
+ * started twice.
+ */
+@Slf4j
+public class Preflight {
+
+    @FunctionalInterface
+    public interface Check {
+        /**
+         * @return what was found
+         */
+        String run() throws Exception;
+    }
+
+    private static final long TIMEOUT = Long.getLong("marketplace.preflight.timeout", 60);
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final Map<String, Cached> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * resources every deployment uses, {@code <plural>.<group>}
+     */
+    private static final List<String> REQUIRED_APIS = Arrays.asList(
+        "subscriptions.operators.coreos.com", "operatorgroups.operators.coreos.com", "catalogsources.operators.coreos.com",
+        "clusterserviceversions.operators.coreos.com", "installplans.operators.coreos.com",
+        "packagemanifests.packages.operators.coreos.com", "clusteroperators.config.openshift.io",
+        "operatorhubs.config.openshift.io");
+
+    private final Map<String, Check> checks = new LinkedHashMap<>();
+    private final Duration ttl;
+
+    public Preflight() {
+        this(Duration.ofSeconds(Long.getLong("marketplace.preflight.ttl", 600)));
+    }
+
+    /**
+     * @param ttl - how long successful results are reused
+     */
+    public Preflight(Duration ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Adds a check, checks with the same name share their cached result.
+     */
+    public Preflight check(String name, Check check) {
+        checks.put(name, check);
+        return this;
+    }
+
+    /**
+     * Checks the tool is installed and, for docker, that its daemon answers.
+     */
+    public Preflight containerTool(String tool) {
+        return check("container tool " + tool, () -> exec(tool, "version"));
+    }
+
+    /**
+     * Checks opm is on the PATH, or that it can be extracted from the operator registry image of the cluster.
+     */
+    public Preflight opm(OpenShiftService service) {
+        return check("opm for " + service.getAdminUser().getApiUrl(), () -> {
+            File opm = Opm.findOnPath().orElse(null);
+            if (opm != null) {
+                return opm + " " + exec(opm.getAbsolutePath(), "version");
+            }
+            exec("oc", "version", "--client");
+            return "not on PATH, will be extracted from " + Opm.getImage(service);
+        });
+    }
+
+    public Preflight quay(QuayService quayService) {
+        QuayUser user = quayService.getQuayUser();
+        return check("quay login " + user.getUserName() + " to " + user.getNamespace(), () -> {
+            quayService.loginToQuayAndGetToken();
+            return "token acquired";
+        });
+    }
+
+    /**
+     * Checks the cluster of the service is reachable, its users have the permissions a deployment needs and the
+     * cluster serves the required APIs.
+     */
+    public Preflight openShift(OpenShiftService service) {
+        String namespace = service.getClient().getNamespace();
+        OpenShiftUser admin = service.getAdminUser();
+        List<Permission> adminPermissions = new ArrayList<>(Arrays.asList(
+            new Permission("create", "operators.coreos.com", "subscriptions", namespace),
+            new Permission("create", "operators.coreos.com", "operatorgroups", namespace),
+            new Permission("create", "operators.coreos.com", "catalogsources", "openshift-marketplace"),
+            new Permission("create", "", "secrets", namespace),
+            new Permission("patch", "config.openshift.io", "operatorhubs", null)));
+        if (service.getRegularUser() == null) {
+            adminPermissions.add(new Permission("create", "project.openshift.io", "projectrequests", null));
+        } else {
+            user(service.getRegularUser(), namespace, new Permission("create", "project.openshift.io", "projectrequests", null));
+        }
+        user(admin, namespace, adminPermissions.toArray(new Permission[0]));
+        return check("required APIs of " + admin.getApiUrl(), () -> {
+            ApiDiscovery discovery = ApiDiscovery.of(service.getClient());
+            List<String> missing = REQUIRED_APIS.stream()
+                .filter(api -> !discovery.supports(api.substring(api.indexOf('.') + 1), api.substring(0, api.indexOf('.'))))
+                .collect(Collectors.toList());
+            if (!discovery.supports("config.openshift.io", "imagedigestmirrorsets")
+                && !discovery.supports("operator.openshift.io", "imagecontentsourcepolicies")) {
+                missing.add("imagedigestmirrorsets.config.openshift.io or imagecontentsourcepolicies.operator.openshift.io");
+            }
+            if (!missing.isEmpty()) {
+                throw new IllegalStateException("not served: " + String.join(", ", missing));
+            }
+            return "all served by " + discovery.getServerVersion();
+        });
+    }
+
+    /**
+     * Checks the user can log in to its cluster and has the permissions. The result is shared only by checks of the
+     * same user, namespace and permissions.
+     */
+    public Preflight user(OpenShiftUser user, String namespace, Permission... permissions) {
+        String checked = Arrays.stream(permissions).map(Permission::toString).sorted().distinct().collect(Collectors.joining(", "));
+        return check("cluster " + user.getApiUrl() + " as " + user.getUserName() + " in " + namespace + " to " + checked, () -> {
+            OpenShift client = ClientRegistry.get(user, namespace);
+            String version = Parsers.readJsonTree(call(client, new Request.Builder().url(url(client, "version")).get().build()))
+                .path("gitVersion").asText();
+            List<String> denied = new ArrayList<>();
+            for (Permission permission : permissions) {
+                if (!permission.isAllowed(client)) {
+                    denied.add(permission.toString());
+                }
+            }
+            if (!denied.isEmpty()) {
+                throw new IllegalStateException("not allowed to " + String.join(", ", denied));
+            }
+            return "reachable, " + version + ", " + permissions.length + " permissions granted";
+        });
+    }
+
+    public PreflightReport run() {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, checks.size()));
+        try {
+            Map<String, CompletableFuture<CheckResult>> futures = new LinkedHashMap<>();
+            checks.forEach((name, check) -> futures.put(name, submit(name, check, executor)));
+            List<CheckResult> results = new ArrayList<>();
+            futures.forEach((name, future) -> results.add(await(name, future)));
+            PreflightReport report = new PreflightReport(Duration.ofNanos(System.nanoTime() - start), results);
+            log.info(report.toString());
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException listing the failed checks
+     */
+    public PreflightReport require() {
+        PreflightReport report = run();
+        if (!report.isSuccess()) {
+            throw new IllegalStateException(report.toString());
+        }
+        return report;
+    }
+
+    /**
+     * Forgets all cached results.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    private CompletableFuture<CheckResult> submit(String name, Check check, ExecutorService executor) {
+        CompletableFuture<CheckResult> result = new CompletableFuture<>();
+        Cached fresh = new Cached(result, System.nanoTime() + ttl.toNanos());
+        Cached entry = CACHE.compute(name, (key, cached) -> cached != null && cached.isUsable() ? cached : fresh);
+        if (entry != fresh) {
+            return entry.result.thenApply(Preflight::cached);
+        }
+        executor.execute(() -> {
+            CheckResult done = run(name, check);
+            if (!done.isSuccess()) {
+                CACHE.remove(name, fresh);
+            }
+            result.complete(done);
+        });
+        return result;
+    }
+
+    private static CheckResult run(String name, Check check) {
+        long start = System.nanoTime();
+        try {
+            String detail = check.run();
+            return new CheckResult(name, true, detail, Duration.ofNanos(System.nanoTime() - start), false);
+        } catch (Exception e) {
+            String error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            return new CheckResult(name, false, error, Duration.ofNanos(System.nanoTime() - start), false);
+        }
+    }
+
+    private static CheckResult await(String name, CompletableFuture<CheckResult> future) {
+        try {
+            return future.get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return new CheckResult(name, false, "timed out after " + TIMEOUT + " s", Duration.ofSeconds(TIMEOUT), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new CheckResult(name, false, "interrupted", Duration.ZERO, false);
+        } catch (ExecutionException e) {
+            return new CheckResult(name, false, e.getCause().getMessage(), Duration.ZERO, false);
+        }
+    }
+
+    private static CheckResult cached(CheckResult result) {
+        return result.isSuccess() ? new CheckResult(result.getName(), true, result.getDetail(), Duration.ZERO, true) : result;
+    }
+
+    /**
+     * Runs the command and returns the first line of its output.
+     */
+    private static String exec(String... command) throws IOException, InterruptedException {
+        try (Deadline deadline = Deadline.start(String.join(" ", command), Duration.ofSeconds(TIMEOUT))) {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (Deadline.Registration registration = deadline.onCancel(process::destroyForcibly)) {
+                // read while the process runs, a full pipe would block it
+                String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim();
+                int exitValue = process.waitFor();
+                deadline.check();
+                if (exitValue != 0) {
+                    throw new IllegalStateException(String.join(" ", command) + " failed: " + output);
+                }
+                return output.isEmpty() ? "" : output.split("\n", 2)[0];
+            }
+        } catch (Deadline.DeadlineExceededException e) {
+            throw new IllegalStateException(String.join(" ", command) + " did not finish in " + TIMEOUT + " s", e);
+        }
+    }
+
+    private static HttpUrl url(OpenShift client, String path) {
+        return HttpUrl.get(client.getMasterUrl()).newBuilder().addPathSegments(path).build();
+    }
+
+    private static String call(OpenShift client, Request request) throws IOException {
+        try (Response response = client.getHttpClient().newCall(request).execute()) {
+            String body = response.body() == null ? "" : response.body().string();
+            if (!response.isSuccessful()) {
+                throw new KubernetesClientException(
+                    "Failure executing " + request.method() + " " + request.url() + ": " + body, response.code(), null);
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Verb on a resource, checked by a SelfSubjectAccessReview.
+     */
+    @AllArgsConstructor
+    public static class Permission {
+        private final String verb;
+        private final String group;
+        private final String resource;
+        /**
+         * null for cluster scoped resources
+         */
+        private final String namespace;
+
+        boolean isAllowed(OpenShift client) throws IOException {
+            ObjectNode review = Parsers.createObjectNode();
+            review.put("apiVersion", "authorization.k8s.io/v1");
+            review.put("kind", "SelfSubjectAccessReview");
+            ObjectNode attributes = review.putObject("spec").putObject("resourceAttributes")
+                .put("verb", verb)
+                .put("group", group)
+                .put("resource", resource);
+            if (namespace != null) {
+                attributes.put("namespace", namespace);
+            }
+            String response = call(client, new Request.Builder()
+                .url(url(client, "apis/authorization.k8s.io/v1/selfsubjectaccessreviews"))
+                .post(RequestBody.create(JSON, Parsers.writeJson(review)))
+                .build());
+            JsonNode status = Parsers.readJsonTree(response).path("status");
+            return status.path("allowed").asBoolean(false);
+        }
+
+        @Override
+        public String toString() {
+            return verb + " " + (group.isEmpty() ? resource : resource + "." + group) + (namespace == null ? "" : " in " + namespace);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Cached {
+        private final CompletableFuture<CheckResult> result;
+        private final long expires;
+
+        /**
+         * @return whether the check is still running or succeeded within the TTL
+         */
+        boolean isUsable() {
+            if (System.nanoTime() - expires > 0) {
+                return false;
+            }
+            return !result.isDone() || result.join().isSuccess();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.syndesis.qe.marketplace.preflight;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import lombok.Value;
+
+/**
+ * Results of all checks of one {@link Preflight} run.
+ */
+@Value
+public class PreflightReport {
+
+    @Value
+    public static class CheckResult {
+        String name;
+        boolean success;
+        /**
+         * what was found, or why the check failed
+         */
+        String detail;
+        Duration duration;
+        /**
+         * whether the result was reused from an earlier run
+         */
+        boolean cached;
+    }
+
+    Duration duration;
+    List<CheckResult> results;
+
+    public boolean isSuccess() {
+        return results.stream().allMatch(CheckResult::isSuccess);
+    }
+
+    public List<CheckResult> getFailures() {
+        return results.stream().filter(result -> !result.isSuccess()).collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Pre-flight of ").append(results.size()).append(" checks in ")
+            .append(duration.toMillis()).append(" ms, ").append(getFailures().size()).append(" failed:");
+        for (CheckResult result : results) {
+            sb.append(String.format("%n  %-8s %-50s %6d ms%s %s", result.isSuccess() ? "OK" : "FAILED", result.getName(),
+                result.getDuration().toMillis(), result.isCached() ? " (cached)" : "", String.valueOf(result.getDetail()).replace('\n', ' ')));
+        }
+        return sb.toString();
+    }
+}
@@ -1,29 +1,67 @@
 package io.syndesis.qe.marketplace.quay;
 
 import io.syndesis.qe.marketplace.tar.Compress;
+import io.syndesis.qe.marketplace.util.Deadline;
 import io.syndesis.qe.marketplace.util.HelperFunctions;
+import io.syndesis.qe.marketplace.util.Parsers;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONObject;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pushes the manifests of an operator image to a quay.io application.
+ * <p>
+ * The pushed archive is reproducible, so its digest identifies the patched manifests. A push is skipped when the release
+ * on quay.io already has the same digest. The local record of a previous run only saves compressing manifests that
+ * did not change since.
+ */
 @Slf4j
 public class QuayService {
 
+    /**
+     * digests of the manifests and the archives of pushed releases, {@code <namespace>/<package>/<release>}
+     */
+    private static final Path PUSH_RECORDS = Paths.get(System.getProperty("java.io.tmpdir"), "marketplace-quay-pushes");
+    private static final int PUSH_THREADS = Integer.getInteger("marketplace.quay.push.threads", 4);
+
     private final String operatorImage;
+    @Getter
     private final QuayUser quayUser;
 
     private final String QUAY_LOGIN_URL;
     private final String QUAY_PUSH_URL;
+    private final String QUAY_RELEASE_URL;
     private final String QUAY_REPOSITORY_URL;
     private final String QUAY_CHANGE_VISIBILITY_URL;
 
@@ -33,6 +71,24 @@ public class QuayService {
     @Getter
     private String packageName;
 
+    /**
+     * sha256 of the latest release pushed, or found already pushed, by the last {@link #createQuayProject()}
+     */
+    @Getter
+    private String pushedDigest;
+
+    /**
+     * true when the last {@link #createQuayProject()} did not have to push any release
+     */
+    @Getter
+    private boolean pushSkipped;
+
+    /**
+     * digests of the releases of the last {@link #createQuayProject()}, ordered by version
+     */
+    @Getter
+    private Map<String, String> releaseDigests = Collections.emptyMap();
+
     private final Map<String, String> envVars;
 
 
@@ -41,43 +97,125 @@ public class QuayService {
         this.quayUser = quayUser;
         this.envVars = envVars;
 
-        QUAY_LOGIN_URL = "https://quay.io/cnr/api/v1/users/login";
-        QUAY_PUSH_URL = "https://quay.io/cnr/api/v1/packages/" +
+        // quay.io can be replaced by a stub, see the load package
+        String quayUrl = System.getProperty("marketplace.quay.url", "https://quay.io");
+        QUAY_LOGIN_URL = quayUrl + "/cnr/api/v1/users/login";
+        QUAY_PUSH_URL = quayUrl + "/cnr/api/v1/packages/" +
                 quayUser.getNamespace() + "/QUAY_PACKAGE";
-        QUAY_REPOSITORY_URL = "https://quay.io/api/v1/repository/" +
+        QUAY_RELEASE_URL = QUAY_PUSH_URL + "/QUAY_RELEASE/helm";
+        QUAY_REPOSITORY_URL = quayUrl + "/api/v1/repository/" +
                 quayUser.getNamespace() + "/QUAY_PACKAGE";
         QUAY_CHANGE_VISIBILITY_URL = QUAY_REPOSITORY_URL + "/changevisibility";
     }
 
+    /**
+     * Pushes the latest version of the manifests tree as a single release.
+     */
     public String createQuayProject() throws IOException {
-        String operatorName = HelperFunctions.getOperatorName(operatorImage);
-        Path tempDir = Files.createTempDirectory(operatorName);
+        return createQuayProject(false, null);
+    }
+
+    public String createQuayProject(Duration deadline) throws IOException {
+        return createQuayProject(false, deadline);
+    }
+
+    /**
+     * Pushes every version of the manifests tree as its own release, so the upgrade history of the operator is
+     * available on quay. The release of a version contains the package file and all versions up to it.
+     */
+    public String createQuayProjectWithAllVersions() throws IOException {
+        return createQuayProject(true, null);
+    }
+
+    public String createQuayProjectWithAllVersions(Duration deadline) throws IOException {
+        return createQuayProject(true, deadline);
+    }
 
-        log.info("Cleaning temoporary directory " + tempDir.toString());
+    private String createQuayProject(boolean allVersions, Duration deadline) throws IOException {
+        try (Deadline creation = Deadline.start("create quay project", deadline)) {
+            return pushReleases(allVersions, creation);
+        }
+    }
 
-        FileUtils.cleanDirectory(tempDir.toFile());
+    private String pushReleases(boolean allVersions, Deadline deadline) throws IOException {
+        String operatorName = HelperFunctions.getOperatorName(operatorImage);
+        Path tempDir = Files.createTempDirectory(operatorName);
+        try {
+            return pushReleases(allVersions, deadline, operatorName, tempDir);
+        } finally {
+            FileUtils.deleteQuietly(tempDir.toFile());
+        }
+    }
 
+    private String pushReleases(boolean allVersions, Deadline deadline, String operatorName, Path tempDir) throws IOException {
         log.info("Acquiring manifests from operator image");
 
-        String result = HelperFunctions.copyManifestFilestFromImage(operatorImage, tempDir.toString());
+        String result;
+        try (Deadline copy = deadline.share("copy manifests from " + operatorImage, 0.5)) {
+            result = HelperFunctions.copyManifestFilestFromImage(operatorImage, tempDir.toString());
+        }
         if (StringUtils.isNotEmpty(result)) {
             log.error("Could not get files from image, result from docker command is:");
             log.error(result);
             throw new RuntimeException();
         }
 
-        packageName = HelperFunctions.getPackageName(tempDir.resolve("manifests"));
-        String operatorVersion = HelperFunctions.getOperatorVersion(tempDir.resolve("manifests"));
-        String tarFile = tempDir.toString() + "/" + packageName + ".tar.gz";
+        Path manifests = tempDir.resolve("manifests");
+        packageName = HelperFunctions.getPackageName(manifests);
+        List<String> versions = new ArrayList<>(HelperFunctions.getOperatorVersions(manifests));
+        if (versions.isEmpty()) {
+            versions.add(HelperFunctions.getOperatorVersion(manifests));
+        }
+        String operatorVersion = versions.get(versions.size() - 1);
 
         log.info("Operator application name is '" + packageName + "'");
         log.info("Operator version is '" + operatorVersion + "'");
 
-        String base64 = compressAndGetBase64(tempDir, operatorVersion, operatorName, tarFile);
-
-        String token = loginToQuayAndGetToken();
-        createApplicationOnQuay(base64, operatorVersion, packageName, token);
-        changeProjectVisibilityToPublic(packageName);
+        List<String> releases = allVersions ? versions : Collections.singletonList(operatorVersion);
+        Map<String, String> csvNames = new LinkedHashMap<>();
+        for (String version : releases) {
+            csvNames.put(version, fixManifest(manifests, version, operatorName, version.equals(operatorVersion)));
+        }
+        installedCSV = csvNames.get(operatorVersion);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(PUSH_THREADS, releases.size()));
+        try {
+            String manifestsDigest = treeDigest(manifests);
+            Map<String, Path> archives = new ConcurrentHashMap<>();
+            // each release is compressed at most once, by the task of the release
+            ReleaseTask<Path> archive = release -> {
+                Path compressed = archives.get(release);
+                if (compressed == null) {
+                    compressed = compress(tempDir, versions, release, csvNames.get(release));
+                    archives.put(release, compressed);
+                }
+                return compressed;
+            };
+            Map<String, String> digests = inParallel(pool, releases, release -> {
+                Map<String, Object> record = readPushRecord(release);
+                if (record != null && sourceDigest(manifestsDigest, release).equals(record.get("source"))) {
+                    log.info("Manifests of " + packageName + " " + release + " are unchanged since the last push, skipping compression");
+                    return (String) record.get("digest");
+                }
+                return sha256(archive.run(release));
+            });
+            releaseDigests = Collections.unmodifiableMap(digests);
+            pushedDigest = digests.get(operatorVersion);
+
+            // one login for all releases, quay.io is checked even when the manifests are recorded as pushed
+            String token = loginToQuayAndGetToken();
+            Map<String, Boolean> pushed = inParallel(pool, releases, release -> {
+                boolean push = pushIfChanged(release, archive, digests.get(release), token);
+                writePushRecord(release, sourceDigest(manifestsDigest, release), digests.get(release));
+                return push;
+            });
+            pushSkipped = !pushed.containsValue(true);
+            if (!pushSkipped) {
+                changeProjectVisibilityToPublic(packageName);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
 
         return packageName;
     }
@@ -90,10 +228,11 @@ public class QuayService {
                 null,
                 botToken
         );
+        FileUtils.deleteDirectory(PUSH_RECORDS.resolve(quayUser.getNamespace()).resolve(packageName).toFile());
     }
 
-    private Path findClusterServiceFile(Path tempDir, String operatorVersion, String operatorName) {
-        Path dir = tempDir.resolve("manifests").resolve(operatorVersion);
+    private Path findClusterServiceFile(Path manifests, String operatorVersion, String operatorName) {
+        Path dir = manifests.resolve(operatorVersion);
         String[] matches = dir.toFile().list((f, s) -> s.endsWith(operatorVersion + ".clusterserviceversion.yaml"));
         if (matches.length > 1){
             return dir.resolve(Arrays.stream(matches).filter(s -> s.contains("operator")).findFirst().get());
@@ -101,29 +240,210 @@ public class QuayService {
         return dir.resolve(matches[0]);
     }
 
-    private String compressAndGetBase64(Path tempDir,
-                                        String operatorVersion,
-                                        String operatorName,
-                                        String tarFile) throws IOException {
-
-        Path fileToFix = tempDir.resolve("manifests").resolve(operatorVersion)
+    /**
+     * Sets the operator image and environment in the CSV of the version. The latest version runs the operator image,
+     * older versions keep the image named by their own CSV.
+     *
+     * @return name of the CSV
+     */
+    private String fixManifest(Path manifests, String operatorVersion, String operatorName, boolean latest) throws IOException {
+        Path fileToFix = manifests.resolve(operatorVersion)
                 .resolve(operatorName + ".v" + operatorVersion + ".clusterserviceversion.yaml");
         if (Files.notExists(fileToFix)) {
-            fileToFix = findClusterServiceFile(tempDir, operatorVersion, operatorName);
+            fileToFix = findClusterServiceFile(manifests, operatorVersion, operatorName);
         }
         log.info("Fixing operator image in manifest file " + fileToFix.toString());
 
-        installedCSV = fileToFix.getFileName().toString().replace(".clusterserviceversion.yaml", "");
+        String image = latest ? operatorImage : csvImage(fileToFix);
+        HelperFunctions.replaceImageInManifest(fileToFix, image.isEmpty() ? operatorImage : image, envVars);
 
-        HelperFunctions.replaceImageInManifest(fileToFix, operatorImage, envVars);
+        return fileToFix.getFileName().toString().replace(".clusterserviceversion.yaml", "");
+    }
 
-        String random = RandomStringUtils.random(8, true, true).toLowerCase();
+    /**
+     * The latest release is the whole manifests tree. Older releases get the versions up to the release, and the
+     * channels of their package file that point to a newer CSV point to the CSV of the release instead.
+     */
+    @SuppressWarnings("unchecked")
+    private Path compress(Path tempDir, List<String> versions, String release, String csvName) throws IOException {
+        Path manifests = tempDir.resolve("manifests");
+        if (!release.equals(versions.get(versions.size() - 1))) {
+            Path releaseManifests = tempDir.resolve("releases").resolve(release);
+            Set<String> included = new HashSet<>(versions.subList(0, versions.indexOf(release) + 1));
+            Path packageFile = null;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(manifests)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (Files.isDirectory(entry) && included.contains(name)) {
+                        FileUtils.copyDirectory(entry.toFile(), releaseManifests.resolve(name).toFile());
+                    } else if (name.endsWith(".package.yaml")) {
+                        packageFile = entry;
+                    }
+                }
+            }
+            if (packageFile != null) {
+                Map<String, Object> content = Parsers.readYamlMap(packageFile);
+                for (Map<String, Object> channel : (List<Map<String, Object>>) content.get("channels")) {
+                    if (!containsCsv(releaseManifests, (String) channel.get("currentCSV"))) {
+                        channel.put("currentCSV", csvName);
+                    }
+                }
+                Files.write(releaseManifests.resolve(packageFile.getFileName()), Parsers.writeYaml(content).getBytes(StandardCharsets.UTF_8));
+            }
+            manifests = releaseManifests;
+        }
 
-        Compress compress = new Compress(tarFile, packageName + "-" + random);
-        compress.writedir(tempDir.resolve("manifests"));
-        compress.close();
+        Path tarFile = tempDir.resolve(packageName + "-" + release + ".tar.gz");
+        // the prefix has to be stable, otherwise every archive has a different digest
+        try (Compress compress = new Compress(tarFile.toString(), packageName + "-" + release)) {
+            compress.writedir(manifests);
+        }
+        return tarFile;
+    }
 
-        return HelperFunctions.encodeFileToBase64Binary(tarFile);
+    /**
+     * @return image of the operator container of the CSV, empty when it names none
+     */
+    private static String csvImage(Path csv) throws IOException {
+        return Parsers.readYamlTree(csv).at("/spec/install/spec/deployments/0/spec/template/spec/containers/0/image").asText();
+    }
+
+    private static boolean containsCsv(Path manifests, String csvName) throws IOException {
+        try (Stream<Path> walk = Files.walk(manifests)) {
+            return walk.anyMatch(file -> file.getFileName().toString().equals(csvName + ".clusterserviceversion.yaml"));
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return DigestUtils.sha256Hex(is);
+        }
+    }
+
+    /**
+     * @return digest of the paths and contents of all files in the folder
+     */
+    private static String treeDigest(Path folder) throws IOException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            digest.update(folder.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream is = Files.newInputStream(file)) {
+                DigestUtils.updateDigest(digest, is);
+            }
+            digest.update((byte) 0);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private String sourceDigest(String manifestsDigest, String release) {
+        return DigestUtils.sha256Hex(packageName + "\n" + release + "\n" + manifestsDigest);
+    }
+
+    /**
+     * @param archive - compresses the release, called only when it is pushed
+     * @return false when quay already has the same content for the release
+     */
+    private boolean pushIfChanged(String release, ReleaseTask<Path> archive, String digest, String token) throws IOException {
+        String remoteDigest = getReleaseDigest(packageName, release, token);
+        if (digest.equals(remoteDigest)) {
+            log.info("Release " + release + " of " + packageName + " on quay already has digest " + digest + ", skipping");
+            return false;
+        }
+        if (remoteDigest != null) {
+            log.warn("Release " + release + " of " + packageName + " on quay has different content, pushing it again");
+        }
+        createApplicationOnQuay(HelperFunctions.encodeFileToBase64Binary(archive.run(release).toString()), release, packageName, token);
+        return true;
+    }
+
+    private Path pushRecord(String release) {
+        return PUSH_RECORDS.resolve(quayUser.getNamespace()).resolve(packageName).resolve(release);
+    }
+
+    /**
+     * @return the record with the digests of the manifests and of the archive, null when missing or unreadable
+     */
+    private Map<String, Object> readPushRecord(String release) {
+        Path record = pushRecord(release);
+        if (Files.notExists(record)) {
+            return null;
+        }
+        try {
+            return Parsers.readJsonMap(Files.readAllBytes(record));
+        } catch (IOException e) {
+            log.debug("Ignoring unreadable push record " + record + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writePushRecord(String release, String source, String digest) throws IOException {
+        Path record = pushRecord(release);
+        Files.createDirectories(record.getParent());
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("source", source);
+        content.put("digest", digest);
+        Parsers.writeJson(record, content);
+    }
+
+    @FunctionalInterface
+    private interface ReleaseTask<T> {
+        T run(String release) throws IOException;
+    }
+
+    /**
+     * Runs the task for every release on the pool and waits for all of them.
+     *
+     * @return results by release, in the order of the releases
+     */
+    private static <T> Map<String, T> inParallel(ExecutorService pool, List<String> releases, ReleaseTask<T> task) throws IOException {
+        Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        Deadline deadline = Deadline.current();
+        for (String release : releases) {
+            Callable<T> call = deadline.wrap(() -> task.run(release));
+            futures.put(release, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, pool));
+        }
+        Map<String, T> results = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, CompletableFuture<T>> future : futures.entrySet()) {
+                results.put(future.getKey(), future.getValue().join());
+            }
+        } catch (CompletionException e) {
+            futures.values().forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return results;
+    }
+
+    /**
+     * @return digest of the release blob on quay, null when the release does not exist
+     */
+    private String getReleaseDigest(String packageName, String release, String token) {
+        String url = QUAY_RELEASE_URL.replaceAll("QUAY_PACKAGE", packageName).replaceAll("QUAY_RELEASE", release);
+        try {
+            JsonNode releaseNode = Parsers.readJsonTree(HelperFunctions.doGetRequest(url, token));
+            return releaseNode == null ? null : releaseNode.path("content").path("digest").asText(null);
+        } catch (IOException e) {
+            log.debug("Unable to read release " + release + " of " + packageName + ": " + e.getMessage());
+            return null;
+        }
     }
 
     public String loginToQuayAndGetToken() throws IOException {
@@ -135,12 +455,12 @@ public class QuayService {
 
         String quayLoginResponse = HelperFunctions.doPostRequest(QUAY_LOGIN_URL, quayLoginRequest, null);
 
-        JSONObject jsonObject = new JSONObject(quayLoginResponse);
-        return jsonObject.getString("token");
+        return Parsers.readJsonField(quayLoginResponse, "token")
+                .orElseThrow(() -> new IOException("Quay login response has no token: " + quayLoginResponse));
     }
 
     private void createApplicationOnQuay(String packagePayload, String operatorVersion, String packageName, String token) throws IOException {
-        log.info("Creating application on quay");
+        log.info("Creating release " + operatorVersion + " of application on quay");
 
         String pushBody = HelperFunctions.readResource("quay/quay-push.json")
                 .replaceAll("QUAY_PAYLOAD", packagePayload)
@@ -3,76 +3,29 @@ package io.syndesis.qe.marketplace.tar;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
-import org.apache.commons.io.IOUtils;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
-
-public class Compress {
-
-    private class Bundler extends SimpleFileVisitor<Path> {
-
-        private TarArchiveOutputStream out;
-        private Path toplevel;
-
-        public Bundler(TarArchiveOutputStream output, Path dir) {
-            out = output;
-            toplevel = dir;
-        }
-
-        private String getEntryName(Path path) {
-            return prefix.resolve(toplevel.relativize(path)).toString();
-        }
-
-        private InputStream getInputStream(Path path)
-            throws FileNotFoundException {
-            FileInputStream fin = new FileInputStream(path.toFile());
-            return new BufferedInputStream(fin);
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir,
-            BasicFileAttributes attrs) throws IOException {
-            String entryName = getEntryName(dir);
-
-            if (!"".equals(entryName)) {
-                // We allow tars with no top-level, but we are not proud of it.
-                TarArchiveEntry entry = new TarArchiveEntry(dir.toFile(), entryName);
-                out.putArchiveEntry(entry);
-                out.closeArchiveEntry();
-            }
-
-            return FileVisitResult.CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-            throws IOException {
-            String entryName = getEntryName(file);
-
-            TarArchiveEntry entry = new TarArchiveEntry(file.toFile(), entryName);
-            out.putArchiveEntry(entry);
-            IOUtils.copy(getInputStream(file), out);
-            out.closeArchiveEntry();
-
-            return FileVisitResult.CONTINUE;
-        }
-
-    }
-
-    private TarArchiveOutputStream output;
-    private Path prefix;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes a gzipped tar of a directory.
+ * <p>
+ * Archives are reproducible: entries are sorted and carry no timestamps, owners or host specific modes, and the gzip
+ * header has no modification time, so the same directory content always gives the same bytes.
+ */
+public class Compress implements Closeable {
+
+    private final TarArchiveOutputStream output;
+    private final Path prefix;
 
     public Compress(String outputFile, String prefix) throws IOException {
         FileOutputStream fileOut = new FileOutputStream(outputFile);
@@ -83,12 +36,39 @@ public class Compress {
         this.prefix = Paths.get(prefix);
     }
 
+    @Override
     public void close() throws IOException {
         output.close();
     }
 
     public void writedir(Path dir) throws IOException {
-        Bundler visitor = new Bundler(output, dir);
-        Files.walkFileTree(dir, visitor);
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted().collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            String entryName = prefix.resolve(dir.relativize(path)).toString();
+            if ("".equals(entryName)) {
+                // We allow tars with no top-level, but we are not proud of it.
+                continue;
+            }
+            boolean directory = Files.isDirectory(path);
+            TarArchiveEntry entry = new TarArchiveEntry(directory ? entryName + "/" : entryName);
+            entry.setModTime(new Date(0));
+            entry.setUserId(0);
+            entry.setGroupId(0);
+            entry.setUserName("");
+            entry.setGroupName("");
+            if (directory) {
+                entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                output.putArchiveEntry(entry);
+            } else {
+                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
+                entry.setSize(Files.size(path));
+                output.putArchiveEntry(entry);
+                Files.copy(path, output);
+            }
+            output.closeArchiveEntry();
+        }
     }
 }
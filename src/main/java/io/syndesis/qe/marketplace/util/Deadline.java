@@ -0,0 +1,223 @@
+package io.syndesis.qe.marketplace.util;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Time budget of an operation and of its steps, kept per thread. A step never gets more time than is left to the
+ * deadline it is nested in.
+ */
+@Slf4j
+public final class Deadline implements AutoCloseable {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private static final Deadline NONE = new Deadline("none", null, Long.MAX_VALUE);
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "deadline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Getter
+    private final String name;
+    private final Deadline parent;
+    private final long expiresAt;
+    private final List<AutoCloseable> cancellations = new CopyOnWriteArrayList<>();
+    private final Deque<Runnable> cleanups = new ArrayDeque<>();
+    private final List<Deadline> children = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+    private ScheduledFuture<?> timer;
+    private Deadline previous;
+
+    private Deadline(String name, Deadline parent, long expiresAt) {
+        this.name = name;
+        this.parent = parent;
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline current() {
+        Deadline current = CURRENT.get();
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * @param budget - time for the operation, null for the rest of the current deadline
+     */
+    public static Deadline start(String name, Duration budget) {
+        return current().step(name, budget);
+    }
+
+    /**
+     * @param budget - most the step may take, null for the rest of this deadline
+     */
+    public Deadline step(String name, Duration budget) {
+        long expires = budget == null ? expiresAt : Math.min(expiresAt, saturatedAdd(System.nanoTime(), budget.toNanos()));
+        Deadline step = new Deadline(name, this == NONE ? null : this, expires);
+        if (step.parent != null) {
+            step.parent.children.add(step);
+        }
+        if (expires != Long.MAX_VALUE) {
+            step.timer = TIMER.schedule(step::cancel, Math.max(0, expires - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        step.previous = CURRENT.get();
+        CURRENT.set(step);
+        return step;
+    }
+
+    public Deadline share(String name, double fraction) {
+        return step(name, expiresAt == Long.MAX_VALUE ? null : Duration.ofNanos((long) (remainingNanos() * fraction)));
+    }
+
+    public Duration remaining() {
+        return expiresAt == Long.MAX_VALUE ? null : Duration.ofNanos(Math.max(0, remainingNanos()));
+    }
+
+    public boolean isExpired() {
+        return cancelled || (expiresAt != Long.MAX_VALUE && remainingNanos() <= 0);
+    }
+
+    /**
+     * @return the timeout bounded by the time left, rounded up to whole seconds
+     */
+    public long bound(long timeoutSeconds) {
+        check();
+        if (expiresAt == Long.MAX_VALUE) {
+            return timeoutSeconds;
+        }
+        long remainingSeconds = TimeUnit.NANOSECONDS.toSeconds(remainingNanos() + TimeUnit.SECONDS.toNanos(1) - 1);
+        return Math.max(1, Math.min(timeoutSeconds, remainingSeconds));
+    }
+
+    public void check() {
+        if (isExpired()) {
+            throw new DeadlineExceededException(this);
+        }
+    }
+
+    /**
+     * Closes the resource as soon as this deadline or any enclosing one runs out.
+     */
+    public Registration onCancel(AutoCloseable resource) {
+        if (this == NONE) {
+            return () -> { };
+        }
+        for (Deadline deadline = this; deadline != null; deadline = deadline.parent) {
+            deadline.cancellations.add(resource);
+        }
+        if (isExpired()) {
+            close(resource);
+        }
+        return () -> {
+            for (Deadline deadline = this; deadline != null; deadline = deadline.parent) {
+                deadline.cancellations.remove(resource);
+            }
+        };
+    }
+
+    /**
+     * Runs the hook when this deadline is closed after it ran out.
+     */
+    public synchronized void addCleanup(Runnable hook) {
+        if (this != NONE) {
+            cleanups.push(hook);
+        }
+    }
+
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            Deadline previousInThread = CURRENT.get();
+            CURRENT.set(this == NONE ? null : this);
+            try {
+                return task.call();
+            } finally {
+                CURRENT.set(previousInThread);
+            }
+        };
+    }
+
+    private void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        log.warn("Deadline of '{}' ran out, cancelling {} processes and watches", name, cancellations.size());
+        cancellations.forEach(Deadline::close);
+        children.forEach(Deadline::cancel);
+    }
+
+    @Override
+    public void close() {
+        if (this == NONE) {
+            return;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (CURRENT.get() == this) {
+            CURRENT.set(previous);
+        }
+        if (parent != null) {
+            parent.children.remove(this);
+        }
+        if (isExpired()) {
+            Runnable hook;
+            while ((hook = pollCleanup()) != null) {
+                try {
+                    hook.run();
+                } catch (RuntimeException e) {
+                    log.warn("Cleanup of '{}' failed: {}", name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized Runnable pollCleanup() {
+        return cleanups.poll();
+    }
+
+    private long remainingNanos() {
+        return expiresAt - System.nanoTime();
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return ((a ^ sum) & (b ^ sum)) < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static void close(AutoCloseable resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            log.debug("Unable to cancel {}: {}", resource, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return expiresAt == Long.MAX_VALUE ? name : name + " (" + remaining().toMillis() + " ms left)";
+    }
+
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public static class DeadlineExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DeadlineExceededException(Deadline deadline) {
+            super("Deadline of '" + deadline.getName() + "' ran out");
+        }
+    }
+}
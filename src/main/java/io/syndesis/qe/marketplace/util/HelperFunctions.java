@@ -4,21 +4,19 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntityEnclosingRequest;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -31,13 +29,22 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -46,11 +53,26 @@ import io.fabric8.kubernetes.api.model.LocalObjectReference;
 import io.fabric8.kubernetes.api.model.ServiceAccount;
 import io.fabric8.kubernetes.api.model.ServiceAccountList;
 import io.fabric8.kubernetes.api.model.apiextensions.CustomResourceDefinition;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
 import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class HelperFunctions {
+    private static final long COMMAND_TIMEOUT = Long.getLong("marketplace.command.timeout", 30 * 60);
+    private static final long WATCH_RETRY_DELAY = 1000;
+    /**
+     * shared by all requests so connections to quay are pooled and reused
+     */
+    private static final CloseableHttpClient HTTP_CLIENT = HttpClients.custom()
+        .setMaxConnTotal(Integer.getInteger("marketplace.http.max.connections", 16))
+        .setMaxConnPerRoute(Integer.getInteger("marketplace.http.max.connections", 16))
+        // a pooled connection closed by the server fails the next request without any response, so it is safe to repeat
+        .setRetryHandler((exception, executionCount, context) -> executionCount <= 1 && exception instanceof NoHttpResponseException)
+        .build();
+
     public static String getPackageName(Path targetPath) throws IOException {
         try (Stream<Path> walk = Files.walk(targetPath)) {
             List<String> yamlFiles = walk.map(Path::toString)
@@ -58,18 +80,32 @@ public class HelperFunctions {
                 .collect(Collectors.toList());
 
             if (yamlFiles.size() > 0) {
-                YAMLParser parser = new YAMLFactory().createParser(new File(yamlFiles.get(0)));
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode packageFile = mapper.readTree(parser);
-
-                return packageFile.get("packageName").asText();
+                return Parsers.readYamlField(Paths.get(yamlFiles.get(0)), "packageName").orElse("");
             }
         }
 
         return "";
     }
 
+    /**
+     * @return names of the version directories of the manifests tree, ordered by semantic version
+     */
+    public static List<String> getOperatorVersions(Path targetPath) throws IOException {
+        try (Stream<Path> list = Files.list(targetPath)) {
+            return list.filter(Files::isDirectory)
+                .map(dir -> dir.getFileName().toString())
+                .filter(name -> SemanticVersion.parseOrNull(name) != null)
+                .sorted(Comparator.comparing(SemanticVersion::parse))
+                .collect(Collectors.toList());
+        }
+    }
+
     public static String getOperatorVersion(Path targetPath) throws IOException {
+        List<String> versions = getOperatorVersions(targetPath);
+        if (!versions.isEmpty()) {
+            return versions.get(versions.size() - 1);
+        }
+
         try (Stream<Path> walk = Files.walk(targetPath)) {
             List<String> directories = walk.filter(Files::isDirectory)
                 .map(Path::toString)
@@ -113,12 +149,25 @@ public class HelperFunctions {
         return sb.toString();
     }
 
+    /**
+     * @return client shared by all requests to registries
+     */
+    public static CloseableHttpClient httpClient() {
+        return HTTP_CLIENT;
+    }
+
     public static String doPostRequest(String url, String body, String auth) throws IOException {
         HttpPost httpPost = new HttpPost(url);
 
         return executeRequest(httpPost, body, auth);
     }
 
+    public static String doGetRequest(String url, String auth) throws IOException {
+        HttpGet httpGet = new HttpGet(url);
+
+        return executeRequest(httpGet, null, auth);
+    }
+
     public static String doDeleteRequest(String url, String body, String auth) throws IOException {
         HttpDelete httpDelete = new HttpDelete(url);
 
@@ -126,8 +175,6 @@ public class HelperFunctions {
     }
 
     private static String executeRequest(HttpUriRequest request, String body, String auth) throws IOException {
-        HttpClient client = HttpClients.createDefault();
-
         // if we need to use body and if request supports payload then we can attach it
         if (body != null && request instanceof HttpEntityEnclosingRequest) {
             ((HttpEntityEnclosingRequest) request).setEntity(new StringEntity(body));
@@ -138,14 +185,16 @@ public class HelperFunctions {
             request.addHeader("Authorization", auth);
         }
 
-        HttpResponse httpResponse = client.execute(request);
         StringBuilder sb = new StringBuilder();
-        if (httpResponse != null && httpResponse.getEntity() != null) {
-            try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(httpResponse.getEntity().getContent(), StandardCharsets.UTF_8))) {
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    sb.append(responseLine.trim());
+        try (Deadline.Registration registration = Deadline.current().onCancel(request::abort);
+            CloseableHttpResponse httpResponse = HTTP_CLIENT.execute(request)) {
+            if (httpResponse.getEntity() != null) {
+                try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(httpResponse.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    String responseLine;
+                    while ((responseLine = br.readLine()) != null) {
+                        sb.append(responseLine.trim());
+                    }
                 }
             }
         }
@@ -189,13 +238,16 @@ public class HelperFunctions {
         builder.redirectErrorStream(false);
         Process p = builder.start();
 
-        BufferedReader r = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-
-        String line;
         StringBuilder sb = new StringBuilder();
-        while ((line = r.readLine()) != null) {
-            sb.append(line).append("\n");
+        try (Deadline.Registration registration = Deadline.current().onCancel(p::destroyForcibly)) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+
+            String line;
+            while ((line = r.readLine()) != null) {
+                sb.append(line).append("\n");
+            }
         }
+        Deadline.current().check();
 
         return sb.toString();
     }
@@ -206,9 +258,7 @@ public class HelperFunctions {
     }
 
     public static void replaceImageInManifest(Path file, String operatorImage, Map<String, String> envVars) throws IOException {
-        YAMLParser parser = new YAMLFactory().createParser(file.toFile());
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode manifestFile = mapper.readTree(parser);
+        JsonNode manifestFile = Parsers.readYamlTree(file);
 
         JsonNode containerObject = manifestFile.get("spec").get("install").get("spec")
             .get("deployments").get(0).get("spec").get("template").get("spec")
@@ -219,14 +269,14 @@ public class HelperFunctions {
         if (envVars != null && !envVars.isEmpty()) {
             ArrayNode envArray = (ArrayNode) containerObject.get("env");
             for (Map.Entry<String, String> entry : envVars.entrySet()) {
-                ObjectNode newNode = mapper.createObjectNode();
+                ObjectNode newNode = Parsers.createObjectNode();
                 newNode.put("name", entry.getKey());
                 newNode.put("value", entry.getValue());
                 envArray.add(newNode);
             }
         }
 
-        String yaml = new YAMLMapper().writeValueAsString(manifestFile);
+        String yaml = Parsers.writeYaml(manifestFile);
 
         BufferedWriter writer = new BufferedWriter(new FileWriter(file.toString()));
         writer.write(yaml);
@@ -237,7 +287,7 @@ public class HelperFunctions {
         throws InterruptedException, TimeoutException {
 
         long intervalInMilis = interval * 1000;
-        long timeoutInMilis = timeout * 1000;
+        long timeoutInMilis = Deadline.current().bound(timeout) * 1000;
 
         long waitUntil = System.currentTimeMillis() + timeoutInMilis;
 
@@ -246,12 +296,138 @@ public class HelperFunctions {
                 return true;
             }
 
-            Thread.sleep(intervalInMilis);
+            Thread.sleep(Math.max(1, Math.min(intervalInMilis, waitUntil - System.currentTimeMillis())));
         }
 
+        Deadline.current().check();
         throw new TimeoutException();
     }
 
+    /**
+     * Waits until the custom resources matching name and labels satisfy the condition.
+     * <p>
+     * The current state is read once and then followed by a watch from its resource version, so no polling is involved.
+     * When the watch fails, for example with 410 Gone once its resource version is too old, the state is read again
+     * and a new watch follows it.
+     *
+     * @param name - name of a single resource, or null to follow all resources with the given labels
+     */
+    public static void waitForCustomResources(OpenShift client, CustomResourceDefinitionContext context, String namespace, String name,
+        Map<String, String> labels, Predicate<Collection<Map<String, Object>>> condition, long timeout)
+        throws InterruptedException, TimeoutException {
+
+        long bounded = Deadline.current().bound(timeout);
+        long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(bounded);
+        while (true) {
+            Map<String, Map<String, Object>> resources = new ConcurrentHashMap<>();
+            String resourceVersion = listCustomResources(client, context, namespace, name, labels, resources);
+            if (condition.test(resources.values())) {
+                return;
+            }
+
+            AtomicBoolean satisfied = new AtomicBoolean();
+            AtomicReference<String> failure = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(1);
+            Watcher<String> watcher = new Watcher<String>() {
+                @Override
+                public void eventReceived(Action action, String resource) {
+                    if (action == Action.ERROR) {
+                        failure.compareAndSet(null, "error event " + resource);
+                        done.countDown();
+                        return;
+                    }
+                    try {
+                        Map<String, Object> object = Parsers.readJsonMap(resource);
+                        if (action == Action.DELETED) {
+                            resources.remove(metadataValue(object, "name"));
+                        } else {
+                            resources.put(metadataValue(object, "name"), object);
+                        }
+                    } catch (IOException e) {
+                        log.warn("Unable to parse watched {}: {}", context.getPlural(), e.getMessage());
+                    }
+                    if (condition.test(resources.values())) {
+                        satisfied.set(true);
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void onClose(KubernetesClientException cause) {
+                    failure.compareAndSet(null, cause == null ? "closed" : cause.getMessage());
+                    done.countDown();
+                }
+            };
+
+            try (Watch watch = client.customResource(context).watch(namespace, name, labels, resourceVersion, watcher)) {
+                long remaining = waitUntil - System.nanoTime();
+                if (!done.await(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+                    Deadline.current().check();
+                    throw new TimeoutException("Condition on " + context.getPlural() + " was not met in " + bounded + " seconds");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (satisfied.get()) {
+                return;
+            }
+            log.warn("Watch of {} failed ({}), listing them again", context.getPlural(), failure.get());
+            Deadline.current().check();
+            if (System.nanoTime() - waitUntil >= 0) {
+                throw new TimeoutException("Condition on " + context.getPlural() + " was not met in " + bounded + " seconds");
+            }
+            Thread.sleep(WATCH_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Reads the matching resources into the map.
+     *
+     * @return resource version to watch from, null when the single resource does not exist yet
+     */
+    @SuppressWarnings("unchecked")
+    private static String listCustomResources(OpenShift client, CustomResourceDefinitionContext context, String namespace, String name,
+        Map<String, String> labels, Map<String, Map<String, Object>> resources) {
+        if (name != null) {
+            Map<String, Object> resource = null;
+            try {
+                resource = client.customResource(context).get(namespace, name);
+            } catch (KubernetesClientException e) {
+                log.debug("Resource {} {} does not exist yet", context.getPlural(), name);
+            }
+            if (resource != null) {
+                resources.put(name, resource);
+            }
+            return resource == null ? null : metadataValue(resource, "resourceVersion");
+        }
+        Map<String, Object> list = client.customResource(context).list(namespace, labels);
+        for (Object item : (List<?>) list.get("items")) {
+            Map<String, Object> resource = (Map<String, Object>) item;
+            resources.put(metadataValue(resource, "name"), resource);
+        }
+        return metadataValue(list, "resourceVersion");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String metadataValue(Map<String, Object> resource, String key) {
+        Map<String, Object> metadata = (Map<String, Object>) resource.get("metadata");
+        return metadata == null ? null : (String) metadata.get(key);
+    }
+
+    /**
+     * Deletes a custom resource. Newer fabric8 clients declare an IOException on the delete, it is rethrown as a
+     * KubernetesClientException like every other failure of the call.
+     */
+    public static void deleteCustomResource(OpenShift client, CustomResourceDefinitionContext context, String namespace, String name) {
+        try {
+            client.customResource(context).delete(namespace, name);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KubernetesClientException("Unable to delete " + context.getPlural() + " " + namespace + "/" + name, e);
+        }
+    }
+
     public static CustomResourceDefinitionContext getContext(CustomResourceDefinition crd) {
         CustomResourceDefinitionContext.Builder builder = new CustomResourceDefinitionContext.Builder()
             .withGroup(crd.getSpec().getGroup())
@@ -261,19 +437,32 @@ public class HelperFunctions {
         return builder.build();
     }
 
+    /**
+     * Kills the process when the current {@link Deadline} or {@code marketplace.command.timeout} seconds run out.
+     */
     public static void runCmd(String... command) {
-        try {
-            Process process = new ProcessBuilder(command).start();
-            int ret = 0;
-            ret = process.waitFor();
-            if (ret != 0) {
-                String out = IOUtils.toString(process.getErrorStream(), Charset.defaultCharset()) + "\n" +
-                    IOUtils.toString(process.getInputStream(), Charset.defaultCharset());
-                throw new RuntimeException(
-                    String.format("Command finished with non-zero value!, Command: '%s', Output: '%s'", Arrays.toString(command), out));
+        runCmd(null, command);
+    }
+
+    /**
+     * @param directory - working directory of the command, null for the current one
+     */
+    public static void runCmd(File directory, String... command) {
+        String name = String.join(" ", Arrays.asList(command).subList(0, Math.min(2, command.length)));
+        try (Deadline deadline = Deadline.start(name, Duration.ofSeconds(COMMAND_TIMEOUT))) {
+            Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+            try (Deadline.Registration registration = deadline.onCancel(process::destroyForcibly)) {
+                // read while the process runs, a full pipe would block it
+                String out = IOUtils.toString(process.getInputStream(), Charset.defaultCharset());
+                int ret = process.waitFor();
+                deadline.check();
+                if (ret != 0) {
+                    throw new RuntimeException(
+                        String.format("Command finished with non-zero value!, Command: '%s', Output: '%s'", Arrays.toString(command), out));
+                }
             }
         } catch (InterruptedException | IOException e) {
-            new RuntimeException(e);
+            throw new RuntimeException(e);
         }
     }
 }
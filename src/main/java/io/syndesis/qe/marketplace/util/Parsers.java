@@ -0,0 +1,150 @@
+package io.syndesis.qe.marketplace.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Shared JSON and YAML parsing, all of it goes through one pair of Jackson mappers.
+ * <p>
+ * The mappers are configured once and are thread safe, readers and writers derived from them are immutable and
+ * reused. The mappers returned by {@link #json()} and {@link #yaml()} must not be reconfigured.
+ */
+public final class Parsers {
+
+    private static final TypeReference<Map<String, Object>> MAP = new TypeReference<Map<String, Object>>() { };
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final YAMLMapper YAML = new YAMLMapper();
+
+    private static final ObjectReader JSON_MAP_READER = JSON.readerFor(MAP);
+    private static final ObjectReader YAML_MAP_READER = YAML.readerFor(MAP);
+    private static final ObjectWriter CANONICAL_JSON_WRITER = JSON.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+    private static final ObjectWriter PRETTY_JSON_WRITER = JSON.writerWithDefaultPrettyPrinter();
+    private static final ObjectWriter YAML_WRITER = YAML.writer();
+
+    private Parsers() {
+    }
+
+    public static ObjectMapper json() {
+        return JSON;
+    }
+
+    public static ObjectMapper yaml() {
+        return YAML;
+    }
+
+    public static ObjectNode createObjectNode() {
+        return JSON.createObjectNode();
+    }
+
+    public static Map<String, Object> readJsonMap(String json) throws IOException {
+        return JSON_MAP_READER.readValue(json);
+    }
+
+    public static Map<String, Object> readJsonMap(byte[] json) throws IOException {
+        return JSON_MAP_READER.readValue(json);
+    }
+
+    public static JsonNode readJsonTree(String json) throws IOException {
+        return JSON.readTree(json);
+    }
+
+    public static JsonNode readJsonTree(Path file) throws IOException {
+        return JSON.readTree(file.toFile());
+    }
+
+    public static Map<String, Object> readYamlMap(String yaml) throws IOException {
+        return YAML_MAP_READER.readValue(yaml);
+    }
+
+    public static Map<String, Object> readYamlMap(InputStream yaml) throws IOException {
+        return YAML_MAP_READER.readValue(yaml);
+    }
+
+    public static Map<String, Object> readYamlMap(Path file) throws IOException {
+        return YAML_MAP_READER.readValue(file.toFile());
+    }
+
+    public static JsonNode readYamlTree(Path file) throws IOException {
+        return YAML.readTree(file.toFile());
+    }
+
+    public static Map<String, Object> toMap(Object value) {
+        return JSON.convertValue(value, MAP);
+    }
+
+    /**
+     * JSON with map entries sorted by key, so equal content always gives the same bytes.
+     */
+    public static byte[] writeCanonicalJson(Object value) throws IOException {
+        return CANONICAL_JSON_WRITER.writeValueAsBytes(value);
+    }
+
+    public static byte[] writeJson(Object value) throws IOException {
+        return JSON.writeValueAsBytes(value);
+    }
+
+    public static void writeJson(Path file, Object value) throws IOException {
+        JSON.writeValue(file.toFile(), value);
+    }
+
+    public static String writePrettyJson(Object value) throws IOException {
+        return PRETTY_JSON_WRITER.writeValueAsString(value);
+    }
+
+    public static String writeYaml(Object value) throws IOException {
+        return YAML_WRITER.writeValueAsString(value);
+    }
+
+    public static byte[] writeYamlBytes(Object value) throws IOException {
+        return YAML_WRITER.writeValueAsBytes(value);
+    }
+
+    /**
+     * Streams the JSON document until the top level field is found, without building the whole tree.
+     */
+    public static Optional<String> readJsonField(String json, String field) throws IOException {
+        try (JsonParser parser = JSON.getFactory().createParser(json)) {
+            return readField(parser, field);
+        }
+    }
+
+    /**
+     * Streams the YAML document until the top level field is found, without building the whole tree.
+     */
+    public static Optional<String> readYamlField(Path file, String field) throws IOException {
+        try (InputStream is = Files.newInputStream(file); JsonParser parser = YAML.getFactory().createParser(is)) {
+            return readField(parser, field);
+        }
+    }
+
+    private static Optional<String> readField(JsonParser parser, String field) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return Optional.empty();
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals(name) && value.isScalarValue()) {
+                return Optional.ofNullable(parser.getValueAsString());
+            }
+            parser.skipChildren();
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,144 @@
+package io.syndesis.qe.marketplace.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Semantic version as used by operator bundles, with support for the range syntax of {@code olm.skipRange}.
+ */
+@Getter
+@EqualsAndHashCode(exclude = "build")
+public final class SemanticVersion implements Comparable<SemanticVersion> {
+
+    private static final Pattern VERSION = Pattern.compile(
+        "^v?(\\d+)(?:\\.(\\d+))?(?:\\.(\\d+))?(?:-([0-9A-Za-z.-]+))?(?:\\+([0-9A-Za-z.-]+))?$");
+    private static final Pattern COMPARATOR = Pattern.compile("^(>=|<=|>|<|=|!=)?\\s*(.+)$");
+    private static final Pattern OPERATOR_SPACE = Pattern.compile("(>=|<=|>|<|=|!=)\\s+");
+
+    private final int major;
+    private final int minor;
+    private final int patch;
+    private final String preRelease;
+    private final String build;
+
+    private SemanticVersion(int major, int minor, int patch, String preRelease, String build) {
+        this.major = major;
+        this.minor = minor;
+        this.patch = patch;
+        this.preRelease = preRelease;
+        this.build = build;
+    }
+
+    public static SemanticVersion parse(String version) {
+        Matcher m = VERSION.matcher(version.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Version " + version + " is not a semantic version");
+        }
+        return new SemanticVersion(Integer.parseInt(m.group(1)),
+            m.group(2) == null ? 0 : Integer.parseInt(m.group(2)),
+            m.group(3) == null ? 0 : Integer.parseInt(m.group(3)),
+            m.group(4), m.group(5));
+    }
+
+    /**
+     * @return the parsed version or null when the string is not a semantic version
+     */
+    public static SemanticVersion parseOrNull(String version) {
+        return version == null || !VERSION.matcher(version.trim()).matches() ? null : parse(version);
+    }
+
+    /**
+     * Parses a range like {@code >=1.0.0 <1.2.0}, comparators separated by spaces must all match, alternatives are
+     * separated by {@code ||}. An operator may be separated from its version by spaces, as in {@code >= 1.0.0}.
+     */
+    public static Predicate<SemanticVersion> range(String range) {
+        Predicate<SemanticVersion> result = v -> false;
+        for (String alternative : range.split("\\|\\|")) {
+            Predicate<SemanticVersion> all = v -> true;
+            for (String comparator : OPERATOR_SPACE.matcher(alternative.trim()).replaceAll("$1").split("\\s+")) {
+                all = all.and(comparator(comparator));
+            }
+            result = result.or(all);
+        }
+        return result;
+    }
+
+    private static Predicate<SemanticVersion> comparator(String comparator) {
+        Matcher m = COMPARATOR.matcher(comparator);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Invalid version range " + comparator);
+        }
+        SemanticVersion bound = parse(m.group(2));
+        String operator = m.group(1) == null ? "=" : m.group(1);
+        switch (operator) {
+            case ">=":
+                return v -> v.compareTo(bound) >= 0;
+            case "<=":
+                return v -> v.compareTo(bound) <= 0;
+            case ">":
+                return v -> v.compareTo(bound) > 0;
+            case "<":
+                return v -> v.compareTo(bound) < 0;
+            case "!=":
+                return v -> v.compareTo(bound) != 0;
+            default:
+                return v -> v.compareTo(bound) == 0;
+        }
+    }
+
+    @Override
+    public int compareTo(SemanticVersion o) {
+        int result = Integer.compare(major, o.major);
+        if (result == 0) {
+            result = Integer.compare(minor, o.minor);
+        }
+        if (result == 0) {
+            result = Integer.compare(patch, o.patch);
+        }
+        if (result == 0) {
+            result = comparePreRelease(preRelease, o.preRelease);
+        }
+        return result;
+    }
+
+    /**
+     * A version without a pre-release is greater than the same version with one, identifiers are compared one by one.
+     */
+    private static int comparePreRelease(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        List<String> left = new ArrayList<>(Arrays.asList(a.split("\\.")));
+        List<String> right = new ArrayList<>(Arrays.asList(b.split("\\.")));
+        for (int i = 0; i < Math.min(left.size(), right.size()); i++) {
+            String l = left.get(i);
+            String r = right.get(i);
+            boolean lNumeric = l.chars().allMatch(Character::isDigit);
+            boolean rNumeric = r.chars().allMatch(Character::isDigit);
+            int result;
+            if (lNumeric && rNumeric) {
+                result = Long.compare(Long.parseLong(l), Long.parseLong(r));
+            } else if (lNumeric || rNumeric) {
+                result = lNumeric ? -1 : 1;
+            } else {
+                result = l.compareTo(r);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(left.size(), right.size());
+    }
+
+    @Override
+    public String toString() {
+        return major + "." + minor + "." + patch + (preRelease == null ? "" : "-" + preRelease) + (build == null ? "" : "+" + build);
+    }
+}
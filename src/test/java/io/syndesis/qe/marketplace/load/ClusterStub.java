@@ -0,0 +1,627 @@
+package io.syndesis.qe.marketplace.load;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+import io.fabric8.mockwebserver.Context;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Embedded stand-in for an OpenShift cluster with OLM, served by the fabric8 Kubernetes mock server.
+ * <p>
+ * Resources are kept in memory and served by a generic API with create, get, list, replace, merge patch, delete and
+ * watch, discovery lists the groups used by the library. OLM is simulated: after {@link #setOlmLatencyMillis(long)} a
+ * Subscription gets an InstallPlan, a CSV and an available operator Deployment, and a CatalogSource becomes ready and
+ * serves the packages registered for its image by {@link #addCatalogPackages(String, String...)}.
+ */
+@Slf4j
+public class ClusterStub implements AutoCloseable {
+
+    /**
+     * group, version, plural, kind and whether the resource is namespaced
+     */
+    private static final List<String[]> RESOURCES = Arrays.asList(
+        new String[] {"", "v1", "namespaces", "Namespace", "false"},
+        new String[] {"", "v1", "secrets", "Secret", "true"},
+        new String[] {"", "v1", "serviceaccounts", "ServiceAccount", "true"},
+        new String[] {"", "v1", "pods", "Pod", "true"},
+        new String[] {"", "v1", "events", "Event", "true"},
+        new String[] {"apps", "v1", "deployments", "Deployment", "true"},
+        new String[] {"project.openshift.io", "v1", "projects", "Project", "false"},
+        new String[] {"project.openshift.io", "v1", "projectrequests", "ProjectRequest", "false"},
+        new String[] {"config.openshift.io", "v1", "operatorhubs", "OperatorHub", "false"},
+        new String[] {"config.openshift.io", "v1", "imagedigestmirrorsets", "ImageDigestMirrorSet", "false"},
+        new String[] {"operators.coreos.com", "v1", "operatorgroups", "OperatorGroup", "true"},
+        new String[] {"operators.coreos.com", "v1", "operatorsources", "OperatorSource", "true"},
+        new String[] {"operators.coreos.com", "v1alpha1", "subscriptions", "Subscription", "true"},
+        new String[] {"operators.coreos.com", "v1alpha1", "installplans", "InstallPlan", "true"},
+        new String[] {"operators.coreos.com", "v1alpha1", "clusterserviceversions", "ClusterServiceVersion", "true"},
+        new String[] {"operators.coreos.com", "v1alpha1", "catalogsources", "CatalogSource", "true"},
+        new String[] {"packages.operators.coreos.com", "v1", "packagemanifests", "PackageManifest", "true"});
+    private static final int EVENT_LOG_SIZE = 10_000;
+
+    private final KubernetesMockServer server;
+    private final ScheduledExecutorService olm = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "olm-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * objects by name, by {@code <api path>|<namespace>|<plural>}
+     */
+    private final Map<String, Map<String, Map<String, Object>>> collections = new HashMap<>();
+    private final LinkedList<WatchEvent> events = new LinkedList<>();
+    private final Set<WatchSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<String>> catalogPackages = new ConcurrentHashMap<>();
+    private long resourceVersion;
+
+    @Getter
+    private final AtomicLong requests = new AtomicLong();
+    @Getter
+    private final AtomicLong writes = new AtomicLong();
+    /**
+     * time OLM takes to act on a Subscription or a CatalogSource
+     */
+    @Setter
+    private volatile long olmLatencyMillis = 50;
+    /**
+     * whether project requests are provisioned, otherwise they are accepted but the project never shows up
+     */
+    @Setter
+    private volatile boolean provisionProjects = true;
+
+    public ClusterStub() {
+        MockWebServer mockWebServer = new MockWebServer();
+        server = new KubernetesMockServer(new Context(), mockWebServer, new HashMap<>(), new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                requests.incrementAndGet();
+                try {
+                    return handle(request);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Cluster stub failed on {} {}: {}", request.getMethod(), request.getPath(), e.toString());
+                    return status(500, e.toString());
+                }
+            }
+        }, false);
+        server.init();
+        log.info("Cluster stub listening on {}", getUrl());
+    }
+
+    public String getUrl() {
+        String url = server.url("/");
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Catalog sources of the image serve these packages once they are ready.
+     */
+    public void addCatalogPackages(String image, String... packages) {
+        catalogPackages.put(image, Arrays.asList(packages));
+    }
+
+    public synchronized int count(String plural) {
+        return collections.entrySet().stream().filter(entry -> entry.getKey().endsWith("|" + plural)).mapToInt(entry -> entry.getValue().size()).sum();
+    }
+
+    private MockResponse handle(RecordedRequest request) throws IOException {
+        HttpUrl url = request.getRequestUrl();
+        List<String> segments = new ArrayList<>(url.pathSegments());
+        segments.removeIf(String::isEmpty);
+        String method = request.getMethod();
+        if (segments.equals(Collections.singletonList("version"))) {
+            return json(200, map("major", "1", "minor", "19", "gitVersion", "v1.19.0"));
+        }
+        if (segments.isEmpty() || !("api".equals(segments.get(0)) || "apis".equals(segments.get(0)))) {
+            return status(404, "not found");
+        }
+        boolean core = "api".equals(segments.get(0));
+        if (!core && segments.size() == 1) {
+            return json(200, groupList());
+        }
+        int prefix = core ? 2 : 3;
+        if (segments.size() < prefix) {
+            return core ? json(200, map("kind", "APIVersions", "versions", Collections.singletonList("v1"))) : status(404, "not found");
+        }
+        String group = core ? "" : segments.get(1);
+        String version = segments.get(prefix - 1);
+        if (segments.size() == prefix) {
+            return json(200, resourceList(group, version));
+        }
+
+        List<String> rest = segments.subList(prefix, segments.size());
+        String namespace = null;
+        if ("namespaces".equals(rest.get(0)) && rest.size() >= 3) {
+            namespace = rest.get(1);
+            rest = rest.subList(2, rest.size());
+        }
+        String plural = rest.get(0);
+        String name = rest.size() > 1 ? rest.get(1) : null;
+        String subresource = rest.size() > 2 ? rest.get(2) : null;
+        String[] resource = resource(group, version, plural);
+        if (resource == null) {
+            return status(404, plural + " is not served");
+        }
+        String apiPath = String.join("/", segments.subList(0, prefix));
+        String key = apiPath + "|" + (namespace == null ? "" : namespace) + "|" + plural;
+        String body = request.getBody().readUtf8();
+
+        if ("log".equals(subresource)) {
+            return new MockResponse().setResponseCode(200).setBody("");
+        }
+        switch (method) {
+            case "GET":
+                if ("true".equals(url.queryParameter("watch"))) {
+                    String fieldSelector = url.queryParameter("fieldSelector");
+                    String watchedName = name != null ? name
+                        : fieldSelector != null && fieldSelector.startsWith("metadata.name=") ? fieldSelector.substring("metadata.name=".length()) : null;
+                    return watch(new WatchSession(key, watchedName, labels(url.queryParameter("labelSelector"))), url.queryParameter("resourceVersion"));
+                }
+                return name == null ? json(200, list(key, resource, url.queryParameter("labelSelector"))) : get(key, name);
+            case "POST":
+                if ("projectrequests".equals(plural)) {
+                    return createProject(Parsers.readJsonMap(body));
+                }
+                return create(key, resource, namespace, Parsers.readJsonMap(body));
+            case "PUT":
+                return replace(key, resource, namespace, name, Parsers.readJsonMap(body));
+            case "PATCH":
+                if (!String.valueOf(request.getHeader("Content-Type")).contains("merge-patch")) {
+                    return status(415, "only merge patches are supported");
+                }
+                return patch(key, name, Parsers.readJsonMap(body));
+            case "DELETE":
+                if ("projects".equals(plural)) {
+                    return deleteProject(name);
+                }
+                return delete(key, name, url.queryParameter("labelSelector"));
+            default:
+                return status(405, method + " is not supported");
+        }
+    }
+
+    private synchronized MockResponse get(String key, String name) throws IOException {
+        Map<String, Object> object = collection(key).get(name);
+        return object == null ? status(404, name + " not found") : json(200, object);
+    }
+
+    private synchronized Map<String, Object> list(String key, String[] resource, String labelSelector) {
+        Map<String, String> labels = labels(labelSelector);
+        List<Object> items = new ArrayList<>();
+        collections.forEach((collectionKey, objects) -> {
+            // a namespaced collection without a namespace lists all namespaces
+            if (collectionKey.equals(key) || key.endsWith("||" + resource[2]) && sameResource(collectionKey, key)) {
+                objects.values().stream().filter(object -> matches(object, null, labels)).forEach(items::add);
+            }
+        });
+        return map("kind", resource[3] + "List", "apiVersion", apiVersion(resource),
+            "metadata", map("resourceVersion", String.valueOf(resourceVersion)), "items", items);
+    }
+
+    private MockResponse create(String key, String[] resource, String namespace, Map<String, Object> object) throws IOException {
+        Map<String, Object> created;
+        synchronized (this) {
+            String name = name(object);
+            if (name == null) {
+                return status(422, "metadata.name is required");
+            }
+            if (collection(key).containsKey(name)) {
+                return status(409, name + " already exists");
+            }
+            Map<String, Object> metadata = metadata(object);
+            metadata.put("uid", UUID.randomUUID().toString());
+            metadata.put("creationTimestamp", Instant.now().toString());
+            created = store(key, resource, namespace, object, "ADDED");
+        }
+        afterWrite(resource[2], namespace, created);
+        return json(201, created);
+    }
+
+    private MockResponse replace(String key, String[] resource, String namespace, String name, Map<String, Object> object) throws IOException {
+        Map<String, Object> replaced;
+        synchronized (this) {
+            Map<String, Object> current = collection(key).get(name);
+            if (current == null) {
+                return status(404, name + " not found");
+            }
+            Object expected = metadata(object).get("resourceVersion");
+            if (expected != null && !expected.equals(metadata(current).get("resourceVersion"))) {
+                return status(409, name + " was modified");
+            }
+            metadata(object).put("uid", metadata(current).get("uid"));
+            metadata(object).put("creationTimestamp", metadata(current).get("creationTimestamp"));
+            replaced = store(key, resource, namespace, object, "MODIFIED");
+        }
+        afterWrite(resource[2], namespace, replaced);
+        return json(200, replaced);
+    }
+
+    private MockResponse patch(String key, String name, Map<String, Object> patch) throws IOException {
+        String[] resource = resourceOf(key);
+        String namespace = key.split("\\|", -1)[1];
+        Map<String, Object> patched;
+        synchronized (this) {
+            Map<String, Object> current = collection(key).get(name);
+            if (current == null) {
+                return status(404, name + " not found");
+            }
+            Map<String, Object> merged = Parsers.readJsonMap(Parsers.writeJson(current));
+            merge(merged, patch);
+            patched = store(key, resource, namespace.isEmpty() ? null : namespace, merged, "MODIFIED");
+        }
+        afterWrite(resource[2], namespace, patched);
+        return json(200, patched);
+    }
+
+    private synchronized MockResponse delete(String key, String name, String labelSelector) throws IOException {
+        Map<String, Map<String, Object>> objects = collection(key);
+        if (name != null) {
+            Map<String, Object> deleted = objects.remove(name);
+            if (deleted == null) {
+                return status(404, name + " not found");
+            }
+            record(key, "DELETED", deleted);
+            return json(200, map("kind", "Status", "status", "Success"));
+        }
+        Map<String, String> labels = labels(labelSelector);
+        for (Map<String, Object> deleted : new ArrayList<>(objects.values())) {
+            if (matches(deleted, null, labels)) {
+                objects.remove(name(deleted));
+                record(key, "DELETED", deleted);
+            }
+        }
+        return json(200, map("kind", "Status", "status", "Success"));
+    }
+
+    private MockResponse createProject(Map<String, Object> request) throws IOException {
+        String name = name(request);
+        if (!provisionProjects) {
+            return json(201, map("apiVersion", "project.openshift.io/v1", "kind", "ProjectRequest", "metadata", map("name", name)));
+        }
+        synchronized (this) {
+            if (collection("apis/project.openshift.io/v1||projects").containsKey(name)) {
+                return status(409, name + " already exists");
+            }
+            store("apis/project.openshift.io/v1||projects", resource("project.openshift.io", "v1", "projects"), null,
+                map("metadata", map("name", name, "uid", UUID.randomUUID().toString()), "status", map("phase", "Active")), "ADDED");
+            store("api/v1||namespaces", resource("", "v1", "namespaces"), null,
+                map("metadata", map("name", name, "uid", UUID.randomUUID().toString()), "status", map("phase", "Active")), "ADDED");
+        }
+        return json(201, map("apiVersion", "project.openshift.io/v1", "kind", "ProjectRequest", "metadata", map("name", name)));
+    }
+
+    private synchronized MockResponse deleteProject(String name) throws IOException {
+        Map<String, Object> project = collection("apis/project.openshift.io/v1||projects").remove(name);
+        if (project == null) {
+            return status(404, name + " not found");
+        }
+        record("apis/project.openshift.io/v1||projects", "DELETED", project);
+        collection("api/v1||namespaces").remove(name);
+        collections.entrySet().removeIf(entry -> entry.getKey().contains("|" + name + "|"));
+        return json(200, map("kind", "Status", "status", "Success"));
+    }
+
+    private Map<String, Object> store(String key, String[] resource, String namespace, Map<String, Object> object, String type) {
+        Map<String, Object> metadata = metadata(object);
+        object.put("apiVersion", apiVersion(resource));
+        object.put("kind", resource[3]);
+        if (namespace != null) {
+            metadata.put("namespace", namespace);
+        }
+        metadata.put("resourceVersion", String.valueOf(++resourceVersion));
+        collection(key).put(name(object), object);
+        writes.incrementAndGet();
+        record(key, type, object);
+        return object;
+    }
+
+    /**
+     * Logs the event and sends it to the open watches, called with the lock held so watches see events in order.
+     */
+    private void record(String key, String type, Map<String, Object> object) {
+        WatchEvent event = new WatchEvent(key, type, object, resourceVersion);
+        events.add(event);
+        if (events.size() > EVENT_LOG_SIZE) {
+            events.removeFirst();
+        }
+        sessions.forEach(session -> session.send(event));
+    }
+
+    private MockResponse watch(WatchSession session, String fromVersion) {
+        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response) {
+                synchronized (ClusterStub.this) {
+                    session.socket = webSocket;
+                    if (fromVersion == null || fromVersion.isEmpty() || "0".equals(fromVersion)) {
+                        collection(session.key).values()
+                            .forEach(object -> session.send(new WatchEvent(session.key, "ADDED", object, resourceVersion)));
+                    } else {
+                        long from = Long.parseLong(fromVersion);
+                        if (!events.isEmpty() && events.getFirst().resourceVersion > from + 1) {
+                            session.send(new WatchEvent(session.key, "ERROR",
+                                map("kind", "Status", "code", 410, "reason", "Expired", "message", "too old resource version"), resourceVersion));
+                            webSocket.close(1000, "expired");
+                            return;
+                        }
+                        events.stream().filter(event -> event.resourceVersion > from).forEach(session::send);
+                    }
+                    sessions.add(session);
+                }
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                sessions.remove(session);
+                webSocket.close(1000, null);
+            }
+
+            @Override
+            public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                sessions.remove(session);
+            }
+        });
+    }
+
+    /**
+     * Simulated OLM, reacting to new and changed subscriptions and catalog sources.
+     */
+    private void afterWrite(String plural, String namespace, Map<String, Object> object) {
+        if ("subscriptions".equals(plural) && !map(object.get("status")).containsKey("currentCSV")) {
+            olm.schedule(() -> install(namespace, object), olmLatencyMillis, TimeUnit.MILLISECONDS);
+        } else if ("catalogsources".equals(plural) && !map(object.get("status")).containsKey("connectionState")) {
+            olm.schedule(() -> serveCatalog(namespace, object), olmLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void install(String namespace, Map<String, Object> subscription) {
+        try {
+            String packageName = (String) map(subscription.get("spec")).get("name");
+            String csvName = packageName + ".v1.0.0";
+            String deploymentName = packageName + "-operator";
+            String planName = "install-" + UUID.randomUUID().toString().substring(0, 5);
+            String olmApi = "apis/operators.coreos.com/v1alpha1|" + namespace + "|";
+            synchronized (this) {
+                store(olmApi + "installplans", resource("operators.coreos.com", "v1alpha1", "installplans"), namespace,
+                    map("metadata", map("name", planName),
+                        "spec", map("approved", true, "clusterServiceVersionNames", Collections.singletonList(csvName)),
+                        "status", map("phase", "Complete")), "ADDED");
+                store(olmApi + "clusterserviceversions", resource("operators.coreos.com", "v1alpha1", "clusterserviceversions"), namespace,
+                    map("metadata", map("name", csvName),
+                        "spec", map("install", map("spec", map("deployments", Collections.singletonList(map("name", deploymentName))))),
+                        "status", map("phase", "Succeeded")), "ADDED");
+                store("apis/apps/v1|" + namespace + "|deployments", resource("apps", "v1", "deployments"), namespace,
+                    map("metadata", map("name", deploymentName, "labels", map("app", deploymentName)),
+                        "spec", map("replicas", 1,
+                            "selector", map("matchLabels", map("app", deploymentName)),
+                            "template", map("metadata", map("labels", map("app", deploymentName)),
+                                "spec", map("containers", Collections.singletonList(map("name", "operator", "image", "quay.io/load/operator"))))),
+                        "status", map("replicas", 1, "readyReplicas", 1, "availableReplicas", 1)), "ADDED");
+                Map<String, Object> current = collection(olmApi + "subscriptions").get(name(subscription));
+                if (current != null) {
+                    current.put("status", map("state", "AtLatestKnown", "currentCSV", csvName, "installedCSV", csvName,
+                        "installPlanRef", map("name", planName, "namespace", namespace)));
+                    store(olmApi + "subscriptions", resource("operators.coreos.com", "v1alpha1", "subscriptions"), namespace, current, "MODIFIED");
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Simulated install in {} failed: {}", namespace, e.toString());
+        }
+    }
+
+    private void serveCatalog(String namespace, Map<String, Object> catalogSource) {
+        String catalogName = name(catalogSource);
+        String image = (String) map(catalogSource.get("spec")).get("image");
+        synchronized (this) {
+            String olmApi = "apis/operators.coreos.com/v1alpha1|" + namespace + "|catalogsources";
+            Map<String, Object> current = collection(olmApi).get(catalogName);
+            if (current == null) {
+                return;
+            }
+            current.put("status", map("connectionState", map("lastObservedState", "READY")));
+            store(olmApi, resource("operators.coreos.com", "v1alpha1", "catalogsources"), namespace, current, "MODIFIED");
+            for (String packageName : catalogPackages.getOrDefault(image, Collections.emptyList())) {
+                store("apis/packages.operators.coreos.com/v1|" + namespace + "|packagemanifests",
+                    resource("packages.operators.coreos.com", "v1", "packagemanifests"), namespace,
+                    map("metadata", map("name", packageName, "labels", map("catalog", catalogName)),
+                        "status", map("catalogSource", catalogName, "packageName", packageName)), "ADDED");
+            }
+        }
+    }
+
+    private Map<String, Map<String, Object>> collection(String key) {
+        return collections.computeIfAbsent(key, k -> new LinkedHashMap<>());
+    }
+
+    private static boolean sameResource(String collectionKey, String key) {
+        String[] a = collectionKey.split("\\|", -1);
+        String[] b = key.split("\\|", -1);
+        return a[0].equals(b[0]) && a[2].equals(b[2]);
+    }
+
+    private static String[] resourceOf(String key) {
+        String[] parts = key.split("\\|", -1);
+        String[] path = parts[0].split("/");
+        return "api".equals(path[0]) ? resource("", path[1], parts[2]) : resource(path[1], path[2], parts[2]);
+    }
+
+    private static String[] resource(String group, String version, String plural) {
+        return RESOURCES.stream()
+            .filter(resource -> resource[0].equals(group) && resource[1].equals(version) && resource[2].equals(plural))
+            .findFirst()
+            .orElse(null);
+    }
+
+    private static String apiVersion(String[] resource) {
+        return resource[0].isEmpty() ? resource[1] : resource[0] + "/" + resource[1];
+    }
+
+    private static Map<String, Object> groupList() {
+        Map<String, List<Object>> versions = new LinkedHashMap<>();
+        RESOURCES.stream().filter(resource -> !resource[0].isEmpty()).forEach(resource -> {
+            List<Object> groupVersions = versions.computeIfAbsent(resource[0], g -> new ArrayList<>());
+            Map<String, Object> groupVersion = map("groupVersion", apiVersion(resource), "version", resource[1]);
+            if (!groupVersions.contains(groupVersion)) {
+                groupVersions.add(groupVersion);
+            }
+        });
+        List<Object> groups = new ArrayList<>();
+        versions.forEach((group, groupVersions) -> groups.add(map("name", group, "versions", groupVersions,
+            "preferredVersion", groupVersions.get(groupVersions.size() - 1))));
+        return map("kind", "APIGroupList", "apiVersion", "v1", "groups", groups);
+    }
+
+    private static Map<String, Object> resourceList(String group, String version) {
+        List<Object> resources = new ArrayList<>();
+        RESOURCES.stream().filter(resource -> resource[0].equals(group) && resource[1].equals(version))
+            .forEach(resource -> resources.add(map("name", resource[2], "kind", resource[3], "namespaced", Boolean.parseBoolean(resource[4]),
+                "verbs", Arrays.asList("create", "delete", "get", "list", "patch", "update", "watch"))));
+        return map("kind", "APIResourceList", "apiVersion", "v1", "groupVersion", group.isEmpty() ? version : group + "/" + version,
+            "resources", resources);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void merge(Map<String, Object> target, Map<String, Object> patch) {
+        patch.forEach((key, value) -> {
+            if (value == null) {
+                target.remove(key);
+            } else if (value instanceof Map && target.get(key) instanceof Map) {
+                merge((Map<String, Object>) target.get(key), (Map<String, Object>) value);
+            } else {
+                target.put(key, value);
+            }
+        });
+    }
+
+    private static Map<String, String> labels(String selector) {
+        Map<String, String> labels = new HashMap<>();
+        if (selector != null && !selector.isEmpty()) {
+            for (String requirement : selector.split(",")) {
+                String[] pair = requirement.split("=", 2);
+                labels.put(pair[0].trim(), pair.length > 1 ? pair[1].trim() : null);
+            }
+        }
+        return labels;
+    }
+
+    private static boolean matches(Map<String, Object> object, String name, Map<String, String> labels) {
+        if (name != null && !name.equals(name(object))) {
+            return false;
+        }
+        Map<String, Object> objectLabels = map(metadata(object).get("labels"));
+        return labels.entrySet().stream().allMatch(label -> objectLabels.containsKey(label.getKey())
+            && (label.getValue() == null || label.getValue().equals(objectLabels.get(label.getKey()))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> metadata(Map<String, Object> object) {
+        return (Map<String, Object>) object.computeIfAbsent("metadata", k -> new LinkedHashMap<>());
+    }
+
+    private static String name(Map<String, Object> object) {
+        return (String) metadata(object).get("name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static MockResponse json(int code, Object body) throws IOException {
+        return new MockResponse().setResponseCode(code).addHeader("Content-Type", "application/json")
+            .setBody(new String(Parsers.writeJson(body), StandardCharsets.UTF_8));
+    }
+
+    private static MockResponse status(int code, String message) {
+        try {
+            return json(code, map("kind", "Status", "apiVersion", "v1", "status", "Failure", "code", code, "message", message));
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(code);
+        }
+    }
+
+    @Override
+    public void close() {
+        sessions.forEach(session -> session.socket.close(1000, "closing"));
+        olm.shutdownNow();
+        server.destroy();
+    }
+
+    private static final class WatchEvent {
+        private final String key;
+        private final String type;
+        private final byte[] json;
+        private final Map<String, Object> object;
+        private final long resourceVersion;
+
+        WatchEvent(String key, String type, Map<String, Object> object, long resourceVersion) {
+            this.key = key;
+            this.type = type;
+            this.object = object;
+            this.resourceVersion = resourceVersion;
+            try {
+                // serialized right away, the stored object may change later
+                json = Parsers.writeJson(map("type", type, "object", object));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class WatchSession {
+        private final String key;
+        private final String name;
+        private final Map<String, String> labels;
+        private volatile WebSocket socket;
+
+        WatchSession(String key, String name, Map<String, String> labels) {
+            this.key = key;
+            this.name = name;
+            this.labels = labels;
+        }
+
+        void send(WatchEvent event) {
+            if (socket != null && (event.key.equals(key) || key.contains("||") && sameResource(event.key, key))
+                && ("ERROR".equals(event.type) || matches(event.object, name, labels))) {
+                socket.send(new String(event.json, StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package io.syndesis.qe.marketplace.load;
+
+import io.syndesis.qe.marketplace.manifests.BundleBuilder;
+import io.syndesis.qe.marketplace.manifests.Index;
+import io.syndesis.qe.marketplace.manifests.OciLayoutEngine;
+import io.syndesis.qe.marketplace.manifests.Opm;
+import io.syndesis.qe.marketplace.openshift.ClientRegistry;
+import io.syndesis.qe.marketplace.openshift.OpenShiftConfiguration;
+import io.syndesis.qe.marketplace.openshift.OpenShiftService;
+import io.syndesis.qe.marketplace.openshift.OpenShiftUser;
+import io.syndesis.qe.marketplace.quay.QuayService;
+import io.syndesis.qe.marketplace.quay.QuayUser;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs a flow of the library many times concurrently and measures throughput, latency percentiles and the resources
+ * used by the JVM meanwhile.
+ * <p>
+ * Run {@link #main(String[])} to load the QuayService against a {@link QuayStub}, and the operator deployment and the
+ * index flow against a {@link ClusterStub}: {@code LoadHarness <concurrency> <iterations> <latencyMillis> <errorRate>}.
+ */
+@Slf4j
+public class LoadHarness {
+
+    @FunctionalInterface
+    public interface Flow {
+        void run(int iteration) throws Exception;
+    }
+
+    private LoadHarness() {
+    }
+
+    public static LoadReport run(String scenario, int concurrency, int iterations, Flow flow) throws InterruptedException {
+        long[] latencies = new long[iterations];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+
+        AtomicInteger peakThreads = new AtomicInteger();
+        AtomicLong peakHeap = new AtomicLong();
+        AtomicLong peakOpenFiles = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            peakThreads.accumulateAndGet(ManagementFactory.getThreadMXBean().getThreadCount(), Math::max);
+            peakHeap.accumulateAndGet(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Math::max);
+            peakOpenFiles.accumulateAndGet(openFiles(), Math::max);
+        }, 0, 100, TimeUnit.MILLISECONDS);
+
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            workers.submit(() -> {
+                int iteration;
+                while ((iteration = next.getAndIncrement()) < iterations) {
+                    long begin = System.nanoTime();
+                    try {
+                        flow.run(iteration);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        log.debug("Iteration {} of {} failed", iteration, scenario, e);
+                    }
+                    latencies[iteration] = System.nanoTime() - begin;
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long duration = System.nanoTime() - start;
+        sampler.shutdownNow();
+
+        Arrays.sort(latencies);
+        LoadReport report = new LoadReport(scenario, concurrency, iterations, errors.get(),
+            TimeUnit.NANOSECONDS.toMillis(duration),
+            iterations / (duration / 1e9),
+            percentile(latencies, 0.50), percentile(latencies, 0.99), latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6,
+            peakThreads.get(), peakHeap.get(), peakOpenFiles.get());
+        log.info(report.toString());
+        return report;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * Open file descriptors, sockets included, -1 where the JVM does not report them.
+     */
+    private static long openFiles() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    /**
+     * Logs in to Quay and changes the visibility of a repository in each iteration.
+     */
+    public static LoadReport quay(QuayStub quay, int concurrency, int iterations) throws InterruptedException {
+        System.setProperty("marketplace.quay.url", quay.getUrl());
+        QuayUser user = new QuayUser("load", "load", "load", "load");
+        return run("quay login and visibility", concurrency, iterations, iteration -> {
+            QuayService quayService = new QuayService(user, null, null);
+            quayService.loginToQuayAndGetToken();
+            quayService.changeProjectVisibilityToPublic("package-" + iteration);
+        });
+    }
+
+    /**
+     * Deploys an operator into a new namespace of the cluster in each iteration, OLM installs it as simulated by the
+     * cluster stub.
+     */
+    public static LoadReport deployOperator(ClusterStub cluster, int concurrency, int iterations) throws InterruptedException {
+        OpenShiftUser admin = new OpenShiftUser("admin", "admin", cluster.getUrl());
+        try {
+            return run("deploy operator", concurrency, iterations, iteration -> {
+                OpenShiftConfiguration configuration = OpenShiftConfiguration.builder()
+                    .namespace("load-" + iteration)
+                    .quayOpsrcToken("token")
+                    .build();
+                new OpenShiftService("load", "package-" + iteration, configuration, admin, null).deployOperator(Duration.ofMinutes(1));
+            });
+        } finally {
+            ClientRegistry.close(cluster.getUrl());
+        }
+    }
+
+    /**
+     * Builds a bundle, adds it to a new index and serves the index by a catalog source in each iteration. Bundles and
+     * indexes are built into an OCI layout, opm is replaced by a script writing an empty database and pushes only keep
+     * the image in the layout.
+     */
+    public static LoadReport addIndex(ClusterStub cluster, int concurrency, int iterations) throws IOException, InterruptedException {
+        Path work = Files.createTempDirectory("marketplace-load-index");
+        Path opm = work.resolve("opm");
+        Files.write(opm, "#!/bin/sh\nmkdir -p database && : > database/index.db\n".getBytes(StandardCharsets.UTF_8));
+        opm.toFile().setExecutable(true);
+        System.setProperty("marketplace.opm", opm.toString());
+        OciLayoutEngine engine = new LocalRegistry(work.resolve("layout"));
+        // stands in for the opm builder image the indexes are built on
+        Path builder = Files.createDirectories(work.resolve("opm-builder"));
+        Files.write(builder.resolve("opm"), "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+        new BundleBuilder(engine).build("localhost/load/opm-builder:latest", builder, Collections.emptyMap());
+        System.setProperty("marketplace.opm.builder", "localhost/load/opm-builder:latest");
+        OpenShiftUser admin = new OpenShiftUser("admin", "admin", cluster.getUrl());
+        QuayUser quayUser = new QuayUser("load", "load", "load", "load");
+        try {
+            return run("add index", concurrency, iterations, iteration -> {
+                String packageName = "index-package-" + iteration;
+                String bundleImage = "localhost/load/" + packageName + "-bundle:1.0.0";
+                String indexImage = "localhost/load/index-" + iteration + ":latest";
+                Path manifests = Files.createDirectories(work.resolve(packageName));
+                Files.write(manifests.resolve(packageName + ".clusterserviceversion.yaml"), csv(packageName).getBytes(StandardCharsets.UTF_8));
+                new BundleBuilder(engine).build(bundleImage, manifests, annotations(packageName));
+
+                OpenShiftConfiguration configuration = OpenShiftConfiguration.builder().namespace("load-index-" + iteration).build();
+                OpenShiftService service = new OpenShiftService("load", packageName, configuration, admin, null);
+                cluster.addCatalogPackages(indexImage, packageName);
+                Index index = new Opm(service, engine).createIndex(indexImage);
+                index.addBundles(bundleImage);
+                index.push(quayUser);
+                index.addIndexToCluster(service, "load-catalog-" + iteration, Duration.ofMinutes(1));
+                index.removeIndexFromCluster(service);
+            });
+        } finally {
+            ClientRegistry.close(cluster.getUrl());
+            System.clearProperty("marketplace.opm");
+            System.clearProperty("marketplace.opm.builder");
+            FileUtils.deleteQuietly(work.toFile());
+        }
+    }
+
+    private static String csv(String packageName) {
+        return "apiVersion: operators.coreos.com/v1alpha1\n"
+            + "kind: ClusterServiceVersion\n"
+            + "metadata:\n"
+            + "  name: " + packageName + ".v1.0.0\n"
+            + "spec:\n"
+            + "  version: 1.0.0\n"
+            + "  install:\n"
+            + "    strategy: deployment\n"
+            + "    spec:\n"
+            + "      deployments:\n"
+            + "      - name: " + packageName + "-operator\n"
+            + "        spec:\n"
+            + "          template:\n"
+            + "            spec:\n"
+            + "              containers:\n"
+            + "              - name: operator\n"
+            + "                image: quay.io/load/operator:1.0.0\n";
+    }
+
+    private static Map<String, String> annotations(String packageName) {
+        Map<String, String> annotations = new HashMap<>();
+        annotations.put("operators.operatorframework.io.bundle.mediatype.v1", "registry+v1");
+        annotations.put("operators.operatorframework.io.bundle.package.v1", packageName);
+        annotations.put("operators.operatorframework.io.bundle.channels.v1", "stable");
+        annotations.put("operators.operatorframework.io.bundle.channel.default.v1", "stable");
+        return annotations;
+    }
+
+    /**
+     * OCI layout standing in for a registry, pushed images stay in the layout and count as published.
+     */
+    private static class LocalRegistry extends OciLayoutEngine {
+
+        LocalRegistry(Path root) {
+            super(root);
+        }
+
+        @Override
+        public void push(String image, File configFolder) {
+            log.debug("Image {} is kept in the layout instead of a registry", image);
+        }
+
+        @Override
+        public boolean isPublishing() {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        try (QuayStub quay = new QuayStub()) {
+            quay.setLatencyMillis(latencyMillis);
+            quay.setErrorRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+            quay(quay, concurrency, iterations);
+            log.info("Quay stub served {} requests, {} injected errors", quay.getRequests().get(), quay.getInjectedErrors().get());
+        }
+        try (ClusterStub cluster = new ClusterStub()) {
+            cluster.setOlmLatencyMillis(latencyMillis);
+            deployOperator(cluster, concurrency, iterations);
+            addIndex(cluster, concurrency, iterations);
+            log.info("Cluster stub served {} requests, {} writes", cluster.getRequests().get(), cluster.getWrites().get());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.syndesis.qe.marketplace.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LoadHarnessTest {
+
+    @Test
+    public void quay() throws Exception {
+        try (QuayStub quay = new QuayStub()) {
+            LoadReport report = LoadHarness.quay(quay, 4, 20);
+            assertEquals(0, report.getErrors(), report.toString());
+            assertTrue(quay.getRequests().get() >= 40);
+        }
+    }
+
+    @Test
+    public void deployOperator() throws Exception {
+        try (ClusterStub cluster = new ClusterStub()) {
+            LoadReport report = LoadHarness.deployOperator(cluster, 2, 4);
+            assertEquals(0, report.getErrors(), report.toString());
+            assertEquals(4, cluster.count("subscriptions"));
+            assertEquals(4, cluster.count("deployments"));
+        }
+    }
+
+    @Test
+    public void addIndex() throws Exception {
+        try (ClusterStub cluster = new ClusterStub()) {
+            LoadReport report = LoadHarness.addIndex(cluster, 2, 4);
+            assertEquals(0, report.getErrors(), report.toString());
+            assertEquals(0, cluster.count("catalogsources"));
+            assertEquals(4, cluster.count("packagemanifests"));
+        }
+    }
+}
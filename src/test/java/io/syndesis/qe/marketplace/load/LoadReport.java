@@ -0,0 +1,30 @@
+package io.syndesis.qe.marketplace.load;
+
+import lombok.Value;
+
+/**
+ * Result of a {@link LoadHarness} run, latencies are in milliseconds.
+ */
+@Value
+public class LoadReport {
+    String scenario;
+    int concurrency;
+    int iterations;
+    int errors;
+    long durationMillis;
+    double throughput;
+    double p50;
+    double p99;
+    double max;
+    int peakThreads;
+    long peakHeapBytes;
+    long peakOpenFiles;
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d iterations with %d threads in %d ms, %d errors, %.1f ops/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms, "
+                + "peak %d threads, %d MiB heap, %d open files",
+            scenario, iterations, concurrency, durationMillis, errors, throughput, p50, p99, max,
+            peakThreads, peakHeapBytes / (1024 * 1024), peakOpenFiles);
+    }
+}
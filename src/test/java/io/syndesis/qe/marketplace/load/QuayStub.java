@@ -0,0 +1,131 @@
+package io.syndesis.qe.marketplace.load;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded stand-in for the quay.io endpoints used by the QuayService, with configurable latency and error injection.
+ * <p>
+ * Point the QuayService to it by setting the {@code marketplace.quay.url} system property to {@link #getUrl()}.
+ */
+@Slf4j
+public class QuayStub implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "quay-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Getter
+    private final AtomicLong requests = new AtomicLong();
+    @Getter
+    private final AtomicLong injectedErrors = new AtomicLong();
+    @Getter
+    private final AtomicLong pushes = new AtomicLong();
+    /**
+     * blob digests of pushed releases by {@code <package path>/<release>}
+     */
+    private final Map<String, String> releases = new ConcurrentHashMap<>();
+    /**
+     * delay added to every response
+     */
+    @Setter
+    private volatile long latencyMillis;
+    /**
+     * share of requests answered by HTTP 500, between 0 and 1
+     */
+    @Setter
+    private volatile double errorRate;
+
+    public QuayStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        log.info("Quay stub listening on {}", getUrl());
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 500, "{\"error\":\"injected\"}");
+        } else if ("POST".equals(method) && path.equals("/cnr/api/v1/users/login")) {
+            respond(exchange, 200, "{\"token\":\"basic c3R1YjpzdHVi\"}");
+        } else if ("POST".equals(method) && path.startsWith("/cnr/api/v1/packages/")) {
+            pushes.incrementAndGet();
+            Map<String, Object> push = Parsers.readJsonMap(body);
+            String digest = DigestUtils.sha256Hex(Base64.getDecoder().decode(((String) push.get("blob")).trim()));
+            releases.put(path + "/" + push.get("release"), digest);
+            respond(exchange, 200, "{\"ok\":true}");
+        } else if ("GET".equals(method) && path.startsWith("/cnr/api/v1/packages/") && path.endsWith("/helm")) {
+            String digest = releases.get(path.substring(0, path.length() - "/helm".length()));
+            if (digest == null) {
+                respond(exchange, 404, "{\"error\":\"not found\"}");
+            } else {
+                respond(exchange, 200, "{\"content\":{\"digest\":\"" + digest + "\"}}");
+            }
+        } else if ("POST".equals(method) && path.startsWith("/api/v1/repository/") && path.endsWith("/changevisibility")) {
+            respond(exchange, 200, "{\"success\":true}");
+        } else if ("DELETE".equals(method) && path.startsWith("/api/v1/repository/")) {
+            String packagePath = path.replace("/api/v1/repository/", "/cnr/api/v1/packages/") + "/";
+            releases.keySet().removeIf(release -> release.startsWith(packagePath));
+            respond(exchange, 204, null);
+        } else {
+            respond(exchange, 404, "{\"error\":\"not found\"}");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,102 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class BundleBuilderTest {
+
+    private static final String IMAGE = "quay.io/org/bundle:1.0.0";
+    private static final Map<String, String> ANNOTATIONS = Collections.singletonMap("operators.operatorframework.io.bundle.package.v1", "bundle");
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void layoutDigests() throws IOException {
+        OciLayoutEngine engine = new OciLayoutEngine(tmp.resolve("layout"));
+        String digest = new BundleBuilder(engine).build(IMAGE, manifests(), ANNOTATIONS);
+
+        assertEquals(digest, engine.findManifest(IMAGE).get().get("digest").asText());
+        assertEquals(digest, sha256(engine.blob(digest)));
+        JsonNode manifest = Parsers.readJsonTree(engine.blob(digest));
+        JsonNode configDescriptor = manifest.get("config");
+        assertEquals(configDescriptor.get("digest").asText(), sha256(engine.blob(configDescriptor.get("digest").asText())));
+        assertEquals(configDescriptor.get("size").asLong(), Files.size(engine.blob(configDescriptor.get("digest").asText())));
+        assertEquals(1, manifest.get("layers").size());
+        JsonNode layer = manifest.get("layers").get(0);
+        Path layerBlob = engine.blob(layer.get("digest").asText());
+        assertEquals(layer.get("digest").asText(), sha256(layerBlob));
+        assertEquals(layer.get("size").asLong(), Files.size(layerBlob));
+
+        JsonNode config = Parsers.readJsonTree(engine.blob(configDescriptor.get("digest").asText()));
+        // the layer is not compressed, so its digest is the diff id
+        assertEquals(layer.get("digest").asText(), config.get("rootfs").get("diff_ids").get(0).asText());
+        assertEquals("bundle", config.get("config").get("Labels").get("operators.operatorframework.io.bundle.package.v1").asText());
+        assertEquals(Arrays.asList("manifests/", "manifests/bundle.clusterserviceversion.yaml", "metadata/", "metadata/annotations.yaml"),
+            entries(layerBlob));
+    }
+
+    @Test
+    public void reproducible() throws IOException {
+        OciLayoutEngine engine = new OciLayoutEngine(tmp.resolve("layout"));
+        String digest = new BundleBuilder(engine).build(IMAGE, manifests(), ANNOTATIONS);
+        long blobs = countBlobs(engine);
+
+        assertEquals(digest, new BundleBuilder(engine).build(IMAGE, manifests(), ANNOTATIONS));
+        assertEquals(blobs, countBlobs(engine));
+        assertEquals(digest, new BundleBuilder(new OciLayoutEngine(tmp.resolve("other"))).build(IMAGE, manifests(), ANNOTATIONS));
+        assertTrue(engine.isBuilt(IMAGE));
+    }
+
+    private Path manifests() throws IOException {
+        Path folder = Files.createDirectories(tmp.resolve("manifests"));
+        Files.write(folder.resolve("bundle.clusterserviceversion.yaml"), "kind: ClusterServiceVersion\n".getBytes(StandardCharsets.UTF_8));
+        return folder;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return "sha256:" + DigestUtils.sha256Hex(is);
+        }
+    }
+
+    private static List<String> entries(Path layer) throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (TarArchiveInputStream tis = new TarArchiveInputStream(Files.newInputStream(layer))) {
+            TarArchiveEntry entry;
+            while ((entry = tis.getNextTarEntry()) != null) {
+                entries.add(entry.getName());
+            }
+        }
+        return entries;
+    }
+
+    private static long countBlobs(OciLayoutEngine engine) throws IOException {
+        try (Stream<Path> blobs = Files.list(engine.getRoot().resolve("blobs").resolve("sha256"))) {
+            return blobs.count();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class BundleCatalogTest {
+
+    @TempDir
+    Path tmp;
+
+    private OciLayoutEngine engine;
+    private Index index;
+
+    @BeforeEach
+    public void setUp() {
+        System.setProperty("marketplace.opm", tmp.resolve("opm").toString());
+        engine = new OciLayoutEngine(tmp.resolve("layout"));
+        index = new Opm(null, engine).createIndex("localhost/org/index:1.0.0");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("marketplace.opm");
+    }
+
+    @Test
+    public void findsBundlesByEveryKey() throws IOException {
+        Bundle widgets = bundle("widgets", "stable, beta", true);
+        Bundle gadgets = bundle("gadgets", "stable", false);
+        BundleCatalog catalog = new BundleCatalog();
+
+        catalog.addAll(Arrays.asList(widgets, gadgets));
+
+        assertEquals(Arrays.asList(widgets, gadgets), catalog.getBundles());
+        assertSame(widgets, catalog.findByCsvName("widgets.v1.0.0").get());
+        assertEquals(Collections.singletonList(gadgets), catalog.findByPackage("gadgets"));
+        assertEquals(Collections.singletonList(widgets), catalog.findByChannel("widgets", "beta"));
+        assertEquals(Collections.emptyList(), catalog.findByChannel("gadgets", "beta"));
+        assertEquals(Collections.singletonList(widgets), catalog.findByOwnedCrd("example.com", "v1", "Widget"));
+        assertEquals(Collections.emptyList(), catalog.findByOwnedCrd("example.com", "v2", "Widget"));
+        assertFalse(catalog.findByCsvName("missing.v1.0.0").isPresent());
+    }
+
+    @Test
+    public void keepsFirstBundleOfCsv() throws IOException {
+        Bundle first = bundle("widgets", "stable", true);
+        Bundle again = new Bundle(first.getImageName(), index);
+        BundleCatalog catalog = new BundleCatalog();
+
+        catalog.add(first);
+        catalog.add(again);
+
+        assertEquals(Collections.singletonList(first), catalog.getBundles());
+        assertEquals(Collections.singletonList(first), catalog.findByPackage("widgets"));
+        assertThrows(UnsupportedOperationException.class, () -> catalog.findByPackage("widgets").clear());
+    }
+
+    private Bundle bundle(String packageName, String channels, boolean ownsWidgets) throws IOException {
+        Path folder = Files.createDirectories(tmp.resolve(packageName));
+        Files.write(folder.resolve(packageName + ".clusterserviceversion.yaml"),
+            BundleValidatorTest.csv(packageName, "quay.io/org/operator:1.0.0", ownsWidgets).getBytes(StandardCharsets.UTF_8));
+        Map<String, String> annotations = BundleValidatorTest.annotations(packageName);
+        annotations.put("operators.operatorframework.io.bundle.channels.v1", channels);
+        String image = "localhost/org/" + packageName + ":1.0.0";
+        new BundleBuilder(engine).build(image, folder, annotations);
+        return new Bundle(image, index);
+    }
+}
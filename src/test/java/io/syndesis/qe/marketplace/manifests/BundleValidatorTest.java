@@ -0,0 +1,144 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BundleValidatorTest {
+
+    @TempDir
+    Path tmp;
+
+    private OciLayoutEngine engine;
+    private Index index;
+
+    @BeforeEach
+    public void setUp() {
+        System.setProperty("marketplace.opm", tmp.resolve("opm").toString());
+        engine = new OciLayoutEngine(tmp.resolve("layout"));
+        index = new Opm(null, engine).createIndex("localhost/org/index:1.0.0");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("marketplace.opm");
+    }
+
+    @Test
+    public void acceptsCompleteBundle() throws IOException {
+        Bundle bundle = bundle("complete", annotations("complete"), csv("complete", "quay.io/org/operator:1.0.0", true), crd());
+
+        assertEquals(Collections.emptyList(), BundleValidator.validate(bundle));
+        assertTrue(BundleValidator.validate(Collections.singletonList(bundle)).isValid());
+    }
+
+    @Test
+    public void reportsEveryProblem() throws IOException {
+        Map<String, String> annotations = annotations("broken");
+        annotations.remove("operators.operatorframework.io.bundle.package.v1");
+        annotations.put("operators.operatorframework.io.bundle.channel.default.v1", "beta");
+        Bundle bundle = bundle("broken", annotations, csv("broken", "Quay.io/org/operator:latest", true), null);
+
+        List<String> problems = BundleValidator.validate(bundle);
+
+        assertEquals(Arrays.asList(
+            "Annotation operators.operatorframework.io.bundle.package.v1 is missing",
+            "Default channel beta is not one of the channels stable",
+            "Image reference Quay.io/org/operator:latest is not valid",
+            "Owned CRD widgets.example.com v1 Widget is not in the bundle"), problems);
+    }
+
+    @Test
+    public void reportsMissingCsv() throws IOException {
+        Bundle bundle = bundle("empty", annotations("empty"), null, crd());
+
+        assertEquals(Collections.singletonList("CSV is missing from the manifests folder"), BundleValidator.validate(bundle));
+    }
+
+    @Test
+    public void groupsProblemsByBundle() throws IOException {
+        Bundle valid = bundle("valid", annotations("valid"), csv("valid", "quay.io/org/operator:1.0.0", false), null);
+        Bundle invalid = bundle("invalid", annotations("invalid"), "kind: Deployment\n", null);
+
+        ValidationReport report = BundleValidator.validateAsync(Arrays.asList(valid, invalid)).join();
+
+        assertFalse(report.isValid());
+        assertEquals(Collections.singleton(invalid.getImageName()), report.getProblems().keySet());
+        assertTrue(report.getProblems().get(invalid.getImageName()).contains("CSV kind is Deployment"), report.toString());
+    }
+
+    private Bundle bundle(String name, Map<String, String> annotations, String csv, String crd) throws IOException {
+        Path folder = Files.createDirectories(tmp.resolve(name));
+        if (csv != null) {
+            Files.write(folder.resolve(name + ".clusterserviceversion.yaml"), csv.getBytes(StandardCharsets.UTF_8));
+        }
+        if (crd != null) {
+            Files.write(folder.resolve("widgets.crd.yaml"), crd.getBytes(StandardCharsets.UTF_8));
+        }
+        String image = "localhost/org/" + name + ":1.0.0";
+        new BundleBuilder(engine).build(image, folder, annotations);
+        return new Bundle(image, index);
+    }
+
+    static Map<String, String> annotations(String packageName) {
+        Map<String, String> annotations = new HashMap<>();
+        annotations.put("operators.operatorframework.io.bundle.mediatype.v1", "registry+v1");
+        annotations.put("operators.operatorframework.io.bundle.package.v1", packageName);
+        annotations.put("operators.operatorframework.io.bundle.channels.v1", "stable");
+        annotations.put("operators.operatorframework.io.bundle.channel.default.v1", "stable");
+        return annotations;
+    }
+
+    static String csv(String packageName, String image, boolean ownsWidgets) {
+        return "apiVersion: operators.coreos.com/v1alpha1\n"
+            + "kind: ClusterServiceVersion\n"
+            + "metadata:\n"
+            + "  name: " + packageName + ".v1.0.0\n"
+            + "spec:\n"
+            + "  version: 1.0.0\n"
+            + (ownsWidgets ? "  customresourcedefinitions:\n"
+            + "    owned:\n"
+            + "    - name: widgets.example.com\n"
+            + "      version: v1\n"
+            + "      kind: Widget\n" : "")
+            + "  install:\n"
+            + "    strategy: deployment\n"
+            + "    spec:\n"
+            + "      deployments:\n"
+            + "      - name: " + packageName + "-operator\n"
+            + "        spec:\n"
+            + "          template:\n"
+            + "            spec:\n"
+            + "              containers:\n"
+            + "              - name: operator\n"
+            + "                image: " + image + "\n";
+    }
+
+    static String crd() {
+        return "apiVersion: apiextensions.k8s.io/v1\n"
+            + "kind: CustomResourceDefinition\n"
+            + "metadata:\n"
+            + "  name: widgets.example.com\n"
+            + "spec:\n"
+            + "  group: example.com\n"
+            + "  names:\n"
+            + "    kind: Widget\n"
+            + "  versions:\n"
+            + "  - name: v1\n";
+    }
+}
@@ -0,0 +1,146 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.load.ClusterStub;
+import io.syndesis.qe.marketplace.openshift.ClientRegistry;
+import io.syndesis.qe.marketplace.openshift.OpenShiftConfiguration;
+import io.syndesis.qe.marketplace.openshift.OpenShiftService;
+import io.syndesis.qe.marketplace.openshift.OpenShiftUser;
+import io.syndesis.qe.marketplace.quay.QuayUser;
+import io.syndesis.qe.marketplace.util.Deadline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+public class IndexTest {
+
+    private static final QuayUser USER = new QuayUser("robot", "secret", "org", null);
+
+    @TempDir
+    Path tmp;
+
+    private RegistryStub stub;
+    private OciLayoutEngine engine;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        stub = new RegistryStub();
+        System.setProperty("marketplace.registry.insecure", stub.getRegistry());
+        Path opm = tmp.resolve("opm");
+        Files.write(opm, ("#!/bin/sh\necho \"$@\" >> " + tmp.resolve("opm.log") + "\nmkdir -p database && echo index > database/index.db\n")
+            .getBytes(StandardCharsets.UTF_8));
+        opm.toFile().setExecutable(true);
+        System.setProperty("marketplace.opm", opm.toString());
+        engine = new OciLayoutEngine(tmp.resolve("layout"));
+        String builder = stub.getRegistry() + "/org/opm-builder:latest";
+        new BundleBuilder(engine).build(builder, manifests("builder"), Collections.emptyMap());
+        System.setProperty("marketplace.opm.builder", builder);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("marketplace.registry.insecure");
+        System.clearProperty("marketplace.opm");
+        System.clearProperty("marketplace.opm.builder");
+        stub.close();
+    }
+
+    @Test
+    public void pushesBuiltBundlesBeforeOpm() throws IOException {
+        String bundle = stub.getRegistry() + "/org/bundle:1.0.0";
+        new BundleBuilder(engine).build(bundle, manifests("bundle"), Collections.emptyMap());
+        Index index = new Opm(null, engine).createIndex(stub.getRegistry() + "/org/index:1.0.0");
+        index.setValidateBundles(false);
+        index.setPrefetchBundles(false);
+
+        index.addBundles(USER, bundle);
+        assertNotNull(stub.getManifest("org/bundle:1.0.0"));
+        assertNotNull(index.getContentKey());
+
+        index.push(USER);
+        assertNotNull(stub.getManifest("org/index:1.0.0"));
+    }
+
+    @Test
+    public void addsAllBundlesToPulledIndex() throws IOException {
+        String index = stub.getRegistry() + "/org/index:1.0.0";
+        Opm opm = new Opm(null, engine);
+        Index base = opm.createIndex(index);
+        base.setValidateBundles(false);
+        base.addBundles(USER, bundle("base"));
+        base.push(USER);
+        String baseDigest = RegistryClient.digest(index, USER).get();
+
+        Index pulled = opm.pullIndex(index, USER);
+        pulled.setValidateBundles(false);
+        pulled.addBundles(USER, bundle("first"));
+        pulled.addBundles(USER, bundle("second"));
+
+        List<String> runs = Files.readAllLines(tmp.resolve("opm.log"));
+        String last = runs.get(runs.size() - 1);
+        assertTrue(last.contains("--bundles=" + bundle("first") + "," + bundle("second") + " "), last);
+        assertTrue(last.contains("--from-index=" + stub.getRegistry() + "/org/index@" + baseDigest), last);
+    }
+
+    @Test
+    public void validatesWhileOpmRuns() throws IOException {
+        Index index = new Opm(null, engine).createIndex(stub.getRegistry() + "/org/index:1.0.0");
+        String invalid = bundle("invalid");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> index.addBundles(USER, invalid));
+        assertTrue(e.getMessage().contains("operators.operatorframework.io.bundle.package.v1"), e.getMessage());
+        assertEquals(1, Files.readAllLines(tmp.resolve("opm.log")).size());
+    }
+
+    @Test
+    public void removesCatalogNotServingPackagesInTime() throws IOException {
+        String bundle = stub.getRegistry() + "/org/served:1.0.0";
+        Path manifests = Files.createDirectories(tmp.resolve("served"));
+        Files.write(manifests.resolve("served.clusterserviceversion.yaml"),
+            BundleValidatorTest.csv("served", "quay.io/org/operator:1.0.0", false).getBytes(StandardCharsets.UTF_8));
+        new BundleBuilder(engine).build(bundle, manifests, BundleValidatorTest.annotations("served"));
+        Index index = new Opm(null, engine).createIndex(stub.getRegistry() + "/org/index:1.0.0");
+        index.addBundles(USER, bundle);
+        index.push(USER);
+
+        try (ClusterStub cluster = new ClusterStub()) {
+            OpenShiftService service = new OpenShiftService("org", "served", OpenShiftConfiguration.builder().namespace("catalog").build(),
+                new OpenShiftUser("admin", "admin", cluster.getUrl()), null);
+            try {
+                Deadline.DeadlineExceededException e = assertThrows(Deadline.DeadlineExceededException.class,
+                    () -> index.addIndexToCluster(service, "unserved", Duration.ofSeconds(3)));
+
+                assertEquals("Deadline of 'packages of catalog unserved served' ran out", e.getMessage());
+                assertEquals(0, cluster.count("catalogsources"));
+            } finally {
+                ClientRegistry.close(cluster.getUrl());
+            }
+        }
+    }
+
+    private String bundle(String name) throws IOException {
+        String image = stub.getRegistry() + "/org/" + name + ":1.0.0";
+        new BundleBuilder(engine).build(image, manifests(name), Collections.emptyMap());
+        return image;
+    }
+
+    private Path manifests(String name) throws IOException {
+        Path folder = Files.createDirectories(tmp.resolve(name));
+        Files.write(folder.resolve(name + ".clusterserviceversion.yaml"), "kind: ClusterServiceVersion\n".getBytes(StandardCharsets.UTF_8));
+        return folder;
+    }
+}
@@ -0,0 +1,152 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LayerExtractorTest {
+
+    @TempDir
+    Path tmp;
+
+    private Path outside;
+    private Path destination;
+
+    @BeforeEach
+    public void createOutside() throws IOException {
+        outside = Files.createDirectories(tmp.resolve("outside"));
+        Files.write(outside.resolve("victim"), "keep".getBytes(StandardCharsets.UTF_8));
+        destination = tmp.resolve("image");
+    }
+
+    @Test
+    public void whiteoutDoesNotFollowLinks() throws IOException {
+        extract(layer().link("escape", outside.toString()), layer().file("escape/.wh.victim", ""));
+
+        assertTrue(Files.exists(outside.resolve("victim")));
+        assertTrue(Files.isDirectory(destination.resolve("escape"), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    @Test
+    public void opaqueWhiteoutDoesNotFollowLinks() throws IOException {
+        extract(layer().link("escape", outside.toString()), layer().file("escape/.wh..wh..opq", ""));
+
+        assertTrue(Files.exists(outside.resolve("victim")));
+    }
+
+    @Test
+    public void opaqueWhiteout() throws IOException {
+        extract(layer().file("etc/a", "a").file("etc/b", "b").file("keep", "keep"),
+            layer().file("etc/.wh..wh..opq", "").file("etc/c", "c"));
+
+        assertEquals(Arrays.asList("c"), list(destination.resolve("etc")));
+        assertTrue(Files.exists(destination.resolve("keep")));
+    }
+
+    @Test
+    public void whiteout() throws IOException {
+        extract(layer().file("etc/a", "a").file("etc/b", "b"), layer().file("etc/.wh.a", ""));
+
+        assertEquals(Arrays.asList("b"), list(destination.resolve("etc")));
+    }
+
+    @Test
+    public void hardLinkDoesNotReadThroughLinks() throws IOException {
+        Layer layer = layer().link("escape", outside.toString()).hardLink("copy", "escape/victim");
+
+        assertFalse(extracts(layer));
+        assertFalse(Files.exists(destination.resolve("copy")));
+    }
+
+    private boolean extracts(Layer... layers) {
+        try {
+            extract(layers);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void extract(Layer... layers) throws IOException {
+        Path archive = tmp.resolve("image.tar");
+        List<String> names = new ArrayList<>();
+        try (TarArchiveOutputStream tos = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            for (int i = 0; i < layers.length; i++) {
+                String name = "layer" + i + "/layer.tar";
+                add(tos, name, layers[i].toBytes());
+                names.add('"' + name + '"');
+            }
+            add(tos, "manifest.json", ("[{\"Layers\":[" + String.join(",", names) + "]}]").getBytes(StandardCharsets.UTF_8));
+        }
+        LayerExtractor.extract(archive, destination);
+    }
+
+    private static List<String> list(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void add(TarArchiveOutputStream tos, String name, byte[] content) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        tos.putArchiveEntry(entry);
+        tos.write(content);
+        tos.closeArchiveEntry();
+    }
+
+    private static Layer layer() {
+        return new Layer();
+    }
+
+    private static final class Layer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final TarArchiveOutputStream tos = new TarArchiveOutputStream(bytes);
+
+        Layer file(String name, String content) throws IOException {
+            add(tos, name, content.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        Layer link(String name, String target) throws IOException {
+            return link(name, target, TarConstants.LF_SYMLINK);
+        }
+
+        Layer hardLink(String name, String target) throws IOException {
+            return link(name, target, TarConstants.LF_LINK);
+        }
+
+        private Layer link(String name, String target, byte type) throws IOException {
+            TarArchiveEntry entry = new TarArchiveEntry(name, type);
+            entry.setLinkName(target);
+            tos.putArchiveEntry(entry);
+            tos.closeArchiveEntry();
+            return this;
+        }
+
+        byte[] toBytes() throws IOException {
+            tos.close();
+            return bytes.toByteArray();
+        }
+    }
+}
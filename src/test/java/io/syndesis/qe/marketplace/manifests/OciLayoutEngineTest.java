@@ -0,0 +1,120 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.util.Parsers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+public class OciLayoutEngineTest {
+
+    @TempDir
+    Path tmp;
+
+    private RegistryStub stub;
+    private String registry;
+    private File configFolder;
+
+    @BeforeEach
+    public void startRegistry() throws IOException {
+        stub = new RegistryStub();
+        registry = stub.getRegistry();
+        System.setProperty("marketplace.registry.insecure", registry);
+        configFolder = stub.writeConfig(tmp.resolve("docker-config"));
+    }
+
+    @AfterEach
+    public void stopRegistry() {
+        System.clearProperty("marketplace.registry.insecure");
+        System.clearProperty("marketplace.opm.builder");
+        stub.close();
+    }
+
+    @Test
+    public void pushesBuiltImage() throws IOException {
+        OciLayoutEngine engine = new OciLayoutEngine(tmp.resolve("layout"));
+        String image = registry + "/org/bundle:1.0.0";
+        String digest = new BundleBuilder(engine).build(image, manifests(), Collections.emptyMap());
+
+        engine.push(image, configFolder);
+
+        assertArrayEquals(Files.readAllBytes(engine.blob(digest)), stub.getManifest("org/bundle:1.0.0"));
+        JsonNode manifest = Parsers.readJsonTree(engine.blob(digest));
+        assertArrayEquals(Files.readAllBytes(engine.blob(manifest.get("config").get("digest").asText())),
+            stub.getBlob(manifest.get("config").get("digest").asText()));
+        assertArrayEquals(Files.readAllBytes(engine.blob(manifest.get("layers").get(0).get("digest").asText())),
+            stub.getBlob(manifest.get("layers").get(0).get("digest").asText()));
+        assertEquals(2, stub.getUploads().get());
+
+        engine.push(image, configFolder);
+        assertEquals(2, stub.getUploads().get());
+    }
+
+    @Test
+    public void pullsFromRegistryWithoutFallback() throws IOException {
+        OciLayoutEngine built = new OciLayoutEngine(tmp.resolve("built"));
+        String image = registry + "/org/bundle:1.0.0";
+        String digest = new BundleBuilder(built).build(image, manifests(), Collections.emptyMap());
+        built.push(image, configFolder);
+
+        OciLayoutEngine engine = new OciLayoutEngine(tmp.resolve("layout"));
+        engine.pull(image);
+
+        assertEquals(digest, engine.findManifest(image).get().get("digest").asText());
+        JsonNode manifest = Parsers.readJsonTree(engine.blob(digest));
+        assertTrue(Files.exists(engine.blob(manifest.get("layers").get(0).get("digest").asText())));
+    }
+
+    @Test
+    public void buildsIndexInLayout() throws IOException {
+        OciLayoutEngine engine = new OciLayoutEngine(tmp.resolve("layout"));
+        assertNull(engine.getBuildTool());
+        String builder = registry + "/org/opm-builder:latest";
+        String base = new BundleBuilder(engine).build(builder, manifests(), Collections.emptyMap());
+        System.setProperty("marketplace.opm.builder", builder);
+        Path database = tmp.resolve("index.db");
+        Files.write(database, "database".getBytes(StandardCharsets.UTF_8));
+
+        String index = registry + "/org/index:latest";
+        engine.buildIndex(index, database);
+
+        JsonNode manifest = Parsers.readJsonTree(engine.blob(engine.findManifest(index).get().get("digest").asText()));
+        JsonNode baseManifest = Parsers.readJsonTree(engine.blob(base));
+        assertEquals(2, manifest.get("layers").size());
+        assertEquals(baseManifest.get("layers").get(0), manifest.get("layers").get(0));
+        JsonNode config = Parsers.readJsonTree(engine.blob(manifest.get("config").get("digest").asText()));
+        assertEquals("/database/index.db", config.get("config").get("Labels").get("operators.operatorframework.io.index.database.v1").asText());
+        assertEquals(2, config.get("rootfs").get("diff_ids").size());
+
+        Path extracted = tmp.resolve("extracted");
+        Path archive = tmp.resolve("index.tar");
+        engine.save(index, archive);
+        LayerExtractor.extract(archive, extracted);
+        assertEquals("database", new String(Files.readAllBytes(extracted.resolve("database/index.db")), StandardCharsets.UTF_8));
+
+        engine.push(index, configFolder);
+        assertNotNull(stub.getManifest("org/index:latest"));
+    }
+
+    private Path manifests() throws IOException {
+        Path folder = Files.createDirectories(tmp.resolve("manifests"));
+        Files.write(folder.resolve("bundle.clusterserviceversion.yaml"), "kind: ClusterServiceVersion\n".getBytes(StandardCharsets.UTF_8));
+        return folder;
+    }
+}
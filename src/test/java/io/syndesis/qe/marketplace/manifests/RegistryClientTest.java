@@ -0,0 +1,131 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.quay.QuayUser;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opentest4j.AssertionFailedError;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RegistryClientTest {
+
+    private static final String DIGEST = "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final QuayUser USER = new QuayUser("robot", "secret", "org", null);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private String registry;
+    private final List<String> tokenRequests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startRegistry() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        registry = "localhost:" + server.getAddress().getPort();
+        server.createContext("/token", this::token);
+        server.createContext("/v2/", this::manifest);
+        // requests are read by the executor, a TLS handshake the stub cannot parse does not block the other connections
+        server.setExecutor(executor);
+        server.start();
+        System.setProperty("marketplace.registry.insecure", "other.example.com, " + registry);
+    }
+
+    @AfterEach
+    public void stopRegistry() {
+        System.clearProperty("marketplace.registry.insecure");
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void answersBearerChallenge() throws IOException {
+        assertEquals(Optional.of(DIGEST), RegistryClient.digest(registry + "/org/bundle:1.0.0", USER));
+        assertEquals(1, tokenRequests.size());
+        assertEquals("scope=repository%3Aorg%2Fbundle%3Apull", tokenRequests.get(0).substring(tokenRequests.get(0).indexOf("scope=")));
+    }
+
+    @Test
+    public void rejectsAnonymousAccess() {
+        assertThrows(IOException.class, () -> RegistryClient.digest(registry + "/org/bundle:1.0.0", null));
+    }
+
+    @Test
+    public void missingTag() throws IOException {
+        assertFalse(RegistryClient.digest(registry + "/org/bundle:2.0.0", USER).isPresent());
+    }
+
+    @Test
+    public void digestReference() throws IOException {
+        assertEquals(Optional.of(DIGEST), RegistryClient.digest(registry + "/org/bundle@" + DIGEST, null));
+        assertEquals(0, tokenRequests.size());
+    }
+
+    @Test
+    public void readsInsecureRegistriesOnEveryCall() throws IOException {
+        assertEquals(Optional.of(DIGEST), RegistryClient.digest(registry + "/org/bundle:1.0.0", USER));
+
+        System.setProperty("marketplace.registry.insecure", "other.example.com");
+        // over TLS the plain HTTP stub either fails the handshake or never answers it
+        Throwable failure = assertThrows(Throwable.class, () -> assertTimeoutPreemptively(Duration.ofSeconds(5),
+            () -> RegistryClient.digest(registry + "/org/bundle:1.0.0", USER)));
+        assertTrue(failure instanceof IOException || failure instanceof AssertionFailedError, failure::toString);
+
+        System.setProperty("marketplace.registry.insecure", "other.example.com, " + registry);
+        assertEquals(Optional.of(DIGEST), RegistryClient.digest(registry + "/org/bundle:1.0.0", USER));
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        tokenRequests.add(exchange.getRequestURI().toString());
+        String basic = "Basic " + Base64.getEncoder().encodeToString("robot:secret".getBytes(StandardCharsets.UTF_8));
+        if (!basic.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, "{}");
+        } else {
+            respond(exchange, 200, "{\"token\":\"registry-token\"}");
+        }
+    }
+
+    private void manifest(HttpExchange exchange) throws IOException {
+        // connections of the shared HTTP client are not kept, the server is restarted between tests
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (!"Bearer registry-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"http://" + registry + "/token\",service=\""
+                + registry + "\",scope=\"repository:org/bundle:pull\"");
+            exchange.sendResponseHeaders(401, -1);
+        } else if ("/v2/org/bundle/manifests/1.0.0".equals(exchange.getRequestURI().getPath())) {
+            exchange.getResponseHeaders().add("Docker-Content-Digest", DIGEST);
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+        exchange.close();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Connection", "close");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
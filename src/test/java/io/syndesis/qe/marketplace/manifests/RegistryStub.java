@@ -0,0 +1,155 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+
+/**
+ * Embedded registry keeping pushed manifests and blobs in memory. Reads are anonymous, pushes need the token the
+ * {@code /token} endpoint issues for {@code robot:secret}. Calls go over plain HTTP, so the registry has to be listed in
+ * {@code marketplace.registry.insecure}.
+ */
+class RegistryStub implements AutoCloseable {
+
+    private static final String CREDENTIALS = Base64.getEncoder().encodeToString("robot:secret".getBytes(StandardCharsets.UTF_8));
+
+    private final HttpServer server;
+    /**
+     * host and port, the registry part of image references
+     */
+    @Getter
+    private final String registry;
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+    /**
+     * manifests by {@code <repository>:<tag or digest>}
+     */
+    private final Map<String, byte[]> manifests = new ConcurrentHashMap<>();
+    private final Map<String, String> manifestTypes = new ConcurrentHashMap<>();
+    @Getter
+    private final AtomicInteger uploads = new AtomicInteger();
+
+    RegistryStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        registry = "localhost:" + server.getAddress().getPort();
+        server.createContext("/token", this::token);
+        server.createContext("/v2/", this::handle);
+        server.start();
+    }
+
+    byte[] getManifest(String repositoryAndReference) {
+        return manifests.get(repositoryAndReference);
+    }
+
+    byte[] getBlob(String digest) {
+        return blobs.get(digest);
+    }
+
+    /**
+     * @return folder with a docker {@code config.json} holding the credentials for the registry
+     */
+    File writeConfig(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        Files.write(folder.resolve("config.json"),
+            ("{\"auths\":{\"" + registry + "\":{\"auth\":\"" + CREDENTIALS + "\"}}}").getBytes(StandardCharsets.UTF_8));
+        return folder.toFile();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        if (!("Basic " + CREDENTIALS).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, null, null);
+        } else {
+            respond(exchange, 200, "application/json", "{\"token\":\"push-token\"}".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring("/v2/".length());
+        String method = exchange.getRequestMethod();
+        int split = path.contains("/manifests/") ? path.indexOf("/manifests/") : path.indexOf("/blobs/");
+        String repository = path.substring(0, split);
+        if (("POST".equals(method) || "PUT".equals(method))
+            && !"Bearer push-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"http://" + registry + "/token\",service=\""
+                + registry + "\",scope=\"repository:" + repository + ":push,pull\"");
+            respond(exchange, 401, null, null);
+            return;
+        }
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        String rest = path.substring(split);
+        if (rest.startsWith("/manifests/")) {
+            manifest(exchange, repository + ":" + rest.substring("/manifests/".length()), repository, body);
+        } else if ("POST".equals(method)) {
+            exchange.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/uploads/" + UUID.randomUUID());
+            respond(exchange, 202, null, null);
+        } else if ("PUT".equals(method)) {
+            String digest = exchange.getRequestURI().getQuery().substring("digest=".length());
+            if (!digest.equals("sha256:" + DigestUtils.sha256Hex(body))) {
+                respond(exchange, 400, null, null);
+                return;
+            }
+            blobs.put(digest, body);
+            uploads.incrementAndGet();
+            respond(exchange, 201, null, null);
+        } else {
+            byte[] blob = blobs.get(rest.substring("/blobs/".length()));
+            if (blob == null) {
+                respond(exchange, 404, null, null);
+            } else {
+                respond(exchange, 200, "application/octet-stream", "HEAD".equals(method) ? null : blob);
+            }
+        }
+    }
+
+    private void manifest(HttpExchange exchange, String key, String repository, byte[] body) throws IOException {
+        String method = exchange.getRequestMethod();
+        if ("PUT".equals(method)) {
+            String digest = "sha256:" + DigestUtils.sha256Hex(body);
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            manifests.put(key, body);
+            manifests.put(repository + ":" + digest, body);
+            manifestTypes.put(key, type);
+            manifestTypes.put(repository + ":" + digest, type);
+            respond(exchange, 201, null, null);
+        } else if (!manifests.containsKey(key)) {
+            respond(exchange, 404, null, null);
+        } else {
+            exchange.getResponseHeaders().add("Docker-Content-Digest", "sha256:" + DigestUtils.sha256Hex(manifests.get(key)));
+            respond(exchange, 200, manifestTypes.get(key), "HEAD".equals(method) ? null : manifests.get(key));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (body != null) {
+                os.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.syndesis.qe.marketplace.manifests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+public class UpgradeGraphTest {
+
+    @Test
+    public void followsReplaces() {
+        UpgradeGraph graph = new UpgradeGraph();
+        graph.addAll(Arrays.asList(
+            bundle("op.v1.0.0", "1.0.0", "stable").build(),
+            bundle("op.v1.1.0", "1.1.0", "stable").replaces("op.v1.0.0").build(),
+            bundle("op.v1.2.0", "1.2.0", "stable").replaces("op.v1.1.0").build()));
+
+        assertEquals(Optional.of("op.v1.2.0"), graph.head("op", "stable"));
+        assertEquals(Arrays.asList("op.v1.0.0", "op.v1.1.0", "op.v1.2.0"), graph.path("op", "stable", "op.v1.0.0", "op.v1.2.0"));
+        assertEquals(Collections.emptyList(), graph.path("op", "stable", "op.v1.2.0", "op.v1.0.0"));
+        assertEquals(Arrays.asList("op.v1.1.0", "op.v1.0.0"), Arrays.asList(graph.predecessors("op", "stable", "op.v1.2.0").toArray()));
+    }
+
+    @Test
+    public void followsSkipsAndSkipRangesInAnyOrder() {
+        UpgradeGraph graph = new UpgradeGraph();
+        graph.add(bundle("op.v2.0.0", "2.0.0", "stable").replaces("op.v1.1.0").skips("op.v1.0.1").skipRange(">= 1.0.0 < 1.1.0").build());
+        graph.add(bundle("op.v1.0.0", "1.0.0", "stable").build());
+        graph.add(bundle("op.v1.1.0", "1.1.0", "stable").replaces("op.v1.0.0").build());
+
+        assertEquals(Arrays.asList("op.v1.0.0", "op.v2.0.0"), graph.path("op", "stable", "op.v1.0.0", "op.v2.0.0"));
+        assertTrue(graph.predecessors("op", "stable", "op.v2.0.0").containsAll(Arrays.asList("op.v1.0.0", "op.v1.0.1", "op.v1.1.0")));
+        assertEquals(Optional.of("op.v2.0.0"), graph.head("op", "stable"));
+    }
+
+    @Test
+    public void keepsChannelsApart() {
+        UpgradeGraph graph = new UpgradeGraph();
+        graph.add(bundle("op.v1.0.0", "1.0.0", "stable,fast").defaultChannel("stable").build());
+        graph.add(bundle("op.v1.1.0", "1.1.0", "fast").replaces("op.v1.0.0").defaultChannel("fast").build());
+
+        assertEquals(Arrays.asList("fast", "stable"), Arrays.asList(graph.getChannels("op").toArray()));
+        assertEquals(Optional.of("op.v1.0.0"), graph.head("op", "stable"));
+        assertEquals(Optional.of("op.v1.1.0"), graph.head("op", "fast"));
+        assertEquals(Optional.of("fast"), graph.getDefaultChannel("op"));
+        assertEquals(Collections.emptyList(), graph.path("op", "stable", "op.v1.0.0", "op.v1.1.0"));
+    }
+
+    @Test
+    public void ignoresDuplicatesAndBundlesWithoutChannels() {
+        UpgradeGraph graph = new UpgradeGraph();
+        graph.add(bundle("op.v1.0.0", "1.0.0", "stable").build());
+        graph.add(bundle("op.v1.0.0", "1.0.0", "fast").build());
+        graph.add(bundle("other.v1.0.0", "1.0.0", null).pkg("other").build());
+
+        assertEquals(Collections.singleton("stable"), graph.getChannels("op"));
+        assertTrue(graph.getChannels("other").isEmpty());
+        assertTrue(graph.getBundle("other.v1.0.0").isPresent());
+        assertFalse(graph.head("other", "stable").isPresent());
+    }
+
+    private static TestBundle bundle(String csvName, String version, String channels) {
+        return new TestBundle(csvName, version, channels);
+    }
+
+    /**
+     * Bundle with its metadata set directly instead of read from an image.
+     */
+    private static class TestBundle extends Bundle {
+        private final String csvName;
+        private final String version;
+        private final String channels;
+        private String packageName = "op";
+        private String replaces;
+        private List<String> skips = Collections.emptyList();
+        private String skipRange;
+        private String defaultChannel;
+
+        TestBundle(String csvName, String version, String channels) {
+            super("quay.io/test/" + csvName, null);
+            this.csvName = csvName;
+            this.version = version;
+            this.channels = channels;
+        }
+
+        TestBundle pkg(String packageName) {
+            this.packageName = packageName;
+            return this;
+        }
+
+        TestBundle replaces(String replaces) {
+            this.replaces = replaces;
+            return this;
+        }
+
+        TestBundle skips(String... skips) {
+            this.skips = Arrays.asList(skips);
+            return this;
+        }
+
+        TestBundle skipRange(String skipRange) {
+            this.skipRange = skipRange;
+            return this;
+        }
+
+        TestBundle defaultChannel(String defaultChannel) {
+            this.defaultChannel = defaultChannel;
+            return this;
+        }
+
+        Bundle build() {
+            return this;
+        }
+
+        @Override
+        public String getCSVName() {
+            return csvName;
+        }
+
+        @Override
+        public String getVersion() {
+            return version;
+        }
+
+        @Override
+        public String getPackageName() {
+            return packageName;
+        }
+
+        @Override
+        public String[] getChannels() {
+            return channels == null ? new String[0] : channels.split(",");
+        }
+
+        @Override
+        public String getDefaultChannel() {
+            return defaultChannel == null ? getChannels()[0] : defaultChannel;
+        }
+
+        @Override
+        public String getReplaces() {
+            return replaces;
+        }
+
+        @Override
+        public List<String> getSkips() {
+            return skips;
+        }
+
+        @Override
+        public String getSkipRange() {
+            return skipRange;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import cz.xtf.core.openshift.OpenShift;
+
+public class ClientRegistryTest {
+
+    private static final OpenShiftUser ADMIN = new OpenShiftUser("admin", "admin", "https://localhost:6443");
+
+    @AfterEach
+    public void closeAll() {
+        ClientRegistry.closeAll();
+    }
+
+    @Test
+    public void sharesClients() {
+        assertSame(ClientRegistry.get(ADMIN, "a"), ClientRegistry.get(ADMIN, "a"));
+        assertNotSame(ClientRegistry.get(ADMIN, "a"), ClientRegistry.get(ADMIN, "b"));
+    }
+
+    @Test
+    public void closesIdleClients() {
+        OpenShift client = ClientRegistry.get(ADMIN, "a");
+        ClientRegistry.close(ADMIN.getApiUrl());
+        assertTrue(isClosed(client));
+        assertNotSame(client, ClientRegistry.get(ADMIN, "a"));
+    }
+
+    @Test
+    public void keepsLeasedClientsOpen() {
+        ClientRegistry.Lease first = ClientRegistry.lease(ADMIN, "a");
+        ClientRegistry.Lease second = ClientRegistry.lease(ADMIN, "a");
+        OpenShift client = first.getClient();
+        ClientRegistry.close(ADMIN.getApiUrl());
+
+        assertFalse(isClosed(client));
+        assertNotSame(client, ClientRegistry.get(ADMIN, "a"));
+        first.close();
+        first.close();
+        assertFalse(isClosed(client));
+        second.close();
+        assertTrue(isClosed(client));
+    }
+
+    private static boolean isClosed(OpenShift client) {
+        return client.getHttpClient().dispatcher().executorService().isShutdown();
+    }
+}
@@ -0,0 +1,49 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.load.ClusterStub;
+import io.syndesis.qe.marketplace.util.Deadline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+public class OpenShiftServiceTest {
+
+    private ClusterStub cluster;
+    private OpenShiftService service;
+
+    @BeforeEach
+    public void setUp() {
+        cluster = new ClusterStub();
+        service = new OpenShiftService("org", "operator", OpenShiftConfiguration.builder().namespace("budget").build(),
+            new OpenShiftUser("admin", "admin", cluster.getUrl()), null);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ClientRegistry.close(cluster.getUrl());
+        cluster.close();
+    }
+
+    @Test
+    public void namespaceGetsThirdOfDeadline() {
+        cluster.setProvisionProjects(false);
+
+        long start = System.nanoTime();
+        Deadline.DeadlineExceededException e = assertThrows(Deadline.DeadlineExceededException.class,
+            () -> service.deployOperator(Duration.ofSeconds(6)));
+        Duration took = Duration.ofNanos(System.nanoTime() - start);
+
+        assertEquals("Deadline of 'create namespace' ran out", e.getMessage());
+        assertTrue(took.compareTo(Duration.ofMillis(1900)) >= 0 && took.compareTo(Duration.ofSeconds(4)) < 0, took.toString());
+        assertNull(service.getLastDiagnostics());
+        assertEquals(0, cluster.count("subscriptions"));
+    }
+}
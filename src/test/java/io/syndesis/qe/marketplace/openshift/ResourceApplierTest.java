@@ -0,0 +1,82 @@
+package io.syndesis.qe.marketplace.openshift;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.syndesis.qe.marketplace.load.ClusterStub;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import cz.xtf.core.openshift.OpenShift;
+import io.fabric8.kubernetes.client.dsl.base.CustomResourceDefinitionContext;
+
+public class ResourceApplierTest {
+
+    private static final String NAMESPACE = "applied";
+    private static final CustomResourceDefinitionContext OPERATOR_GROUPS = new CustomResourceDefinitionContext.Builder()
+        .withGroup("operators.coreos.com")
+        .withVersion("v1")
+        .withPlural("operatorgroups")
+        .withScope("Namespaced")
+        .build();
+
+    private ClusterStub cluster;
+    private OpenShift client;
+    private ResourceApplier applier;
+
+    @BeforeEach
+    public void setUp() {
+        cluster = new ClusterStub();
+        client = ClientRegistry.get(new OpenShiftUser("admin", "admin", cluster.getUrl()), NAMESPACE);
+        applier = new ResourceApplier(client);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ClientRegistry.close(cluster.getUrl());
+        cluster.close();
+    }
+
+    @Test
+    public void skipsUnchangedResource() throws IOException {
+        assertTrue(applier.apply(OPERATOR_GROUPS, NAMESPACE, operatorGroup("first-run", "spec:\n  upgradeStrategy: Default\n")));
+        long writes = cluster.getWrites().get();
+
+        assertFalse(applier.apply(OPERATOR_GROUPS, NAMESPACE, operatorGroup("first-run", "spec:\n  upgradeStrategy: Default\n")));
+        assertFalse(applier.apply(OPERATOR_GROUPS, NAMESPACE, operatorGroup("second-run", "spec:\n  upgradeStrategy: Default\n")));
+
+        assertEquals(1, applier.getWrites());
+        assertEquals(2, applier.getAvoidedWrites());
+        assertEquals(writes, cluster.getWrites().get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void patchesChangedResource() throws IOException {
+        applier.apply(OPERATOR_GROUPS, NAMESPACE, operatorGroup("first-run", "spec:\n  upgradeStrategy: Default\n  serviceAccountName: operator\n"));
+
+        assertTrue(applier.apply(OPERATOR_GROUPS, NAMESPACE, operatorGroup("first-run", "spec:\n  upgradeStrategy: TechPreviewUnsafeFailForward\n")));
+
+        Map<String, Object> spec = (Map<String, Object>) client.customResource(OPERATOR_GROUPS).get(NAMESPACE, "operatorgroup").get("spec");
+        assertEquals("TechPreviewUnsafeFailForward", spec.get("upgradeStrategy"));
+        assertFalse(spec.containsKey("serviceAccountName"), spec.toString());
+        assertEquals(2, applier.getWrites());
+        assertEquals(1, cluster.count("operatorgroups"));
+    }
+
+    private static String operatorGroup(String runId, String spec) {
+        return "apiVersion: operators.coreos.com/v1\n"
+            + "kind: OperatorGroup\n"
+            + "metadata:\n"
+            + "  name: operatorgroup\n"
+            + "  labels:\n"
+            + "    " + ResourceLabels.RUN_ID + ": " + runId + "\n"
+            + spec;
+    }
+}
@@ -0,0 +1,55 @@
+package io.syndesis.qe.marketplace.tar;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+
+public class CompressTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void archivesAreReproducible() throws IOException {
+        Path first = tmp.resolve("first");
+        write(first, "1.0.0/operator.v1.0.0.clusterserviceversion.yaml", "kind: ClusterServiceVersion\n");
+        write(first, "operator.package.yaml", "packageName: operator\n");
+        // the same content written in the other order, with other times and modes
+        Path second = tmp.resolve("second");
+        write(second, "operator.package.yaml", "packageName: operator\n");
+        write(second, "1.0.0/operator.v1.0.0.clusterserviceversion.yaml", "kind: ClusterServiceVersion\n");
+        Files.setLastModifiedTime(second.resolve("operator.package.yaml"), FileTime.fromMillis(1_000_000_000L));
+        Files.setPosixFilePermissions(second.resolve("operator.package.yaml"), PosixFilePermissions.fromString("rwx------"));
+
+        byte[] firstArchive = compress(first, "first.tar.gz");
+        byte[] secondArchive = compress(second, "second.tar.gz");
+
+        assertArrayEquals(firstArchive, secondArchive);
+        assertEquals(DigestUtils.sha256Hex(firstArchive), DigestUtils.sha256Hex(secondArchive));
+    }
+
+    private byte[] compress(Path folder, String name) throws IOException {
+        Path archive = tmp.resolve(name);
+        try (Compress compress = new Compress(archive.toString(), "operator-1.0.0")) {
+            compress.writedir(folder);
+        }
+        return Files.readAllBytes(archive);
+    }
+
+    private static void write(Path folder, String file, String content) throws IOException {
+        Path path = folder.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
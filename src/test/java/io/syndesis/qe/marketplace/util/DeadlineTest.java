@@ -0,0 +1,114 @@
+package io.syndesis.qe.marketplace.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeadlineTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void stepNeverOutlivesEnclosingDeadline() {
+        try (Deadline outer = Deadline.start("outer", Duration.ofSeconds(10))) {
+            try (Deadline inner = outer.step("inner", Duration.ofMinutes(5))) {
+                assertSame(inner, Deadline.current());
+                assertTrue(inner.remaining().compareTo(Duration.ofSeconds(10)) <= 0, inner.toString());
+            }
+            try (Deadline third = outer.share("third", 1.0 / 3)) {
+                assertTrue(third.remaining().compareTo(Duration.ofMillis(3334)) <= 0, third.toString());
+                assertTrue(third.remaining().compareTo(Duration.ofSeconds(3)) > 0, third.toString());
+            }
+            assertSame(outer, Deadline.current());
+        }
+        assertEquals("none", Deadline.current().getName());
+    }
+
+    @Test
+    public void boundRoundsUpToWholeSeconds() {
+        assertEquals(30, Deadline.current().bound(30));
+        assertNull(Deadline.current().remaining());
+        try (Deadline deadline = Deadline.start("bounded", Duration.ofMillis(1500))) {
+            assertEquals(2, deadline.bound(30));
+            assertEquals(1, deadline.bound(1));
+        }
+    }
+
+    @Test
+    public void checkFailsOnceExpired() throws InterruptedException {
+        try (Deadline deadline = Deadline.start("short", Duration.ofMillis(50))) {
+            deadline.check();
+            Thread.sleep(100);
+            assertTrue(deadline.isExpired());
+            Deadline.DeadlineExceededException e = assertThrows(Deadline.DeadlineExceededException.class, () -> deadline.bound(30));
+            assertEquals("Deadline of 'short' ran out", e.getMessage());
+        }
+    }
+
+    @Test
+    public void cancelsResourcesOfNestedSteps() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        try (Deadline outer = Deadline.start("outer", Duration.ofMillis(100));
+            Deadline inner = outer.step("inner", null);
+            Deadline.Registration registration = inner.onCancel(closed::countDown)) {
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertTrue(inner.isExpired());
+        }
+    }
+
+    @Test
+    public void unregisteredResourceIsNotCancelled() throws InterruptedException {
+        AtomicInteger closed = new AtomicInteger();
+        try (Deadline deadline = Deadline.start("released", Duration.ofMillis(50))) {
+            deadline.onCancel(closed::incrementAndGet).close();
+            Thread.sleep(200);
+            assertTrue(deadline.isExpired());
+        }
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    public void cleanupRunsOnlyAfterExpiry() throws InterruptedException {
+        AtomicInteger cleanups = new AtomicInteger();
+        try (Deadline deadline = Deadline.start("in time", Duration.ofSeconds(10))) {
+            deadline.addCleanup(cleanups::incrementAndGet);
+        }
+        assertEquals(0, cleanups.get());
+
+        try (Deadline deadline = Deadline.start("late", Duration.ofMillis(50))) {
+            deadline.addCleanup(cleanups::incrementAndGet);
+            deadline.addCleanup(() -> {
+                throw new IllegalStateException("cleanup failed");
+            });
+            Thread.sleep(100);
+        }
+        assertEquals(1, cleanups.get());
+    }
+
+    @Test
+    public void wrapCarriesDeadlineToOtherThread() throws Exception {
+        try (Deadline deadline = Deadline.start("carried", Duration.ofSeconds(10))) {
+            assertEquals("carried", executor.submit(deadline.wrap(() -> Deadline.current().getName())).get());
+            assertEquals("none", executor.submit(() -> Deadline.current().getName()).get());
+        }
+        assertFalse(Deadline.current().isExpired());
+    }
+}
@@ -0,0 +1,79 @@
+package io.syndesis.qe.marketplace.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+public class SemanticVersionTest {
+
+    @Test
+    public void parsesPartialVersions() {
+        SemanticVersion version = SemanticVersion.parse("v1.2");
+        assertEquals(1, version.getMajor());
+        assertEquals(2, version.getMinor());
+        assertEquals(0, version.getPatch());
+        assertEquals("1.2.0", version.toString());
+    }
+
+    @Test
+    public void parsesPreReleaseAndBuild() {
+        SemanticVersion version = SemanticVersion.parse("1.2.3-rc.1+build.5");
+        assertEquals("rc.1", version.getPreRelease());
+        assertEquals("build.5", version.getBuild());
+        assertEquals(SemanticVersion.parse("1.2.3-rc.1+other"), version);
+    }
+
+    @Test
+    public void rejectsInvalidVersions() {
+        assertThrows(IllegalArgumentException.class, () -> SemanticVersion.parse("latest"));
+        assertNull(SemanticVersion.parseOrNull("latest"));
+        assertNull(SemanticVersion.parseOrNull(null));
+    }
+
+    @Test
+    public void ordersPreReleasesBeforeReleases() {
+        assertTrue(SemanticVersion.parse("1.0.0-alpha").compareTo(SemanticVersion.parse("1.0.0")) < 0);
+        assertTrue(SemanticVersion.parse("1.0.0-alpha").compareTo(SemanticVersion.parse("1.0.0-alpha.1")) < 0);
+        assertTrue(SemanticVersion.parse("1.0.0-alpha.2").compareTo(SemanticVersion.parse("1.0.0-alpha.10")) < 0);
+        assertTrue(SemanticVersion.parse("1.0.0-1").compareTo(SemanticVersion.parse("1.0.0-alpha")) < 0);
+        assertTrue(SemanticVersion.parse("1.10.0").compareTo(SemanticVersion.parse("1.9.9")) > 0);
+    }
+
+    @Test
+    public void matchesRanges() {
+        Predicate<SemanticVersion> range = SemanticVersion.range(">=1.0.0 <1.2.0");
+        assertFalse(range.test(SemanticVersion.parse("0.9.0")));
+        assertTrue(range.test(SemanticVersion.parse("1.0.0")));
+        assertTrue(range.test(SemanticVersion.parse("1.1.9")));
+        assertFalse(range.test(SemanticVersion.parse("1.2.0")));
+    }
+
+    @Test
+    public void matchesRangesWithSpacesAfterOperators() {
+        Predicate<SemanticVersion> range = SemanticVersion.range(">= 1.0.0  < 1.2.0");
+        assertTrue(range.test(SemanticVersion.parse("1.1.0")));
+        assertFalse(range.test(SemanticVersion.parse("1.2.0")));
+        assertTrue(SemanticVersion.range("!= 1.0.0").test(SemanticVersion.parse("1.0.1")));
+        assertTrue(SemanticVersion.range("= 1.0.0").test(SemanticVersion.parse("1.0.0")));
+    }
+
+    @Test
+    public void matchesAlternatives() {
+        Predicate<SemanticVersion> range = SemanticVersion.range("<1.0.0 || >= 2.0.0");
+        assertTrue(range.test(SemanticVersion.parse("0.5.0")));
+        assertFalse(range.test(SemanticVersion.parse("1.5.0")));
+        assertTrue(range.test(SemanticVersion.parse("2.0.0")));
+        assertTrue(SemanticVersion.range("1.0.0").test(SemanticVersion.parse("1.0.0")));
+    }
+
+    @Test
+    public void rejectsInvalidRanges() {
+        assertThrows(IllegalArgumentException.class, () -> SemanticVersion.range(">= latest"));
+    }
+}